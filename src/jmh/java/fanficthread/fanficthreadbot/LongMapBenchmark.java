@@ -0,0 +1,118 @@
+package fanficthread.fanficthreadbot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups of {@link BotState} indexes: {@link LongConcurrentMap} against the former
+ * {@code ConcurrentHashMap<Long, V>}.
+ * <p>
+ * Keys are snowflakes, looked up in random order. Hits are the reaction path of
+ * {@link BotState#getMemberPollByMessage(long)}, misses are reactions to messages that aren't polls,
+ * which is most of them. Run with {@code -prof gc} to see the boxing of the former map,
+ * and with {@code -t} for contended lookups.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LongMapBenchmark
+{
+    private static final int LOOKUPS = 4096;
+
+    @Param({"100", "10000", "100000"})
+    public int size;
+
+    private final LongConcurrentMap<Object> longMap = new LongConcurrentMap<>();
+    private final Map<Long, Object> boxedMap = new ConcurrentHashMap<>();
+    private final long[] hits = new long[LOOKUPS];
+    private final long[] misses = new long[LOOKUPS];
+
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        int index;
+
+        int next()
+        {
+            return index = (index + 1) & (LOOKUPS - 1);
+        }
+    }
+
+    @Setup
+    public void setUp()
+    {
+        final Random random = new Random(42);
+        final long[] keys = new long[size];
+        //Snowflakes of messages over about a year, so keys are far above the boxing cache
+        for (int i = 0; i < size; i++)
+        {
+            keys[i] = 550000000000000000L + (random.nextLong() & 0x00FFFFFFFFFFFFFFL);
+            final Object value = new Object();
+            longMap.put(keys[i], value);
+            boxedMap.put(keys[i], value);
+        }
+        for (int i = 0; i < LOOKUPS; i++)
+        {
+            hits[i] = keys[random.nextInt(size)];
+            long miss;
+            do
+            {
+                miss = 550000000000000000L + (random.nextLong() & 0x00FFFFFFFFFFFFFFL);
+            } while (longMap.containsKey(miss));
+            misses[i] = miss;
+        }
+    }
+
+    @Benchmark
+    public Object longMapHit(Cursor cursor)
+    {
+        return longMap.get(hits[cursor.next()]);
+    }
+
+    @Benchmark
+    public Object boxedMapHit(Cursor cursor)
+    {
+        return boxedMap.get(hits[cursor.next()]);
+    }
+
+    @Benchmark
+    public Object longMapMiss(Cursor cursor)
+    {
+        return longMap.get(misses[cursor.next()]);
+    }
+
+    @Benchmark
+    public Object boxedMapMiss(Cursor cursor)
+    {
+        return boxedMap.get(misses[cursor.next()]);
+    }
+
+    @Benchmark
+    public Object longMapComputeIfAbsentPresent(Cursor cursor)
+    {
+        return longMap.computeIfAbsent(hits[cursor.next()], key -> new Object());
+    }
+
+    @Benchmark
+    public Object boxedMapComputeIfAbsentPresent(Cursor cursor)
+    {
+        return boxedMap.computeIfAbsent(hits[cursor.next()], key -> new Object());
+    }
+}
@@ -0,0 +1,113 @@
+package fanficthread.fanficthreadbot;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one json state save.
+ * <p>
+ * {@link #treeStringBytes} is the former save: json tree, then the whole String, then its byte[] copy.
+ * {@link #streaming} is the save of {@link BotPersistence}: the adapter writes through a buffered stream.
+ * Both write to a stream that discards the bytes, so only serialization is measured.
+ * Run with {@code -prof gc}, {@code gc.alloc.rate.norm} is the allocation per save.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateSaveBenchmark
+{
+    //Same as the persistence write buffer
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MEMBER_POLLS = 100;
+    private static final int VOTES_PER_POLL = 50;
+
+    @Param({"10000", "50000"})
+    public int narrators;
+
+    @Param({"true", "false"})
+    public boolean prettyPrint;
+
+    private Gson gson;
+    private TypeAdapter<BotState> adapter;
+    private BotState state;
+    private final OutputStream discard = new DiscardingOutputStream();
+
+    @Setup
+    public void setUp()
+    {
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        if (prettyPrint) gsonBuilder.setPrettyPrinting();
+        gson = gsonBuilder.create();
+        adapter = gson.getAdapter(BotState.class);
+
+        final Random random = new Random(42);
+        state = new BotState();
+        for (int i = 0; i < narrators; i++)
+        {
+            state.setNarratorTime(100000000000000000L + random.nextInt(Integer.MAX_VALUE), random.nextInt(1000000));
+        }
+        for (int i = 0; i < MEMBER_POLLS; i++)
+        {
+            MemberPoll poll = new MemberPoll(200000000000000000L + i, 300000000000000000L + i, System.currentTimeMillis());
+            state.addMemberPoll(poll);
+            for (int vote = 0; vote < VOTES_PER_POLL; vote++)
+            {
+                state.addMemberPollVote(poll, 400000000000000000L + random.nextInt(Integer.MAX_VALUE),
+                        random.nextBoolean(), System.currentTimeMillis());
+            }
+        }
+    }
+
+    @Benchmark
+    public void treeStringBytes() throws IOException
+    {
+        final byte[] bytes = gson.toJson(gson.toJsonTree(state)).getBytes(StandardCharsets.UTF_8);
+        discard.write(bytes);
+    }
+
+    @Benchmark
+    public void streaming() throws IOException
+    {
+        OutputStream out = new BufferedOutputStream(discard, WRITE_BUFFER_SIZE);
+        JsonWriter jsonWriter = gson.newJsonWriter(BotPersistence.newWriter(out));
+        adapter.write(jsonWriter, state);
+        jsonWriter.flush();
+    }
+
+    private static final class DiscardingOutputStream extends OutputStream
+    {
+        @Override
+        public void write(int b)
+        {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package fanficthread.fanficthreadbot.listeners;
+
+import fanficthread.fanficthreadbot.Util;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-message cost of finding commands in chat traffic.
+ * <p>
+ * Corpus is mostly plain chat: short and multi-line messages, mentions of users and of the bot itself
+ * in the middle of a line, and one command in a hundred messages.
+ * {@link #splitLines} is the former per-line check, {@link #prefixScan} is the one of {@link CommandListener}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandPrefixBenchmark
+{
+    private static final int MESSAGES = 1024;
+    private static final long BOT_ID = 505432553478946816L;
+
+    private static final String[] WORDS = {
+            "привет", "как", "дела", "читал", "новую", "главу", "фанфик", "пони", "Твайлайт", "Рэрити",
+            "это", "просто", "лучшее", "что", "я", "видел", "lol", "ok", "спасибо", "автору", "ну", "да"
+    };
+
+    private final String[] corpus = new String[MESSAGES];
+    private String commandPrefix;
+
+    @Setup
+    public void setUp()
+    {
+        commandPrefix = Util.getUserMention(BOT_ID) + " ";
+        final Random random = new Random(42);
+        for (int i = 0; i < MESSAGES; i++)
+        {
+            final StringBuilder message = new StringBuilder();
+            final int lines = random.nextInt(10) == 0 ? 2 + random.nextInt(6) : 1;
+            for (int line = 0; line < lines; line++)
+            {
+                if (line > 0) message.append('\n');
+                if (random.nextInt(100) == 0)
+                {
+                    message.append(commandPrefix).append("narrator top");
+                    continue;
+                }
+                final int words = 1 + random.nextInt(20);
+                for (int word = 0; word < words; word++)
+                {
+                    if (word > 0) message.append(' ');
+                    final int kind = random.nextInt(50);
+                    if (kind == 0)
+                    {
+                        message.append(Util.getUserMention(BOT_ID));
+                    } else if (kind < 3)
+                    {
+                        message.append(Util.getUserMention(100000000000000000L + random.nextInt(Integer.MAX_VALUE)));
+                    } else
+                    {
+                        message.append(WORDS[random.nextInt(WORDS.length)]);
+                    }
+                }
+            }
+            corpus[i] = message.toString();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void splitLines(Blackhole blackhole)
+    {
+        for (String content : corpus)
+        {
+            final String commandPrefix = Util.getUserMention(BOT_ID) + " ";
+            for (String line : content.split("\n"))
+            {
+                if (line.startsWith(commandPrefix)) blackhole.consume(line.substring(commandPrefix.length()));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void prefixScan(Blackhole blackhole)
+    {
+        for (String content : corpus)
+        {
+            int prefixIndex = content.indexOf(commandPrefix);
+            if (prefixIndex < 0) continue;
+            prefixIndex = CommandListener.nextCommand(content, commandPrefix, prefixIndex);
+            while (prefixIndex >= 0)
+            {
+                final int lineEnd = CommandListener.lineEnd(content, prefixIndex);
+                blackhole.consume(content.substring(prefixIndex + commandPrefix.length(), lineEnd));
+                prefixIndex = CommandListener.nextCommand(content, commandPrefix, lineEnd);
+            }
+        }
+    }
+}
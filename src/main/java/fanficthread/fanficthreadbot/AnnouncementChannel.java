@@ -1,9 +1,12 @@
 package fanficthread.fanficthreadbot;
 
-import com.google.gson.*;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 
 @JsonAdapter(AnnouncementChannel.JsonAdapter.class)
 public class AnnouncementChannel
@@ -37,27 +40,41 @@ public class AnnouncementChannel
         this.repostChannelId = repostChannelId;
     }
 
-    public static class JsonAdapter implements JsonSerializer<AnnouncementChannel>, JsonDeserializer<AnnouncementChannel>
+    public static class JsonAdapter extends TypeAdapter<AnnouncementChannel>
     {
         @Override
-        public JsonElement serialize(AnnouncementChannel ac, Type type, JsonSerializationContext context)
+        public void write(JsonWriter out, AnnouncementChannel ac) throws IOException
         {
-            JsonObject json = new JsonObject();
-
-            json.addProperty("id", ac.getChannelId());
-            json.addProperty("repost_id", ac.getRepostChannelId());
-
-            return json;
+            out.beginObject();
+            out.name("id").value(ac.getChannelId());
+            out.name("repost_id").value(ac.getRepostChannelId());
+            out.endObject();
         }
 
         @Override
-        public AnnouncementChannel deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext context) throws JsonParseException
+        public AnnouncementChannel read(JsonReader in) throws IOException
         {
-            JsonObject json = jsonElement.getAsJsonObject();
+            Long id = null;
+            Long repostId = null;
 
-            long id = json.get("id").getAsLong();
-            long repostId = json.get("repost_id").getAsLong();
+            in.beginObject();
+            while (in.hasNext())
+            {
+                switch (in.nextName())
+                {
+                    case "id":
+                        id = in.nextLong();
+                        break;
+                    case "repost_id":
+                        repostId = in.nextLong();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
 
+            if (id == null || repostId == null) throw new JsonParseException("Announcement channel must have id and repost_id");
             return new AnnouncementChannel(id, repostId);
         }
     }
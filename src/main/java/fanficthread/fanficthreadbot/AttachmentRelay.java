@@ -0,0 +1,210 @@
+package fanficthread.fanficthreadbot;
+
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.webhook.WebhookMessageBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Downloads message attachments to be re-uploaded with a webhook.
+ * <p>
+ * Downloads run on a bounded {@link BotExecutor}, so at most as many as its threads run at once.
+ * Neither a download nor the wait for its budget ever runs on the submitting thread, which usually is
+ * a JDA event thread: when the queue is full the download fails instead.
+ * Bytes of all relayed files are limited by a global budget, which is held until the file is closed,
+ * i.e. until the webhook message is sent. Files bigger than {@link #SPILL_THRESHOLD} are downloaded to temporary
+ * files instead of the heap. Files bigger than Discord upload limit are not downloaded at all.
+ * Thread-safe.
+ */
+public final class AttachmentRelay
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(AttachmentRelay.class);
+
+    public static final int MAX_UPLOAD_SIZE = 8 * 1024 * 1024;
+    private static final int SPILL_THRESHOLD = 1024 * 1024;
+    private static final int BUDGET_BYTES = 32 * 1024 * 1024;
+    //Budget is counted in KiB so it fits Semaphore int permits with room to spare
+    private static final int BUDGET_UNIT = 1024;
+    private static final long BUDGET_TIMEOUT_MS = 30000;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Semaphore budget = new Semaphore(BUDGET_BYTES / BUDGET_UNIT, true);
+    private final BotExecutor executor;
+
+    /**
+     * @param executor executor of downloads, its size limits concurrent downloads;
+     *                 it must reject overflowed tasks instead of running them on the submitter
+     */
+    public AttachmentRelay(BotExecutor executor)
+    {
+        if (executor.getOverflow() != BotExecutor.Overflow.REJECT)
+            throw new IllegalArgumentException("Download executor must reject overflowed downloads");
+        this.executor = executor;
+    }
+
+    /**
+     * Download the attachment. Returned file must be closed after use to release the budget.
+     *
+     * @param attachment attachment to download
+     * @param fileName   name of the re-uploaded file
+     * @return future of the downloaded file; completed exceptionally if the attachment is too big,
+     * download queue is full, there's no budget for it in time or download failed
+     */
+    public CompletableFuture<RelayedFile> fetch(Message.Attachment attachment, String fileName)
+    {
+        final int size = attachment.getSize();
+        if (size > MAX_UPLOAD_SIZE)
+        {
+            return failed(new IOException("Attachment " + attachment.getFileName() + " of " + size + " bytes is too big to upload"));
+        }
+        try
+        {
+            return CompletableFuture.supplyAsync(() -> download(attachment, fileName, size), executor);
+        } catch (RejectedExecutionException e)
+        {
+            return failed(new IOException("Download queue is full, attachment " + attachment.getFileName() + " is dropped", e));
+        }
+    }
+
+    private static CompletableFuture<RelayedFile> failed(Throwable e)
+    {
+        CompletableFuture<RelayedFile> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private RelayedFile download(Message.Attachment attachment, String fileName, int size)
+    {
+        final int permits = Math.max(1, (size + BUDGET_UNIT - 1) / BUDGET_UNIT);
+        try
+        {
+            if (!budget.tryAcquire(permits, BUDGET_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                throw new IllegalStateException("No attachment budget for " + size + " bytes in " + BUDGET_TIMEOUT_MS + " ms");
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for attachment budget", e);
+        }
+
+        //Reported size can lie, don't let the stream eat more than it was budgeted for
+        final long limit = (long) permits * BUDGET_UNIT;
+        Path tempFile = null;
+        try (InputStream in = attachment.getInputStream())
+        {
+            if (size > SPILL_THRESHOLD)
+            {
+                tempFile = Files.createTempFile("ftbot-attachment-", ".tmp");
+                try (OutputStream out = Files.newOutputStream(tempFile))
+                {
+                    copyLimited(in, out, limit);
+                }
+                return new RelayedFile(fileName, null, tempFile, permits);
+            }
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(size, BUFFER_SIZE));
+            copyLimited(in, out, limit);
+            return new RelayedFile(fileName, out.toByteArray(), null, permits);
+        } catch (IOException | RuntimeException e)
+        {
+            budget.release(permits);
+            deleteQuietly(tempFile);
+            if (e instanceof IOException) throw new UncheckedIOException((IOException) e);
+            throw (RuntimeException) e;
+        }
+    }
+
+    /**
+     * @throws IOException if the stream has more than limit bytes
+     */
+    private static void copyLimited(InputStream in, OutputStream out, long limit) throws IOException
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long copied = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1)
+        {
+            copied += read;
+            if (copied > limit) throw new IOException("Attachment is bigger than its budget of " + limit + " bytes");
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static void deleteQuietly(Path file)
+    {
+        if (file == null) return;
+        try
+        {
+            Files.deleteIfExists(file);
+        } catch (IOException e)
+        {
+            LOGGER.warn("Failed to delete temporary attachment file {}", file, e);
+        }
+    }
+
+    /**
+     * Available budget in bytes.
+     */
+    public long getAvailableBudget()
+    {
+        return (long) budget.availablePermits() * BUDGET_UNIT;
+    }
+
+    public int getQueuedDownloads()
+    {
+        return executor.getQueueDepth();
+    }
+
+    /**
+     * Downloaded attachment, on heap or in a temporary file.
+     */
+    public final class RelayedFile implements AutoCloseable
+    {
+        private final String name;
+        private final byte[] data;
+        private final Path file;
+        private final int permits;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private RelayedFile(String name, byte[] data, Path file, int permits)
+        {
+            this.name = name;
+            this.data = data;
+            this.file = file;
+            this.permits = permits;
+        }
+
+        public void addTo(WebhookMessageBuilder builder)
+        {
+            if (data != null)
+            {
+                builder.addFile(name, data);
+            } else
+            {
+                builder.addFile(name, file.toFile());
+            }
+        }
+
+        /**
+         * Release the budget and delete the temporary file. Can be called multiple times.
+         */
+        @Override
+        public void close()
+        {
+            if (!closed.compareAndSet(false, true)) return;
+            budget.release(permits);
+            deleteQuietly(file);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package fanficthread.fanficthreadbot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded worker pool of a bot module, so blocking work of the module is done off the JDA event threads
+ * and a slow module doesn't hold up the others.
+ * <p>
+ * Threads are named after the module. When the queue is full the task is either run by the submitting thread,
+ * which slows down the event source instead of dropping the event, or rejected, for work that must never run
+ * on the submitter; see {@link Overflow}.
+ * Virtual threads are used if they are requested and the JVM has them; they are looked up by reflection
+ * since the bot is built for Java 8.
+ * Queue depth, wait time of tasks in the queue and overflowed tasks are counted.
+ * Thread-safe.
+ */
+public final class BotExecutor implements Executor
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(BotExecutor.class);
+
+    /**
+     * Queue capacity of an executor with unbounded queue; its tasks never overflow.
+     */
+    public static final int UNBOUNDED = 0;
+
+    /**
+     * What to do with a task when the queue is full.
+     */
+    public enum Overflow
+    {
+        /**
+         * Run the task on the submitting thread.
+         */
+        CALLER_RUNS,
+        /**
+         * Throw {@link RejectedExecutionException} to the submitter.
+         */
+        REJECT
+    }
+
+    private final String name;
+    private final int queueCapacity;
+    private final ThreadPoolExecutor executor;
+    private final LatencyCounter waitLatency;
+    private final Overflow overflow;
+    private final LongAdder overflowed = new LongAdder();
+    private final boolean virtual;
+
+    /**
+     * Executor that runs overflowed tasks on the submitting thread.
+     *
+     * @param name          module name, used for thread names
+     * @param threads       max count of threads
+     * @param queueCapacity max count of queued tasks
+     * @param virtual       use virtual threads if available
+     */
+    public BotExecutor(String name, int threads, int queueCapacity, boolean virtual)
+    {
+        this(name, threads, queueCapacity, Overflow.CALLER_RUNS, virtual);
+    }
+
+    /**
+     * @param name          module name, used for thread names
+     * @param threads       max count of threads
+     * @param queueCapacity max count of queued tasks or {@link #UNBOUNDED}
+     * @param overflow      what to do with a task when the queue is full
+     * @param virtual       use virtual threads if available
+     */
+    public BotExecutor(String name, int threads, int queueCapacity, Overflow overflow, boolean virtual)
+    {
+        this.name = name;
+        this.queueCapacity = queueCapacity;
+        this.overflow = overflow;
+        this.waitLatency = new LatencyCounter("ожидание");
+
+        ThreadFactory threadFactory = virtual ? newVirtualThreadFactory(name) : null;
+        this.virtual = threadFactory != null;
+        if (threadFactory == null)
+        {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            threadFactory = r ->
+            {
+                Thread thread = new Thread(r, name + "-thread-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+        final RejectedExecutionHandler handler = overflow == Overflow.CALLER_RUNS
+                ? new ThreadPoolExecutor.CallerRunsPolicy()
+                : new ThreadPoolExecutor.AbortPolicy();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                queueCapacity == UNBOUNDED ? new LinkedBlockingQueue<>() : new ArrayBlockingQueue<>(queueCapacity),
+                threadFactory,
+                (r, e) ->
+                {
+                    overflowed.increment();
+                    handler.rejectedExecution(r, e);
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static ThreadFactory newVirtualThreadFactory(String name)
+    {
+        try
+        {
+            //Thread.ofVirtual().name(name + "-virtual-", 1).factory()
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Object namedBuilder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-virtual-", 1L);
+            final Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(namedBuilder);
+        } catch (ReflectiveOperationException | RuntimeException e)
+        {
+            LOGGER.info("Virtual threads are not available, {} uses platform threads", name);
+            return null;
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if the queue is full and overflow is {@link Overflow#REJECT}
+     */
+    @Override
+    public void execute(Runnable command)
+    {
+        final long queuedNanos = System.nanoTime();
+        executor.execute(() ->
+        {
+            waitLatency.recordSince(queuedNanos);
+            try
+            {
+                command.run();
+            } catch (RuntimeException e)
+            {
+                LOGGER.error("Uncaught exception in {} task", name, e);
+            }
+        });
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getQueueDepth()
+    {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return max count of queued tasks or {@link #UNBOUNDED}
+     */
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    public int getActiveThreads()
+    {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return latency of tasks from submission to start
+     */
+    public LatencyCounter getWaitLatency()
+    {
+        return waitLatency;
+    }
+
+    public Overflow getOverflow()
+    {
+        return overflow;
+    }
+
+    /**
+     * @return count of tasks run by the submitting thread or rejected because the queue was full
+     */
+    public long getOverflowed()
+    {
+        return overflowed.sum();
+    }
+
+    public boolean isVirtual()
+    {
+        return virtual;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + (virtual ? " (virtual)" : "") + ": " + getQueueDepth()
+                + (queueCapacity == UNBOUNDED ? "" : "/" + queueCapacity) + " в очереди, "
+                + getActiveThreads() + " активно, " + getOverflowed()
+                + (overflow == Overflow.CALLER_RUNS ? " выполнено вызывающим, " : " отклонено, ") + waitLatency;
+    }
+}
@@ -0,0 +1,461 @@
+package fanficthread.fanficthreadbot;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import fanficthread.fanficthreadbot.jobs.BotJob;
+import fanficthread.fanficthreadbot.jobs.BotJobManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistence pipeline for {@link BotSettings}, {@link BotState} and {@link BotJob}s.
+ * <p>
+ * Settings mutations only bump the settings version; state mutations are recorded into {@link BotStateJournal}.
+ * A single background writer runs every {@link #SAVE_INTERVAL_MS}: it writes at most one settings snapshot
+ * and appends all new state changes to the journal with one fsync. Jobs are saved as a whole when they change.
+ * State snapshot is written only on journal compaction, when the journal grows too big or too old.
+ * Snapshots are streamed to a temporary file and atomically renamed, so a crash never leaves a broken file.
+ * Json is streamed with {@link TypeAdapter}s straight to the buffered file, no json tree or string copy is built.
+ * State snapshot can be written as json or as compact binary, see {@link BotSettings#getStateFormat()}.
+ * Event threads never block on disk and no mutation is dropped.
+ * Thread-safe.
+ */
+public final class BotPersistence
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(BotPersistence.class);
+
+    private static final long SAVE_INTERVAL_MS = 10000;
+    private static final long CLOSE_TIMEOUT_MS = 30000;
+    private static final long COMPACTION_SIZE = 1024 * 1024;
+    private static final long COMPACTION_INTERVAL_MS = 3600000;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final Path SETTINGS_FILE_NAME = Paths.get("bot_settings.json");
+    private static final Path STATE_FILE_NAME = Paths.get("bot_state.json");
+    private static final Path STATE_BINARY_FILE_NAME = Paths.get("bot_state.bin");
+    private static final Path STATE_JOURNAL_FILE_NAME = Paths.get("bot_state.journal");
+    private static final Path JOBS_FILE_NAME = Paths.get("bot_jobs.json");
+
+    private final FanficThreadBot bot;
+    private final Gson gson;
+    private final BotStateJournal journal = new BotStateJournal(STATE_JOURNAL_FILE_NAME);
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r ->
+    {
+        Thread thread = new Thread(r, "Persistence-thread");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //guarded by this
+    private BotSettings savedSettings;
+    private long savedSettingsVersion;
+    private BotState savedState;
+    private StateFormat savedStateFormat;
+    private long lastCompactionMillis;
+    private long savedJobsVersion;
+
+    /**
+     * @param bot         bot
+     * @param prettyPrint write indented json; compact json is smaller and faster to write
+     */
+    public BotPersistence(FanficThreadBot bot, boolean prettyPrint)
+    {
+        this.bot = bot;
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        if (prettyPrint) gsonBuilder.setPrettyPrinting();
+        this.gson = gsonBuilder.create();
+    }
+
+    public void start()
+    {
+        executor.scheduleWithFixedDelay(this::writeDirty, SAVE_INTERVAL_MS, SAVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write everything that was changed since the last write as soon as possible.
+     *
+     * @return future completed when the write is done
+     */
+    public CompletableFuture<Void> flush()
+    {
+        try
+        {
+            return CompletableFuture.runAsync(this::writeDirty, executor);
+        } catch (RejectedExecutionException e)
+        {
+            //Writer is closed, write on the caller thread
+            writeDirty();
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Stop the background writer and do the final write on the caller thread.
+     * Can be called multiple times, e.g. from both shutdown command and shutdown hook.
+     */
+    public void close()
+    {
+        executor.shutdown();
+        try
+        {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            {
+                LOGGER.error("Persistence writer didn't finish in {} ms", CLOSE_TIMEOUT_MS);
+            }
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this)
+        {
+            writeDirty();
+            try
+            {
+                journal.close();
+            } catch (IOException e)
+            {
+                LOGGER.error("Failed to close state journal", e);
+            }
+        }
+        LOGGER.debug("Persistence writer closed");
+    }
+
+    private synchronized void writeDirty()
+    {
+        final BotSettings settings = bot.getSettings();
+        if (settings != null)
+        {
+            final long version = settings.getVersion();
+            if (settings != savedSettings || version != savedSettingsVersion)
+            {
+                if (writeSettings(settings))
+                {
+                    savedSettings = settings;
+                    savedSettingsVersion = version;
+                }
+            }
+        }
+
+        final BotState state = bot.getState();
+        if (state != null)
+        {
+            final StateFormat format = settings != null ? settings.getStateFormat() : StateFormat.JSON;
+            if (state != savedState)
+            {
+                //New state instance, e.g. just loaded: start journaling it from a fresh snapshot
+                state.attachJournal(journal);
+                compactState(state, format);
+            } else if (format != savedStateFormat)
+            {
+                compactState(state, format);
+            } else
+            {
+                appendStateJournal(state, format);
+            }
+        }
+
+        final BotJobManager jobManager = bot.getJobManager();
+        if (jobManager != null)
+        {
+            final long version = jobManager.getVersion();
+            if (version != savedJobsVersion && writeJobs(jobManager.getJobs())) savedJobsVersion = version;
+        }
+    }
+
+    private boolean writeJobs(List<BotJob> jobs)
+    {
+        final TypeAdapter<BotJob> adapter = gson.getAdapter(BotJob.class);
+        try
+        {
+            writeAtomically(JOBS_FILE_NAME, out ->
+            {
+                Writer writer = newWriter(out);
+                JsonWriter jsonWriter = gson.newJsonWriter(writer);
+                jsonWriter.beginArray();
+                for (BotJob job : jobs) adapter.write(jsonWriter, job);
+                jsonWriter.endArray();
+                jsonWriter.flush();
+            });
+            LOGGER.debug("{} jobs saved", jobs.size());
+            return true;
+        } catch (IOException e)
+        {
+            LOGGER.error("Failed to save jobs to file", e);
+        } catch (RuntimeException e)
+        {
+            LOGGER.error("Failed to serialize jobs to json", e);
+        }
+        return false;
+    }
+
+    private void appendStateJournal(BotState state, StateFormat format)
+    {
+        try
+        {
+            state.journalNarratorTime();
+            final byte[] batch = journal.drainPending();
+            if (batch.length > 0)
+            {
+                journal.append(batch);
+                LOGGER.debug("State journal appended with {} bytes", batch.length);
+            }
+            final long journalSize = journal.size();
+            if (journalSize > COMPACTION_SIZE
+                    || (journalSize > 0 && System.currentTimeMillis() - lastCompactionMillis > COMPACTION_INTERVAL_MS))
+            {
+                compactState(state, format);
+            }
+        } catch (IOException e)
+        {
+            LOGGER.error("Failed to append state journal, full snapshot will be written instead", e);
+            compactState(state, format);
+        }
+    }
+
+    private void compactState(BotState state, StateFormat format)
+    {
+        final BotState snapshot = state.snapshotForNextGeneration();
+        try
+        {
+            if (format == StateFormat.BINARY)
+            {
+                writeAtomically(STATE_BINARY_FILE_NAME, out -> BotState.BinaryAdapter.write(new DataOutputStream(out), snapshot));
+            } else
+            {
+                writeJsonAtomically(STATE_FILE_NAME, BotState.class, snapshot);
+            }
+            journal.reset(snapshot.getJournalGeneration());
+            if (format != savedStateFormat)
+            {
+                //Snapshot of the other format is outdated now and must never be loaded as a fallback
+                if (Files.deleteIfExists(getStateFile(format.getOther()))) LOGGER.info("State migrated to {} format", format.getName());
+            }
+            savedState = state;
+            savedStateFormat = format;
+            lastCompactionMillis = System.currentTimeMillis();
+            LOGGER.debug("State snapshot of journal generation {} saved as {}", snapshot.getJournalGeneration(), format.getName());
+        } catch (IOException e)
+        {
+            //Journal records since the snapshot are dropped, so the next attempt must be a snapshot too
+            savedState = null;
+            LOGGER.error("Failed to save state snapshot to file", e);
+        } catch (RuntimeException e)
+        {
+            savedState = null;
+            LOGGER.error("Failed to serialize state to json", e);
+        }
+    }
+
+    private boolean writeSettings(BotSettings settings)
+    {
+        try
+        {
+            writeJsonAtomically(SETTINGS_FILE_NAME, BotSettings.class, settings);
+            LOGGER.debug("Settings saved");
+            return true;
+        } catch (IOException e)
+        {
+            LOGGER.error("Failed to save settings to file", e);
+        } catch (RuntimeException e)
+        {
+            LOGGER.error("Failed to serialize settings to json", e);
+        }
+        return false;
+    }
+
+    private <T> void writeJsonAtomically(Path file, Class<T> type, T obj) throws IOException
+    {
+        final TypeAdapter<T> adapter = gson.getAdapter(type);
+        writeAtomically(file, out ->
+        {
+            Writer writer = newWriter(out);
+            JsonWriter jsonWriter = gson.newJsonWriter(writer);
+            adapter.write(jsonWriter, obj);
+            jsonWriter.flush();
+        });
+    }
+
+    /**
+     * Json writer makes a write call per name, value and indent. Encoder copies the chars of every call,
+     * so they are buffered to reach it in large chunks.
+     *
+     * @return buffered UTF-8 writer to the stream
+     */
+    static Writer newWriter(OutputStream out)
+    {
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    private static void writeAtomically(Path file, ContentWriter contentWriter) throws IOException
+    {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            //Not closed here: closing the stream closes the channel before it's forced
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE);
+            contentWriter.write(out);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private <T> T readJson(Path file, Class<T> type) throws IOException
+    {
+        try (JsonReader reader = gson.newJsonReader(Files.newBufferedReader(file, StandardCharsets.UTF_8)))
+        {
+            return gson.getAdapter(type).read(reader);
+        }
+    }
+
+    /**
+     * Read settings from file.
+     *
+     * @return settings or null if there is no settings file
+     * @throws IOException      if file can't be read or contains malformed json
+     * @throws RuntimeException if file contains json of unexpected structure
+     */
+    public BotSettings readSettings() throws IOException
+    {
+        if (!Files.exists(SETTINGS_FILE_NAME)) return null;
+        return readJson(SETTINGS_FILE_NAME, BotSettings.class);
+    }
+
+    /**
+     * Read state snapshot from file and replay the journal over it.
+     * Snapshot of the format selected in settings is preferred, snapshot of the other format is read if there is none.
+     *
+     * @return state or null if there is neither state snapshot nor journal file
+     * @throws IOException      if file can't be read or contains malformed json
+     * @throws RuntimeException if file contains json of unexpected structure
+     */
+    public BotState readState() throws IOException
+    {
+        final BotSettings settings = bot.getSettings();
+        StateFormat format = settings != null ? settings.getStateFormat() : StateFormat.JSON;
+        if (!Files.exists(getStateFile(format)))
+        {
+            format = format.getOther();
+            if (!Files.exists(getStateFile(format))) format = null;
+        }
+        if (format == null && !Files.exists(STATE_JOURNAL_FILE_NAME)) return null;
+
+        final BotState state;
+        if (format == StateFormat.BINARY)
+        {
+            state = readBinaryState(STATE_BINARY_FILE_NAME);
+        } else if (format == StateFormat.JSON)
+        {
+            state = readJson(STATE_FILE_NAME, BotState.class);
+        } else
+        {
+            state = new BotState();
+        }
+        final int records = journal.replay(state);
+        if (records > 0) LOGGER.info("Replayed {} state journal records", records);
+        return state;
+    }
+
+    /**
+     * Read jobs saved before restart.
+     *
+     * @return jobs, empty if there is no jobs file
+     * @throws IOException      if file can't be read or contains malformed json
+     * @throws RuntimeException if file contains json of unexpected structure
+     */
+    public List<BotJob> readJobs() throws IOException
+    {
+        final List<BotJob> jobs = new ArrayList<>();
+        if (!Files.exists(JOBS_FILE_NAME)) return jobs;
+        final TypeAdapter<BotJob> adapter = gson.getAdapter(BotJob.class);
+        try (JsonReader reader = gson.newJsonReader(Files.newBufferedReader(JOBS_FILE_NAME, StandardCharsets.UTF_8)))
+        {
+            reader.beginArray();
+            while (reader.hasNext()) jobs.add(adapter.read(reader));
+            reader.endArray();
+        }
+        return jobs;
+    }
+
+    private static Path getStateFile(StateFormat format)
+    {
+        return format == StateFormat.BINARY ? STATE_BINARY_FILE_NAME : STATE_FILE_NAME;
+    }
+
+    private static BotState readBinaryState(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return BotState.BinaryAdapter.read(buffer);
+        }
+    }
+
+    /**
+     * File format of {@link BotState} snapshot.
+     */
+    public enum StateFormat
+    {
+        JSON("json"),
+        BINARY("binary");
+
+        private final String name;
+
+        StateFormat(String name)
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public StateFormat getOther()
+        {
+            return this == JSON ? BINARY : JSON;
+        }
+
+        public static StateFormat byName(String name)
+        {
+            for (StateFormat format : values())
+            {
+                if (format.name.equals(name)) return format;
+            }
+            return null;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ContentWriter
+    {
+        void write(OutputStream out) throws IOException;
+    }
+}
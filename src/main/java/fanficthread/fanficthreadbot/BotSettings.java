@@ -1,14 +1,20 @@
 package fanficthread.fanficthreadbot;
 
-import com.google.gson.*;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents the settings of the bot.
@@ -31,6 +37,9 @@ import java.util.concurrent.ConcurrentHashMap;
  * • narratorRole - narrator role id
  * • narratorMinAudience - minimal voice channel audience to start getting narrator time.
  * • narratorActiveTime - narrator role on-user time. Default is 1 week.
+ * <p>
+ * • stateFormat - file format of {@link BotState} snapshot. Default is json.
+ * • jobRate - steps per minute of long-running bot jobs. Default is 20.
  */
 @JsonAdapter(BotSettings.JsonAdapter.class)
 public class BotSettings
@@ -55,6 +64,11 @@ public class BotSettings
     private boolean spoilerEnabled;
     private Set<Long> spolierWhitelist = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
+    private BotPersistence.StateFormat stateFormat = BotPersistence.StateFormat.JSON;
+    private int jobRate = 20;
+
+    private final AtomicLong version = new AtomicLong();
+
     public BotSettings()
     {
     }
@@ -73,11 +87,13 @@ public class BotSettings
     {
         if (channel == null) throw new IllegalArgumentException("Announcement channel can't be null");
         announcementChannels.put(channel.getChannelId(), channel);
+        markModified();
     }
 
     public void removeAnnouncementChannel(long channelID)
     {
         announcementChannels.remove(channelID);
+        markModified();
     }
 
     public Collection<AnnouncementChannel> getAnnouncementChannels()
@@ -88,6 +104,7 @@ public class BotSettings
     public void clearAnnouncementChannels()
     {
         announcementChannels.clear();
+        markModified();
     }
 
     public boolean isMemberVoteEnabled()
@@ -98,6 +115,7 @@ public class BotSettings
     public void setMemberVoteEnabled(boolean memberVoteEnabled)
     {
         this.memberVoteEnabled = memberVoteEnabled;
+        markModified();
     }
 
     public long getMemberVoteChannel()
@@ -108,6 +126,7 @@ public class BotSettings
     public void setMemberVoteChannel(long memberVoteChannel)
     {
         this.memberVoteChannel = memberVoteChannel;
+        markModified();
     }
 
     public long getMemberVoteReactionUpvote()
@@ -118,6 +137,7 @@ public class BotSettings
     public void setMemberVoteReactionUpvote(long memberVoteReactionUpvote)
     {
         this.memberVoteReactionUpvote = memberVoteReactionUpvote;
+        markModified();
     }
 
     public long getMemberVoteReactionDownvote()
@@ -128,6 +148,7 @@ public class BotSettings
     public void setMemberVoteReactionDownvote(long memberVoteReactionDownvote)
     {
         this.memberVoteReactionDownvote = memberVoteReactionDownvote;
+        markModified();
     }
 
     public int getMemberVotesRequired()
@@ -138,6 +159,7 @@ public class BotSettings
     public void setMemberVotesRequired(int memberVoteRequired)
     {
         this.memberVotesRequired = memberVoteRequired;
+        markModified();
     }
 
     public int getMemberVoteTimeout()
@@ -148,6 +170,7 @@ public class BotSettings
     public void setMemberVoteTimeout(int memberVoteTimeout)
     {
         this.memberVoteTimeout = memberVoteTimeout;
+        markModified();
     }
 
     public long getMemberRole()
@@ -158,16 +181,19 @@ public class BotSettings
     public void setMemberRole(long memberRole)
     {
         this.memberRole = memberRole;
+        markModified();
     }
 
     public void addMemberAdditionalRole(long role)
     {
         memberAdditionalRoles.add(role);
+        markModified();
     }
 
     public void removeMemberAdditionalRole(long role)
     {
         memberAdditionalRoles.remove(role);
+        markModified();
     }
 
     public Set<Long> getMemberAdditionalRoles()
@@ -183,6 +209,7 @@ public class BotSettings
     public void clearMemberAdditionalRoles()
     {
         memberAdditionalRoles.clear();
+        markModified();
     }
 
     public boolean isNarratorEnabled()
@@ -193,6 +220,7 @@ public class BotSettings
     public void setNarratorEnabled(boolean narratorEnabled)
     {
         this.narratorEnabled = narratorEnabled;
+        markModified();
     }
 
     public long getNarratorRecorder()
@@ -203,6 +231,7 @@ public class BotSettings
     public void setNarratorRecorder(long narratorRecorder)
     {
         this.narratorRecorder = narratorRecorder;
+        markModified();
     }
 
     public long getNarratorRole()
@@ -214,6 +243,7 @@ public class BotSettings
     {
 
         this.narratorRole = narratorRole;
+        markModified();
     }
 
     public int getNarratorMinAudience()
@@ -226,6 +256,7 @@ public class BotSettings
         if (narratorMinAudience < 0)
             throw new IllegalArgumentException("Narrator min audience can't be lower than 0");
         this.narratorMinAudience = narratorMinAudience;
+        markModified();
     }
 
     public int getNarratorActiveTime()
@@ -238,6 +269,7 @@ public class BotSettings
         if (narratorActiveTime < 0)
             throw new IllegalArgumentException("Narrator active time can't be lower than 0");
         this.narratorActiveTime = narratorActiveTime;
+        markModified();
     }
 
     /**
@@ -259,6 +291,7 @@ public class BotSettings
     public void setSpoilerEnabled(boolean spoilerEnabled)
     {
         this.spoilerEnabled = spoilerEnabled;
+        markModified();
     }
 
     public Set<Long> getSpolierWhitelist()
@@ -274,14 +307,59 @@ public class BotSettings
     public void addToSpoilerWhitelist(long id)
     {
         spolierWhitelist.add(id);
+        markModified();
     }
 
     public void removeFromSpoilerWhitelist(long id)
     {
         spolierWhitelist.remove(id);
+        markModified();
+    }
+
+    public BotPersistence.StateFormat getStateFormat()
+    {
+        return stateFormat;
+    }
+
+    public void setStateFormat(BotPersistence.StateFormat stateFormat)
+    {
+        if (stateFormat == null) throw new IllegalArgumentException("State format can't be null");
+        this.stateFormat = stateFormat;
+        markModified();
+    }
+
+    public int getJobRate()
+    {
+        return jobRate;
+    }
+
+    public void setJobRate(int jobRate)
+    {
+        if (jobRate <= 0) throw new IllegalArgumentException("Job rate must be positive");
+        this.jobRate = jobRate;
+        markModified();
+    }
+
+    /**
+     * Get the version of settings, incremented on every change.
+     * Used by {@link BotPersistence} to find out if settings need to be saved.
+     *
+     * @return current version
+     */
+    public long getVersion()
+    {
+        return version.get();
+    }
+
+    /**
+     * Mark settings as changed. Should be called after changing a nested object in-place.
+     */
+    public void markModified()
+    {
+        version.incrementAndGet();
     }
 
-    public static class JsonAdapter implements JsonSerializer<BotSettings>, JsonDeserializer<BotSettings>
+    public static class JsonAdapter extends TypeAdapter<BotSettings>
     {
         private static final String NAME_ANNOUNCEMENT_CHANNELS_ARRAY = "announcement_channels";
 
@@ -305,124 +383,172 @@ public class BotSettings
         private static final String NAME_SPOILER_ENABLED = "spoiler_enabled";
         private static final String NAME_SPOILER_WHITELIST = "spoiler_whitelist";
 
+        private static final String NAME_STATE_FORMAT = "state_format";
+        private static final String NAME_JOB_RATE = "job_rate";
+
+        private static final AnnouncementChannel.JsonAdapter ANNOUNCEMENT_CHANNEL_ADAPTER = new AnnouncementChannel.JsonAdapter();
+
         @Override
-        public JsonElement serialize(BotSettings obj, Type type, JsonSerializationContext context)
+        public void write(JsonWriter out, BotSettings obj) throws IOException
         {
-            JsonObject json = new JsonObject();
+            out.beginObject();
 
-            JsonArray announcementChannels = new JsonArray();
+            out.name(NAME_ANNOUNCEMENT_CHANNELS_ARRAY).beginArray();
             for (AnnouncementChannel ac : obj.getAnnouncementChannels())
-                announcementChannels.add(context.serialize(ac, AnnouncementChannel.class));
-            json.add(NAME_ANNOUNCEMENT_CHANNELS_ARRAY, announcementChannels);
-
-            JsonObject memberVote = new JsonObject();
-            memberVote.addProperty(NAME_MEMBER_VOTE_OBJECT_ENABLED, obj.isMemberVoteEnabled());
-            memberVote.addProperty(NAME_MEMBER_VOTE_OBJECT_CHANNEL, obj.getMemberVoteChannel());
-            memberVote.addProperty(NAME_MEMBER_VOTE_OBJECT_REACTION_UPVOTE, obj.getMemberVoteReactionUpvote());
-            memberVote.addProperty(NAME_MEMBER_VOTE_OBJECT_REACTION_DOWNVOTE, obj.getMemberVoteReactionDownvote());
-            memberVote.addProperty(NAME_MEMBER_VOTE_OBJECT_VOTES_REQUIRED, obj.getMemberVotesRequired());
-            memberVote.addProperty(NAME_MEMBER_VOTE_OBJECT_TIMEOUT, obj.getMemberVoteTimeout());
-            memberVote.addProperty(NAME_MEMBER_VOTE_OBJECT_ROLE, obj.getMemberRole());
-            JsonArray additionalRoles = new JsonArray();
-            for (long ar : obj.getMemberAdditionalRoles()) additionalRoles.add(ar);
-            memberVote.add(NAME_MEMBER_VOTE_OBJECT_ADDITIONAL_ROLES_ARRAY, additionalRoles);
-            json.add(NAME_MEMBER_VOTE_OBJECT, memberVote);
-
-            JsonObject narrator = new JsonObject();
-            narrator.addProperty(NAME_MEMBER_NARRATOR_OBJECT_ENABLED, obj.isNarratorEnabled());
-            narrator.addProperty(NAME_MEMBER_NARRATOR_OBJECT_RECORDER, obj.getNarratorRecorder());
-            narrator.addProperty(NAME_MEMBER_NARRATOR_OBJECT_ROLE, obj.getNarratorRole());
-            narrator.addProperty(NAME_MEMBER_NARRATOR_OBJECT_MIN_AUDIENCE, obj.getNarratorMinAudience());
-            narrator.addProperty(NAME_MEMBER_NARRATOR_OBJECT_ACTIVE_TIME, obj.getNarratorActiveTime());
-            json.add(NAME_MEMBER_NARRATOR_OBJECT, narrator);
-
-            json.addProperty(NAME_SPOILER_ENABLED, obj.isSpoilerEnabled());
-            JsonArray spoilerWhitelist = new JsonArray();
+                ANNOUNCEMENT_CHANNEL_ADAPTER.write(out, ac);
+            out.endArray();
+
+            out.name(NAME_MEMBER_VOTE_OBJECT).beginObject();
+            out.name(NAME_MEMBER_VOTE_OBJECT_ENABLED).value(obj.isMemberVoteEnabled());
+            out.name(NAME_MEMBER_VOTE_OBJECT_CHANNEL).value(obj.getMemberVoteChannel());
+            out.name(NAME_MEMBER_VOTE_OBJECT_REACTION_UPVOTE).value(obj.getMemberVoteReactionUpvote());
+            out.name(NAME_MEMBER_VOTE_OBJECT_REACTION_DOWNVOTE).value(obj.getMemberVoteReactionDownvote());
+            out.name(NAME_MEMBER_VOTE_OBJECT_VOTES_REQUIRED).value(obj.getMemberVotesRequired());
+            out.name(NAME_MEMBER_VOTE_OBJECT_TIMEOUT).value(obj.getMemberVoteTimeout());
+            out.name(NAME_MEMBER_VOTE_OBJECT_ROLE).value(obj.getMemberRole());
+            out.name(NAME_MEMBER_VOTE_OBJECT_ADDITIONAL_ROLES_ARRAY).beginArray();
+            for (long ar : obj.getMemberAdditionalRoles()) out.value(ar);
+            out.endArray();
+            out.endObject();
+
+            out.name(NAME_MEMBER_NARRATOR_OBJECT).beginObject();
+            out.name(NAME_MEMBER_NARRATOR_OBJECT_ENABLED).value(obj.isNarratorEnabled());
+            out.name(NAME_MEMBER_NARRATOR_OBJECT_RECORDER).value(obj.getNarratorRecorder());
+            out.name(NAME_MEMBER_NARRATOR_OBJECT_ROLE).value(obj.getNarratorRole());
+            out.name(NAME_MEMBER_NARRATOR_OBJECT_MIN_AUDIENCE).value(obj.getNarratorMinAudience());
+            out.name(NAME_MEMBER_NARRATOR_OBJECT_ACTIVE_TIME).value(obj.getNarratorActiveTime());
+            out.endObject();
+
+            out.name(NAME_SPOILER_ENABLED).value(obj.isSpoilerEnabled());
+            out.name(NAME_SPOILER_WHITELIST).beginArray();
             for (long id : obj.getSpolierWhitelist())
             {
-                spoilerWhitelist.add(id);
+                out.value(id);
             }
-            json.add(NAME_SPOILER_WHITELIST, spoilerWhitelist);
+            out.endArray();
+
+            out.name(NAME_STATE_FORMAT).value(obj.getStateFormat().getName());
+            out.name(NAME_JOB_RATE).value(obj.getJobRate());
 
-            return json;
+            out.endObject();
         }
 
         @Override
-        public BotSettings deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext context) throws JsonParseException
+        public BotSettings read(JsonReader in) throws IOException
         {
-            JsonObject json = jsonElement.getAsJsonObject();
             BotSettings obj = new BotSettings();
 
-            JsonArray announcementChannels = json.getAsJsonArray(NAME_ANNOUNCEMENT_CHANNELS_ARRAY);
-            if (announcementChannels != null)
+            in.beginObject();
+            while (in.hasNext())
             {
-                AnnouncementChannel[] announcementChannelsArr = context.deserialize(announcementChannels, AnnouncementChannel[].class);
-                if (announcementChannelsArr != null)
+                switch (in.nextName())
                 {
-                    for (AnnouncementChannel ac : announcementChannelsArr) obj.addAnnouncementChannel(ac);
-                }
-            }
-
-            JsonObject memberVote = json.getAsJsonObject(NAME_MEMBER_VOTE_OBJECT);
-            if (memberVote != null)
-            {
-                JsonElement enabled = memberVote.get(NAME_MEMBER_VOTE_OBJECT_ENABLED);
-                if (enabled != null) obj.setMemberVoteEnabled(enabled.getAsBoolean());
-                JsonElement channel = memberVote.get(NAME_MEMBER_VOTE_OBJECT_CHANNEL);
-                if (channel != null) obj.setMemberVoteChannel(channel.getAsLong());
-                JsonElement reactionUpvote = memberVote.get(NAME_MEMBER_VOTE_OBJECT_REACTION_UPVOTE);
-                if (reactionUpvote != null) obj.setMemberVoteReactionUpvote(reactionUpvote.getAsLong());
-                JsonElement reactionDownvote = memberVote.get(NAME_MEMBER_VOTE_OBJECT_REACTION_DOWNVOTE);
-                if (reactionDownvote != null) obj.setMemberVoteReactionDownvote(reactionDownvote.getAsLong());
-                JsonElement votesRequired = memberVote.get(NAME_MEMBER_VOTE_OBJECT_VOTES_REQUIRED);
-                if (votesRequired != null) obj.setMemberVotesRequired(votesRequired.getAsInt());
-                JsonElement timeout = memberVote.get(NAME_MEMBER_VOTE_OBJECT_TIMEOUT);
-                if (timeout != null) obj.setMemberVoteTimeout(timeout.getAsInt());
-                JsonElement role = memberVote.get(NAME_MEMBER_VOTE_OBJECT_ROLE);
-                if (role != null) obj.setMemberRole(role.getAsLong());
-
-                JsonArray additionalRoles = memberVote.getAsJsonArray(NAME_MEMBER_VOTE_OBJECT_ADDITIONAL_ROLES_ARRAY);
-                if (additionalRoles != null)
-                {
-                    long[] additionalRolesArr = context.deserialize(additionalRoles, long[].class);
-                    if (additionalRolesArr != null)
+                    case NAME_ANNOUNCEMENT_CHANNELS_ARRAY:
+                        in.beginArray();
+                        while (in.hasNext()) obj.addAnnouncementChannel(ANNOUNCEMENT_CHANNEL_ADAPTER.read(in));
+                        in.endArray();
+                        break;
+                    case NAME_MEMBER_VOTE_OBJECT:
+                        readMemberVote(in, obj);
+                        break;
+                    case NAME_MEMBER_NARRATOR_OBJECT:
+                        readNarrator(in, obj);
+                        break;
+                    case NAME_SPOILER_ENABLED:
+                        obj.setSpoilerEnabled(in.nextBoolean());
+                        break;
+                    case NAME_SPOILER_WHITELIST:
+                        in.beginArray();
+                        while (in.hasNext()) obj.addToSpoilerWhitelist(in.nextLong());
+                        in.endArray();
+                        break;
+                    case NAME_STATE_FORMAT:
                     {
-                        for (long ar : additionalRolesArr) obj.addMemberAdditionalRole(ar);
+                        final String name = in.nextString();
+                        BotPersistence.StateFormat stateFormat = BotPersistence.StateFormat.byName(name);
+                        if (stateFormat == null) throw new JsonParseException("Unknown state format " + name);
+                        obj.setStateFormat(stateFormat);
+                        break;
                     }
+                    case NAME_JOB_RATE:
+                        obj.setJobRate(in.nextInt());
+                        break;
+                    default:
+                        in.skipValue();
                 }
             }
+            in.endObject();
 
-            JsonObject narrator = json.getAsJsonObject(NAME_MEMBER_NARRATOR_OBJECT);
-            if (narrator != null)
-            {
-                JsonElement enabled = narrator.get(NAME_MEMBER_NARRATOR_OBJECT_ENABLED);
-                if (enabled != null) obj.setNarratorEnabled(enabled.getAsBoolean());
-                JsonElement recorder = narrator.get(NAME_MEMBER_NARRATOR_OBJECT_RECORDER);
-                if (recorder != null) obj.setNarratorRecorder(recorder.getAsLong());
-                JsonElement role = narrator.get(NAME_MEMBER_NARRATOR_OBJECT_ROLE);
-                if (role != null) obj.setNarratorRole(role.getAsLong());
-                JsonElement minAudience = narrator.get(NAME_MEMBER_NARRATOR_OBJECT_MIN_AUDIENCE);
-                if (minAudience != null) obj.setNarratorMinAudience(minAudience.getAsInt());
-                JsonElement activeTime = narrator.get(NAME_MEMBER_NARRATOR_OBJECT_ACTIVE_TIME);
-                if (activeTime != null) obj.setNarratorActiveTime(activeTime.getAsInt());
-            }
+            return obj;
+        }
 
-            JsonElement spoilerEnabledJson = json.get(NAME_SPOILER_ENABLED);
-            if (spoilerEnabledJson != null)
+        private static void readMemberVote(JsonReader in, BotSettings obj) throws IOException
+        {
+            in.beginObject();
+            while (in.hasNext())
             {
-                obj.setSpoilerEnabled(spoilerEnabledJson.getAsBoolean());
+                switch (in.nextName())
+                {
+                    case NAME_MEMBER_VOTE_OBJECT_ENABLED:
+                        obj.setMemberVoteEnabled(in.nextBoolean());
+                        break;
+                    case NAME_MEMBER_VOTE_OBJECT_CHANNEL:
+                        obj.setMemberVoteChannel(in.nextLong());
+                        break;
+                    case NAME_MEMBER_VOTE_OBJECT_REACTION_UPVOTE:
+                        obj.setMemberVoteReactionUpvote(in.nextLong());
+                        break;
+                    case NAME_MEMBER_VOTE_OBJECT_REACTION_DOWNVOTE:
+                        obj.setMemberVoteReactionDownvote(in.nextLong());
+                        break;
+                    case NAME_MEMBER_VOTE_OBJECT_VOTES_REQUIRED:
+                        obj.setMemberVotesRequired(in.nextInt());
+                        break;
+                    case NAME_MEMBER_VOTE_OBJECT_TIMEOUT:
+                        obj.setMemberVoteTimeout(in.nextInt());
+                        break;
+                    case NAME_MEMBER_VOTE_OBJECT_ROLE:
+                        obj.setMemberRole(in.nextLong());
+                        break;
+                    case NAME_MEMBER_VOTE_OBJECT_ADDITIONAL_ROLES_ARRAY:
+                        in.beginArray();
+                        while (in.hasNext()) obj.addMemberAdditionalRole(in.nextLong());
+                        in.endArray();
+                        break;
+                    default:
+                        in.skipValue();
+                }
             }
-            JsonArray spoilerWhitelist = json.getAsJsonArray(NAME_SPOILER_WHITELIST);
-            if (spoilerWhitelist != null)
+            in.endObject();
+        }
+
+        private static void readNarrator(JsonReader in, BotSettings obj) throws IOException
+        {
+            in.beginObject();
+            while (in.hasNext())
             {
-                long[] spoilerWhitelistArr = context.deserialize(spoilerWhitelist, long[].class);
-                if (spoilerWhitelistArr != null)
+                switch (in.nextName())
                 {
-                    for (long id : spoilerWhitelistArr) obj.addToSpoilerWhitelist(id);
+                    case NAME_MEMBER_NARRATOR_OBJECT_ENABLED:
+                        obj.setNarratorEnabled(in.nextBoolean());
+                        break;
+                    case NAME_MEMBER_NARRATOR_OBJECT_RECORDER:
+                        obj.setNarratorRecorder(in.nextLong());
+                        break;
+                    case NAME_MEMBER_NARRATOR_OBJECT_ROLE:
+                        obj.setNarratorRole(in.nextLong());
+                        break;
+                    case NAME_MEMBER_NARRATOR_OBJECT_MIN_AUDIENCE:
+                        obj.setNarratorMinAudience(in.nextInt());
+                        break;
+                    case NAME_MEMBER_NARRATOR_OBJECT_ACTIVE_TIME:
+                        obj.setNarratorActiveTime(in.nextInt());
+                        break;
+                    default:
+                        in.skipValue();
                 }
             }
-
-            return obj;
+            in.endObject();
         }
     }
 }
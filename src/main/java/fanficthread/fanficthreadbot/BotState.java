@@ -1,12 +1,16 @@
 package fanficthread.fanficthreadbot;
 
-import com.google.gson.*;
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
-import java.lang.reflect.Type;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents the state of the bot aka everything that's not settings.
@@ -15,9 +19,15 @@ import java.util.concurrent.ConcurrentHashMap;
 @JsonAdapter(BotState.JsonAdapter.class)
 public class BotState
 {
-    private Map<Long, Narrator> narrators = new ConcurrentHashMap<>();
-    private Map<Long, MemberPoll> memberPollsByMessage = new ConcurrentHashMap<>();
-    private Map<Long, MemberPoll> memberPollsByUser = new ConcurrentHashMap<>();
+    private final NarratorLedger narrators = new NarratorLedger();
+    private final LongConcurrentMap<MemberPoll> memberPollsByMessage = new LongConcurrentMap<>();
+    private final LongConcurrentMap<MemberPoll> memberPollsByUser = new LongConcurrentMap<>();
+
+    //Mutations and their journal records are done under this lock, so journal order matches the state.
+    //Narrator time increments are the exception: they are lock-free and journaled in batches, see journalNarratorTime
+    private final Object mutationLock = new Object();
+    private BotStateJournal journal;
+    private long journalGeneration;
 
     public BotState()
     {
@@ -25,12 +35,20 @@ public class BotState
 
     public void addNarrator(Narrator narrator)
     {
-        narrators.put(narrator.getId(), narrator);
+        synchronized (mutationLock)
+        {
+            narrators.setTime(narrator.getId(), narrator.getTime());
+            if (journal != null) journal.narratorTimeSet(narrator.getId(), narrator.getTime());
+        }
     }
 
     public void removeNarrator(Narrator narrator)
     {
-        narrators.remove(narrator.getId());
+        synchronized (mutationLock)
+        {
+            narrators.remove(narrator.getId());
+            if (journal != null) journal.narratorRemoved(narrator.getId());
+        }
     }
 
     public Narrator getNarrator(long user)
@@ -38,31 +56,150 @@ public class BotState
         return narrators.get(user);
     }
 
-    public Narrator getOrCreateNarrator(long user)
+    /**
+     * @param user narrator user id
+     * @return narrated time in seconds, 0 if user is not a narrator
+     */
+    public int getNarratorTime(long user)
+    {
+        return narrators.getTime(user);
+    }
+
+    /**
+     * Add narrated time to the user, creating narrator if needed.
+     * Doesn't take the state lock: the increment is lock-free and is journaled by the next
+     * {@link #journalNarratorTime()}.
+     *
+     * @param user    narrator user id
+     * @param seconds seconds to add
+     * @return new narrated time
+     */
+    public int addNarratorTime(long user, int seconds)
     {
-        return narrators.computeIfAbsent(user, Narrator::new);
+        return narrators.addTime(user, seconds);
     }
 
+    /**
+     * Set narrated time of the user, creating narrator if needed.
+     *
+     * @param user    narrator user id
+     * @param seconds new time in seconds
+     */
+    public void setNarratorTime(long user, int seconds)
+    {
+        synchronized (mutationLock)
+        {
+            narrators.setTime(user, seconds);
+            if (journal != null) journal.narratorTimeSet(user, seconds);
+        }
+    }
+
+    /**
+     * @return snapshot of all narrators
+     */
     public Collection<Narrator> getNarrators()
     {
-        return narrators.values();
+        return narrators.snapshot();
+    }
+
+    /**
+     * @return narrators ordered by time, up to date with every change before the call
+     */
+    public NarratorLeaderboard getNarratorLeaderboard()
+    {
+        return narrators.getLeaderboard();
     }
 
     public void clearNarrators()
     {
-        narrators.clear();
+        synchronized (mutationLock)
+        {
+            narrators.clear();
+            if (journal != null) journal.narratorsCleared();
+        }
     }
 
     public void addMemberPoll(MemberPoll poll)
     {
-        memberPollsByMessage.put(poll.getMessageId(), poll);
-        memberPollsByUser.put(poll.getUserId(), poll);
+        synchronized (mutationLock)
+        {
+            memberPollsByMessage.put(poll.getMessageId(), poll);
+            memberPollsByUser.put(poll.getUserId(), poll);
+            if (journal != null) journal.memberPollAdded(poll);
+        }
     }
 
-    public void removeMemberPoll(MemberPoll poll)
+    /**
+     * Remove the poll if it's still in the state.
+     * Concurrent removers of the same poll get true only once, so only one of them cleans up after the poll.
+     *
+     * @return false if the poll was already removed
+     */
+    public boolean removeMemberPoll(MemberPoll poll)
     {
-        memberPollsByMessage.remove(poll.getMessageId());
-        memberPollsByUser.remove(poll.getUserId());
+        synchronized (mutationLock)
+        {
+            if (!memberPollsByMessage.remove(poll.getMessageId(), poll)) return false;
+            memberPollsByUser.remove(poll.getUserId(), poll);
+            if (journal != null) journal.memberPollRemoved(poll);
+            return true;
+        }
+    }
+
+    /**
+     * Record a vote in the poll voter ledger.
+     *
+     * @param timestamp vote time in epoch seconds
+     */
+    public void addMemberPollVote(MemberPoll poll, long userId, boolean upvote, long timestamp)
+    {
+        synchronized (mutationLock)
+        {
+            poll.getTally().addVote(userId, upvote, timestamp);
+            if (journal != null) journal.memberPollVoteAdded(poll.getMessageId(), userId, upvote, timestamp);
+        }
+    }
+
+    public void removeMemberPollVote(MemberPoll poll, long userId, boolean upvote)
+    {
+        synchronized (mutationLock)
+        {
+            poll.getTally().removeVote(userId, upvote);
+            if (journal != null) journal.memberPollVoteRemoved(poll.getMessageId(), userId, upvote);
+        }
+    }
+
+    public void clearMemberPollVotes(MemberPoll poll)
+    {
+        synchronized (mutationLock)
+        {
+            poll.getTally().clear();
+            if (journal != null) journal.memberPollVotesCleared(poll.getMessageId());
+        }
+    }
+
+    /**
+     * Finish reconciliation of the poll voter ledger started with {@link MemberPollTally#beginReconcile()}.
+     *
+     * @param upvoters   fetched upvoters, null to keep the current ones
+     * @param downvoters fetched downvoters, null to keep the current ones
+     * @param timestamp  vote time of the voters that are not in the ledger yet, in epoch seconds
+     */
+    public void reconcileMemberPollVotes(MemberPoll poll, Collection<Long> upvoters, Collection<Long> downvoters, long timestamp)
+    {
+        synchronized (mutationLock)
+        {
+            final MemberPollTally tally = poll.getTally();
+            tally.finishReconcile(upvoters, downvoters, timestamp);
+            if (journal == null) return;
+            //Ledger is replaced as a whole, journal it as such
+            final long messageId = poll.getMessageId();
+            journal.memberPollVotesCleared(messageId);
+            for (Map.Entry<Long, Long> voter : tally.getUpvoters().entrySet())
+                journal.memberPollVoteAdded(messageId, voter.getKey(), true, voter.getValue());
+            for (Map.Entry<Long, Long> voter : tally.getDownvoters().entrySet())
+                journal.memberPollVoteAdded(messageId, voter.getKey(), false, voter.getValue());
+        }
     }
 
     public MemberPoll getMemberPollByMessage(long msgId)
@@ -75,6 +212,9 @@ public class BotState
         return memberPollsByUser.get(userId);
     }
 
+    /**
+     * @return snapshot of all member polls
+     */
     public Collection<MemberPoll> getMemberPolls()
     {
         return memberPollsByMessage.values();
@@ -82,64 +222,263 @@ public class BotState
 
     public void clearMemberPolls()
     {
-        memberPollsByMessage.clear();
-        memberPollsByUser.clear();
+        synchronized (mutationLock)
+        {
+            memberPollsByMessage.clear();
+            memberPollsByUser.clear();
+            if (journal != null) journal.memberPollsCleared();
+        }
+    }
+
+    long getJournalGeneration()
+    {
+        return journalGeneration;
+    }
+
+    /**
+     * Start recording all further changes into the journal.
+     *
+     * @param journal journal to record to
+     */
+    void attachJournal(BotStateJournal journal)
+    {
+        synchronized (mutationLock)
+        {
+            //Time added before, e.g. by journal replay, is already in the state the journal continues
+            narrators.drainUnjournaled((id, seconds) ->
+            {
+            });
+            this.journal = journal;
+        }
     }
 
-    public static class JsonAdapter implements JsonSerializer<BotState>, JsonDeserializer<BotState>
+    /**
+     * Record narrated time added since the last call into the journal.
+     * Under the state lock, so the records are ordered with time sets and removals of the same narrators.
+     */
+    void journalNarratorTime()
+    {
+        synchronized (mutationLock)
+        {
+            if (journal != null) narrators.drainUnjournaled(journal::narratorTimeAdded);
+        }
+    }
+
+    /**
+     * Atomically copy the state and switch to the next journal generation.
+     * Not yet written journal records are dropped since the copy already includes them.
+     *
+     * @return copy of the state with the new journal generation, to be written as snapshot
+     */
+    BotState snapshotForNextGeneration()
+    {
+        synchronized (mutationLock)
+        {
+            BotState snapshot = new BotState();
+            //Increments after the copy of a narrator stay not journaled and go to the next generation
+            for (Narrator narrator : narrators.snapshotJournaled())
+                snapshot.narrators.setTime(narrator.getId(), narrator.getTime());
+            //Polls are copied since their voter ledgers keep changing after the lock is released
+            for (MemberPoll poll : memberPollsByMessage.values())
+            {
+                MemberPoll copy = poll.copy();
+                snapshot.memberPollsByMessage.put(copy.getMessageId(), copy);
+                snapshot.memberPollsByUser.put(copy.getUserId(), copy);
+            }
+
+            journalGeneration++;
+            snapshot.journalGeneration = journalGeneration;
+            if (journal != null) journal.discardPending();
+            return snapshot;
+        }
+    }
+
+    public static class JsonAdapter extends TypeAdapter<BotState>
     {
         private static final String NAME_NARRATORS_ARRAY = "narrators";
         private static final String NAME_MEMBER_POLLS_ARRAY = "member_polls";
+        private static final String NAME_JOURNAL_GENERATION = "journal_generation";
+
+        private static final Narrator.JsonAdapter NARRATOR_ADAPTER = new Narrator.JsonAdapter();
+        private static final MemberPoll.JsonAdapter MEMBER_POLL_ADAPTER = new MemberPoll.JsonAdapter();
 
         @Override
-        public JsonElement serialize(BotState obj, Type type, JsonSerializationContext context)
+        public void write(JsonWriter out, BotState obj) throws IOException
         {
-            JsonObject json = new JsonObject();
+            out.beginObject();
 
-            JsonArray narratorArray = new JsonArray();
+            out.name(NAME_NARRATORS_ARRAY).beginArray();
             for (Narrator narrator : obj.getNarrators())
             {
-                narratorArray.add(context.serialize(narrator, Narrator.class));
+                NARRATOR_ADAPTER.write(out, narrator);
             }
-            json.add(NAME_NARRATORS_ARRAY, narratorArray);
+            out.endArray();
 
-            JsonArray memberPollsArray = new JsonArray();
+            out.name(NAME_MEMBER_POLLS_ARRAY).beginArray();
             for (MemberPoll memberPoll : obj.getMemberPolls())
             {
-                memberPollsArray.add(context.serialize(memberPoll, MemberPoll.class));
+                MEMBER_POLL_ADAPTER.write(out, memberPoll);
             }
-            json.add(NAME_MEMBER_POLLS_ARRAY, memberPollsArray);
+            out.endArray();
+
+            out.name(NAME_JOURNAL_GENERATION).value(obj.getJournalGeneration());
 
-            return json;
+            out.endObject();
         }
 
         @Override
-        public BotState deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext context) throws JsonParseException
+        public BotState read(JsonReader in) throws IOException
         {
-            JsonObject json = jsonElement.getAsJsonObject();
             BotState obj = new BotState();
 
-            JsonArray narratorArray = json.getAsJsonArray(NAME_NARRATORS_ARRAY);
-            if (narratorArray != null)
+            in.beginObject();
+            while (in.hasNext())
             {
-                Narrator[] narratorsDes = context.deserialize(narratorArray, Narrator[].class);
-                if (narratorsDes != null)
+                switch (in.nextName())
                 {
-                    for (Narrator narrator : narratorsDes) obj.addNarrator(narrator);
+                    case NAME_NARRATORS_ARRAY:
+                        in.beginArray();
+                        while (in.hasNext()) obj.addNarrator(NARRATOR_ADAPTER.read(in));
+                        in.endArray();
+                        break;
+                    case NAME_MEMBER_POLLS_ARRAY:
+                        in.beginArray();
+                        while (in.hasNext()) obj.addMemberPoll(MEMBER_POLL_ADAPTER.read(in));
+                        in.endArray();
+                        break;
+                    case NAME_JOURNAL_GENERATION:
+                        obj.journalGeneration = in.nextLong();
+                        break;
+                    default:
+                        in.skipValue();
                 }
             }
+            in.endObject();
+
+            return obj;
+        }
+    }
+
+    /**
+     * Compact fixed-width binary encoding of the state, big-endian.
+     * <p>
+     * Format: int magic, int format version, long journal generation,
+     * int narrator count, narrators as long id and int time,
+     * int member poll count, member polls as long message id, long user id, long creation timestamp
+     * and two voter lists (upvoters, then downvoters) as int count and pairs of long user id and long vote timestamp.
+     * Version 1 has no voter lists.
+     */
+    public static final class BinaryAdapter
+    {
+        private static final int MAGIC = 0x46545342; //FTSB
+        private static final int FORMAT_VERSION = 2;
+        private static final int FORMAT_VERSION_NO_VOTERS = 1;
+        private static final int NARRATOR_SIZE = 12;
+        private static final int MEMBER_POLL_SIZE = 24;
+        private static final int VOTER_LISTS_SIZE = 8;
+        private static final int VOTER_SIZE = 16;
+
+        private BinaryAdapter()
+        {
+        }
+
+        public static void write(DataOutput out, BotState obj) throws IOException
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(obj.getJournalGeneration());
+
+            final Collection<Narrator> narrators = obj.getNarrators();
+            out.writeInt(narrators.size());
+            for (Narrator narrator : narrators)
+            {
+                out.writeLong(narrator.getId());
+                out.writeInt(narrator.getTime());
+            }
+
+            final Collection<MemberPoll> memberPolls = obj.getMemberPolls();
+            out.writeInt(memberPolls.size());
+            for (MemberPoll memberPoll : memberPolls)
+            {
+                out.writeLong(memberPoll.getMessageId());
+                out.writeLong(memberPoll.getUserId());
+                out.writeLong(memberPoll.getTimestampCreated());
+                writeVoters(out, memberPoll.getTally().getUpvoters());
+                writeVoters(out, memberPoll.getTally().getDownvoters());
+            }
+        }
+
+        private static void writeVoters(DataOutput out, Map<Long, Long> voters) throws IOException
+        {
+            out.writeInt(voters.size());
+            for (Map.Entry<Long, Long> voter : voters.entrySet())
+            {
+                out.writeLong(voter.getKey());
+                out.writeLong(voter.getValue());
+            }
+        }
+
+        private static void readVoters(ByteBuffer buffer, MemberPollTally tally, boolean upvote) throws IOException
+        {
+            final int count = buffer.getInt();
+            if (count < 0 || (long) count * VOTER_SIZE > buffer.remaining())
+                throw new IOException("Binary state has invalid voter count " + count);
+            for (int i = 0; i < count; i++)
+            {
+                tally.addVote(buffer.getLong(), upvote, buffer.getLong());
+            }
+        }
 
-            JsonArray memberPollsArray = json.getAsJsonArray(NAME_MEMBER_POLLS_ARRAY);
-            if (memberPollsArray != null)
+        /**
+         * Read the state in a single pass.
+         *
+         * @param buffer buffer positioned at the start of the encoded state, e.g. memory-mapped file
+         * @return read state
+         * @throws IOException if the data has invalid header or is truncated
+         */
+        public static BotState read(ByteBuffer buffer) throws IOException
+        {
+            try
             {
-                MemberPoll[] memberPollsDes = context.deserialize(memberPollsArray, MemberPoll[].class);
-                if (memberPollsDes != null)
+                if (buffer.getInt() != MAGIC) throw new IOException("Binary state has invalid header");
+                final int formatVersion = buffer.getInt();
+                if (formatVersion != FORMAT_VERSION && formatVersion != FORMAT_VERSION_NO_VOTERS)
+                    throw new IOException("Binary state has unsupported format version " + formatVersion);
+                final boolean hasVoters = formatVersion != FORMAT_VERSION_NO_VOTERS;
+
+                BotState obj = new BotState();
+                obj.journalGeneration = buffer.getLong();
+
+                final int narratorCount = buffer.getInt();
+                if (narratorCount < 0 || (long) narratorCount * NARRATOR_SIZE > buffer.remaining())
+                    throw new IOException("Binary state has invalid narrator count " + narratorCount);
+                for (int i = 0; i < narratorCount; i++)
                 {
-                    for (MemberPoll memberPoll : memberPollsDes) obj.addMemberPoll(memberPoll);
+                    final long id = buffer.getLong();
+                    final int time = buffer.getInt();
+                    obj.narrators.setTime(id, time);
                 }
-            }
 
-            return obj;
+                final int memberPollCount = buffer.getInt();
+                final int memberPollSize = hasVoters ? MEMBER_POLL_SIZE + VOTER_LISTS_SIZE : MEMBER_POLL_SIZE;
+                if (memberPollCount < 0 || (long) memberPollCount * memberPollSize > buffer.remaining())
+                    throw new IOException("Binary state has invalid member poll count " + memberPollCount);
+                for (int i = 0; i < memberPollCount; i++)
+                {
+                    MemberPoll memberPoll = new MemberPoll(buffer.getLong(), buffer.getLong(), buffer.getLong());
+                    if (hasVoters)
+                    {
+                        readVoters(buffer, memberPoll.getTally(), true);
+                        readVoters(buffer, memberPoll.getTally(), false);
+                    }
+                    obj.memberPollsByMessage.put(memberPoll.getMessageId(), memberPoll);
+                    obj.memberPollsByUser.put(memberPoll.getUserId(), memberPoll);
+                }
+                return obj;
+            } catch (BufferUnderflowException e)
+            {
+                throw new IOException("Binary state is truncated", e);
+            }
         }
     }
 }
@@ -0,0 +1,406 @@
+package fanficthread.fanficthreadbot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of {@link BotState} changes.
+ * <p>
+ * Changes are encoded into an in-memory buffer by the mutating thread and appended to the journal file
+ * by {@link BotPersistence} writer thread in batches, one fsync per batch. Narrator time increments are
+ * the exception: they are summed up in the state and encoded by the writer thread, see {@link BotState#journalNarratorTime()}.
+ * Each batch is framed with its length and CRC32 so a torn write at the end of the file is detected and skipped.
+ * <p>
+ * Journal file belongs to a generation. State snapshot stores the generation of the journal that continues it,
+ * and journal of any other generation is ignored on replay.
+ * <p>
+ * File format: int magic, int format version, long generation, then batches of
+ * int payload length, int payload crc32, payload of records.
+ */
+public final class BotStateJournal
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(BotStateJournal.class);
+
+    private static final int MAGIC = 0x46544A4C; //FTJL
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int BATCH_HEADER_SIZE = 8;
+
+    private static final byte NARRATOR_TIME_ADD = 1;
+    private static final byte NARRATOR_TIME_SET = 2;
+    private static final byte NARRATOR_REMOVE = 3;
+    private static final byte NARRATORS_CLEAR = 4;
+    private static final byte MEMBER_POLL_ADD = 5;
+    private static final byte MEMBER_POLL_REMOVE = 6;
+    private static final byte MEMBER_POLLS_CLEAR = 7;
+    private static final byte MEMBER_POLL_VOTE_ADD = 8;
+    private static final byte MEMBER_POLL_VOTE_REMOVE = 9;
+    private static final byte MEMBER_POLL_VOTES_CLEAR = 10;
+
+    private final Path file;
+
+    //guarded by this
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+
+    //accessed only from the writer thread
+    private FileChannel channel;
+
+    public BotStateJournal(Path file)
+    {
+        this.file = file;
+    }
+
+    synchronized void narratorTimeAdded(long user, int seconds)
+    {
+        try
+        {
+            pendingOut.writeByte(NARRATOR_TIME_ADD);
+            pendingOut.writeLong(user);
+            pendingOut.writeInt(seconds);
+        } catch (IOException e)
+        {
+            throw new IllegalStateException("In-memory journal write failed", e);
+        }
+    }
+
+    synchronized void narratorTimeSet(long user, int seconds)
+    {
+        try
+        {
+            pendingOut.writeByte(NARRATOR_TIME_SET);
+            pendingOut.writeLong(user);
+            pendingOut.writeInt(seconds);
+        } catch (IOException e)
+        {
+            throw new IllegalStateException("In-memory journal write failed", e);
+        }
+    }
+
+    synchronized void narratorRemoved(long user)
+    {
+        try
+        {
+            pendingOut.writeByte(NARRATOR_REMOVE);
+            pendingOut.writeLong(user);
+        } catch (IOException e)
+        {
+            throw new IllegalStateException("In-memory journal write failed", e);
+        }
+    }
+
+    synchronized void narratorsCleared()
+    {
+        try
+        {
+            pendingOut.writeByte(NARRATORS_CLEAR);
+        } catch (IOException e)
+        {
+            throw new IllegalStateException("In-memory journal write failed", e);
+        }
+    }
+
+    synchronized void memberPollAdded(MemberPoll poll)
+    {
+        try
+        {
+            pendingOut.writeByte(MEMBER_POLL_ADD);
+            pendingOut.writeLong(poll.getMessageId());
+            pendingOut.writeLong(poll.getUserId());
+            pendingOut.writeLong(poll.getTimestampCreated());
+        } catch (IOException e)
+        {
+            throw new IllegalStateException("In-memory journal write failed", e);
+        }
+    }
+
+    synchronized void memberPollRemoved(MemberPoll poll)
+    {
+        try
+        {
+            pendingOut.writeByte(MEMBER_POLL_REMOVE);
+            pendingOut.writeLong(poll.getMessageId());
+        } catch (IOException e)
+        {
+            throw new IllegalStateException("In-memory journal write failed", e);
+        }
+    }
+
+    synchronized void memberPollsCleared()
+    {
+        try
+        {
+            pendingOut.writeByte(MEMBER_POLLS_CLEAR);
+        } catch (IOException e)
+        {
+            throw new IllegalStateException("In-memory journal write failed", e);
+        }
+    }
+
+    synchronized void memberPollVoteAdded(long messageId, long user, boolean upvote, long timestamp)
+    {
+        try
+        {
+            pendingOut.writeByte(MEMBER_POLL_VOTE_ADD);
+            pendingOut.writeLong(messageId);
+            pendingOut.writeLong(user);
+            pendingOut.writeBoolean(upvote);
+            pendingOut.writeLong(timestamp);
+        } catch (IOException e)
+        {
+            throw new IllegalStateException("In-memory journal write failed", e);
+        }
+    }
+
+    synchronized void memberPollVoteRemoved(long messageId, long user, boolean upvote)
+    {
+        try
+        {
+            pendingOut.writeByte(MEMBER_POLL_VOTE_REMOVE);
+            pendingOut.writeLong(messageId);
+            pendingOut.writeLong(user);
+            pendingOut.writeBoolean(upvote);
+        } catch (IOException e)
+        {
+            throw new IllegalStateException("In-memory journal write failed", e);
+        }
+    }
+
+    synchronized void memberPollVotesCleared(long messageId)
+    {
+        try
+        {
+            pendingOut.writeByte(MEMBER_POLL_VOTES_CLEAR);
+            pendingOut.writeLong(messageId);
+        } catch (IOException e)
+        {
+            throw new IllegalStateException("In-memory journal write failed", e);
+        }
+    }
+
+    /**
+     * Take all records that are not written yet.
+     *
+     * @return encoded records, empty array if there are none
+     */
+    synchronized byte[] drainPending()
+    {
+        byte[] bytes = pending.toByteArray();
+        pending.reset();
+        return bytes;
+    }
+
+    /**
+     * Drop all records that are not written yet, because they are already included into a snapshot.
+     */
+    synchronized void discardPending()
+    {
+        pending.reset();
+    }
+
+    /**
+     * Append a batch of records to the journal file and fsync it.
+     *
+     * @param batch encoded records
+     * @throws IOException if write failed
+     */
+    void append(byte[] batch) throws IOException
+    {
+        if (channel == null) throw new IOException("Journal file is not open");
+        CRC32 crc = new CRC32();
+        crc.update(batch);
+
+        ByteBuffer buffer = ByteBuffer.allocate(BATCH_HEADER_SIZE + batch.length);
+        buffer.putInt(batch.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(batch);
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        channel.force(false);
+    }
+
+    /**
+     * Get size of records in the journal file.
+     *
+     * @return size in bytes without the file header
+     * @throws IOException if size can't be read
+     */
+    long size() throws IOException
+    {
+        return channel == null ? 0 : channel.size() - HEADER_SIZE;
+    }
+
+    /**
+     * Replace the journal file with an empty journal of the new generation.
+     *
+     * @param generation new journal generation
+     * @throws IOException if journal file can't be written
+     */
+    void reset(long generation) throws IOException
+    {
+        close();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putLong(generation);
+        header.flip();
+
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel tempChannel = FileChannel.open(tempFile,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            while (header.hasRemaining()) tempChannel.write(header);
+            tempChannel.force(true);
+        }
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    void close() throws IOException
+    {
+        if (channel != null)
+        {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Apply journal file changes to the state loaded from snapshot.
+     * Journal of a generation different from state journal generation is ignored.
+     *
+     * @param state state loaded from snapshot
+     * @return count of applied records
+     * @throws IOException if journal can't be read or has invalid header
+     */
+    int replay(BotState state) throws IOException
+    {
+        if (!Files.exists(file)) return 0;
+
+        final byte[] bytes = Files.readAllBytes(file);
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC)
+            throw new IOException("Journal file " + file + " has invalid header");
+        final int formatVersion = buffer.getInt();
+        if (formatVersion != FORMAT_VERSION)
+            throw new IOException("Journal file " + file + " has unsupported format version " + formatVersion);
+        final long generation = buffer.getLong();
+        if (generation != state.getJournalGeneration())
+        {
+            LOGGER.info("Journal generation {} doesn't match state generation {}, journal is already in the snapshot",
+                    generation, state.getJournalGeneration());
+            return 0;
+        }
+
+        int records = 0;
+        while (buffer.remaining() >= BATCH_HEADER_SIZE)
+        {
+            final int length = buffer.getInt();
+            final int checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining())
+            {
+                LOGGER.warn("Journal file {} ends with a torn batch, {} bytes skipped", file, buffer.remaining() + BATCH_HEADER_SIZE);
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, buffer.position(), length);
+            if ((int) crc.getValue() != checksum)
+            {
+                LOGGER.warn("Journal file {} has a corrupted batch, {} bytes skipped", file, buffer.remaining() + BATCH_HEADER_SIZE);
+                break;
+            }
+            records += applyBatch(state, new DataInputStream(new ByteArrayInputStream(bytes, buffer.position(), length)));
+            buffer.position(buffer.position() + length);
+        }
+        return records;
+    }
+
+    private static int applyBatch(BotState state, DataInputStream in) throws IOException
+    {
+        int records = 0;
+        while (true)
+        {
+            final int type = in.read();
+            if (type == -1) return records;
+            try
+            {
+                switch (type)
+                {
+                    case NARRATOR_TIME_ADD:
+                        state.addNarratorTime(in.readLong(), in.readInt());
+                        break;
+                    case NARRATOR_TIME_SET:
+                        state.setNarratorTime(in.readLong(), in.readInt());
+                        break;
+                    case NARRATOR_REMOVE:
+                    {
+                        Narrator narrator = state.getNarrator(in.readLong());
+                        if (narrator != null) state.removeNarrator(narrator);
+                        break;
+                    }
+                    case NARRATORS_CLEAR:
+                        state.clearNarrators();
+                        break;
+                    case MEMBER_POLL_ADD:
+                        state.addMemberPoll(new MemberPoll(in.readLong(), in.readLong(), in.readLong()));
+                        break;
+                    case MEMBER_POLL_REMOVE:
+                    {
+                        MemberPoll poll = state.getMemberPollByMessage(in.readLong());
+                        if (poll != null) state.removeMemberPoll(poll);
+                        break;
+                    }
+                    case MEMBER_POLLS_CLEAR:
+                        state.clearMemberPolls();
+                        break;
+                    case MEMBER_POLL_VOTE_ADD:
+                    {
+                        //Record is read in full even if its poll is already removed
+                        MemberPoll poll = state.getMemberPollByMessage(in.readLong());
+                        final long user = in.readLong();
+                        final boolean upvote = in.readBoolean();
+                        final long timestamp = in.readLong();
+                        if (poll != null) state.addMemberPollVote(poll, user, upvote, timestamp);
+                        break;
+                    }
+                    case MEMBER_POLL_VOTE_REMOVE:
+                    {
+                        MemberPoll poll = state.getMemberPollByMessage(in.readLong());
+                        final long user = in.readLong();
+                        final boolean upvote = in.readBoolean();
+                        if (poll != null) state.removeMemberPollVote(poll, user, upvote);
+                        break;
+                    }
+                    case MEMBER_POLL_VOTES_CLEAR:
+                    {
+                        MemberPoll poll = state.getMemberPollByMessage(in.readLong());
+                        if (poll != null) state.clearMemberPollVotes(poll);
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown journal record type " + type);
+                }
+            } catch (EOFException e)
+            {
+                throw new IOException("Journal record of type " + type + " is truncated", e);
+            }
+            records++;
+        }
+    }
+}
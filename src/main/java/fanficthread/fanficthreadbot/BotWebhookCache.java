@@ -3,24 +3,39 @@ package fanficthread.fanficthreadbot;
 import net.dv8tion.jda.core.entities.TextChannel;
 import net.dv8tion.jda.core.entities.Webhook;
 import net.dv8tion.jda.webhook.WebhookClient;
+import net.dv8tion.jda.webhook.WebhookMessage;
+import net.dv8tion.jda.webhook.exception.HttpException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Cache of bot webhook clients by channel id.
+ * <p>
+ * Webhook is looked up or created lazily without blocking, concurrent misses of the same channel share one lookup.
+ * Failed lookups are not cached. Cached client is dropped when its channel is deleted
+ * or when Discord replies 404 to a send, i.e. the webhook was deleted.
+ * Thread-safe.
+ */
 public final class BotWebhookCache
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(BotWebhookCache.class);
 
     private static final String BOT_HOOK_NAME = "FTBotHook";
+    private static final int HTTP_NOT_FOUND = 404;
 
     private final FanficThreadBot bot;
     private final ScheduledExecutorService executorService;
 
-    private Map<Long, WebhookClient> activeClients = new ConcurrentHashMap<>();
+    private final LongConcurrentMap<CompletableFuture<WebhookClient>> clients = new LongConcurrentMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
 
     public BotWebhookCache(FanficThreadBot bot, ScheduledExecutorService executorService)
     {
@@ -28,61 +43,179 @@ public final class BotWebhookCache
         this.executorService = executorService;
     }
 
-    public Webhook get(long channelId)
+    public CompletableFuture<WebhookClient> getClient(long channelId)
     {
         TextChannel channel = bot.getGuild().getTextChannelById(channelId);
         if (channel == null)
         {
             throw new IllegalArgumentException("No such text channel: " + channelId);
         }
-        return get(channel);
+        return getClient(channel);
     }
 
-    public Webhook get(TextChannel channel)
+    /**
+     * Get bot webhook client of the channel, creating the webhook if there is none.
+     *
+     * @param channel text channel
+     * @return future of the client
+     */
+    public CompletableFuture<WebhookClient> getClient(TextChannel channel)
     {
-        Optional<Webhook> optionalWebhook = channel.getWebhooks().complete().stream()
-                .filter(w -> w.getName().equals(BOT_HOOK_NAME)).findFirst();
-        if (optionalWebhook.isPresent())
+        final long channelId = channel.getIdLong();
+        CompletableFuture<WebhookClient> client = clients.get(channelId);
+        if (client != null)
         {
-            return optionalWebhook.get();
+            hits.incrementAndGet();
+            return client;
         }
 
-        LOGGER.debug("Bot hook for channel {} was requested but wasn't found, a new one is created", channel.getIdLong());
-        return channel.createWebhook(BOT_HOOK_NAME).complete();
+        final CompletableFuture<WebhookClient> created = new CompletableFuture<>();
+        client = clients.putIfAbsent(channelId, created);
+        if (client != null)
+        {
+            hits.incrementAndGet();
+            return client;
+        }
+        misses.incrementAndGet();
+        resolve(channel, created);
+        return created;
     }
 
-    public WebhookClient getClient(long channelId)
+    private void resolve(TextChannel channel, CompletableFuture<WebhookClient> future)
     {
-        TextChannel channel = bot.getGuild().getTextChannelById(channelId);
-        if (channel == null)
+        final long channelId = channel.getIdLong();
+        future.whenComplete((client, e) ->
         {
-            throw new IllegalArgumentException("No such text channel: " + channelId);
-        }
-        return getClient(channel);
+            if (e != null)
+            {
+                //Don't cache failures, next request will try again
+                clients.remove(channelId, future);
+                LOGGER.error("Failed to get bot hook for channel {}", channelId, e);
+            }
+        });
+
+        channel.getWebhooks().queue(webhooks ->
+        {
+            for (Webhook webhook : webhooks)
+            {
+                if (webhook.getName().equals(BOT_HOOK_NAME))
+                {
+                    future.complete(newClient(webhook));
+                    return;
+                }
+            }
+            LOGGER.debug("Bot hook for channel {} was requested but wasn't found, a new one is created", channelId);
+            channel.createWebhook(BOT_HOOK_NAME).queue(
+                    webhook -> future.complete(newClient(webhook)),
+                    future::completeExceptionally);
+        }, future::completeExceptionally);
     }
 
-    public WebhookClient getClient(TextChannel channel)
+    private WebhookClient newClient(Webhook webhook)
     {
-        Webhook webhook = get(channel);
-        return activeClients.computeIfAbsent(webhook.getIdLong(), (id) ->
-                webhook.newClient()
-                        .setExecutorService(executorService)
-                        .build()
-        );
+        return webhook.newClient()
+                .setExecutorService(executorService)
+                .build();
     }
 
-    public void closeClient(long webhookId)
+    /**
+     * Send a message with the bot webhook of the channel.
+     * If the webhook turns out to be deleted, it's dropped from the cache and the message is sent once more with a new one.
+     *
+     * @param channel text channel
+     * @param message webhook message
+     * @return future completed when the message is sent
+     */
+    public CompletableFuture<Void> send(TextChannel channel, WebhookMessage message)
     {
-        activeClients.computeIfPresent(webhookId, (id, client) ->
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final CompletableFuture<WebhookClient> clientFuture = getClient(channel);
+        clientFuture.thenAccept(client -> client.send(message).whenComplete((r, e) ->
+        {
+            if (e == null)
+            {
+                result.complete(null);
+            } else if (isNotFound(e))
+            {
+                LOGGER.info("Bot hook {} of channel {} was deleted, retrying with a new one", client.getIdLong(), channel.getIdLong());
+                //Only this client is dropped, a new one could be already cached by a concurrent send
+                if (clients.remove(channel.getIdLong(), clientFuture))
+                {
+                    invalidations.incrementAndGet();
+                    client.close();
+                }
+                getClient(channel)
+                        .thenCompose(newClient -> newClient.send(message))
+                        .whenComplete((r2, e2) -> complete(result, e2));
+            } else
+            {
+                result.completeExceptionally(e);
+            }
+        })).exceptionally(e ->
         {
-            client.close();
+            result.completeExceptionally(e);
             return null;
         });
+        return result;
+    }
+
+    private static void complete(CompletableFuture<Void> future, Throwable e)
+    {
+        if (e == null)
+        {
+            future.complete(null);
+        } else
+        {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static boolean isNotFound(Throwable e)
+    {
+        if (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+        return e instanceof HttpException && ((HttpException) e).getCode() == HTTP_NOT_FOUND;
+    }
+
+    /**
+     * Drop cached client of the channel, e.g. because channel or webhook was deleted.
+     *
+     * @param channelId text channel id
+     */
+    public void invalidate(long channelId)
+    {
+        final CompletableFuture<WebhookClient> client = clients.remove(channelId);
+        if (client == null) return;
+        invalidations.incrementAndGet();
+        client.thenAccept(WebhookClient::close);
+        LOGGER.debug("Bot hook client of channel {} dropped from cache", channelId);
     }
 
     public void closeAllClients()
     {
-        activeClients.forEach((hookId, client) -> client.close());
-        activeClients.clear();
+        for (CompletableFuture<WebhookClient> client : clients.values())
+        {
+            client.thenAccept(WebhookClient::close);
+        }
+        clients.clear();
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getInvalidations()
+    {
+        return invalidations.get();
+    }
+
+    public int size()
+    {
+        return clients.size();
     }
 }
@@ -0,0 +1,178 @@
+package fanficthread.fanficthreadbot;
+
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.TextChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ids of the latest messages of tracked channels, fed from message events.
+ * <p>
+ * For each channel it keeps up to {@link #CAPACITY} latest message ids as a contiguous tail of the channel history,
+ * so the message before a recent one can be found without a history request.
+ * Tail starts with the first message seen after start, or is seeded from the history.
+ * Messages may be missed while the gateway is disconnected, so on reconnect all tails are cleared
+ * and seeded again, see {@link fanficthread.fanficthreadbot.listeners.AnnouncementChannelListener}.
+ * Thread-safe.
+ */
+public final class ChannelMessageIndex
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChannelMessageIndex.class);
+
+    private static final int CAPACITY = 32;
+
+    /**
+     * Returned by {@link #getPrevious(long, long)} when there is no message before.
+     */
+    public static final long NONE = 0;
+    /**
+     * Returned by {@link #getPrevious(long, long)} when previous message isn't known.
+     */
+    public static final long UNKNOWN = -1;
+
+    private final LongConcurrentMap<Tail> tails = new LongConcurrentMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Load latest messages of the channel from history.
+     *
+     * @param channel channel to track
+     */
+    public void seed(TextChannel channel)
+    {
+        final long channelId = channel.getIdLong();
+        channel.getHistory().retrievePast(CAPACITY).queue(messages ->
+        {
+            tails.computeIfAbsent(channelId, id -> new Tail()).seed(messages, messages.size() < CAPACITY);
+            LOGGER.debug("Message index of channel {} seeded with {} messages", channelId, messages.size());
+        }, e -> LOGGER.warn("Failed to seed message index of channel {}", channelId, e));
+    }
+
+    public void messageReceived(long channelId, long messageId)
+    {
+        tails.computeIfAbsent(channelId, id -> new Tail()).add(messageId);
+    }
+
+    public void messageDeleted(long channelId, long messageId)
+    {
+        Tail tail = tails.get(channelId);
+        if (tail != null) tail.remove(messageId);
+    }
+
+    /**
+     * Stop tracking the channel.
+     */
+    public void remove(long channelId)
+    {
+        tails.remove(channelId);
+    }
+
+    /**
+     * Stop tracking all channels.
+     */
+    public void clear()
+    {
+        tails.clear();
+    }
+
+    /**
+     * @return id of the message right before the given one, {@link #NONE} if there is none
+     * or {@link #UNKNOWN} if it's not in the index
+     */
+    public long getPrevious(long channelId, long messageId)
+    {
+        Tail tail = tails.get(channelId);
+        final long previous = tail == null ? UNKNOWN : tail.getPrevious(messageId);
+        if (previous == UNKNOWN)
+        {
+            misses.incrementAndGet();
+        } else
+        {
+            hits.incrementAndGet();
+        }
+        return previous;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    private static final class Tail
+    {
+        //guarded by this, sorted ascending
+        private final long[] ids = new long[CAPACITY];
+        private int size;
+        //true if tail starts with the first message of the channel
+        private boolean complete;
+
+        synchronized void add(long id)
+        {
+            //Events mostly come in order, so the insertion point is almost always the end
+            int i = size;
+            while (i > 0 && ids[i - 1] > id) i--;
+            if (i > 0 && ids[i - 1] == id) return;
+            if (size == CAPACITY)
+            {
+                if (i == 0) return;
+                System.arraycopy(ids, 1, ids, 0, i - 1);
+                i--;
+                size--;
+                complete = false;
+            } else
+            {
+                System.arraycopy(ids, i, ids, i + 1, size - i);
+            }
+            ids[i] = id;
+            size++;
+        }
+
+        synchronized void remove(long id)
+        {
+            for (int i = 0; i < size; i++)
+            {
+                if (ids[i] == id)
+                {
+                    System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+                    size--;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @param messages latest messages, newest first
+         * @param complete true if there are no older messages in the channel
+         */
+        synchronized void seed(List<Message> messages, boolean complete)
+        {
+            //Seeded history can only be older than or equal to already received messages
+            final boolean wasEmpty = size == 0;
+            for (Message message : messages) add(message.getIdLong());
+            if (wasEmpty || size < CAPACITY) this.complete = complete;
+        }
+
+        synchronized long getPrevious(long id)
+        {
+            for (int i = size - 1; i >= 0; i--)
+            {
+                if (ids[i] == id)
+                {
+                    if (i > 0) return ids[i - 1];
+                    return complete ? NONE : UNKNOWN;
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+}
@@ -1,10 +1,9 @@
 package fanficthread.fanficthreadbot;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.mojang.brigadier.CommandDispatcher;
 import fanficthread.fanficthreadbot.command.CommandSource;
 import fanficthread.fanficthreadbot.command.impl.*;
+import fanficthread.fanficthreadbot.jobs.BotJobManager;
 import fanficthread.fanficthreadbot.listeners.*;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
@@ -12,46 +11,50 @@ import joptsimple.OptionSpec;
 import net.dv8tion.jda.core.JDA;
 import net.dv8tion.jda.core.JDABuilder;
 import net.dv8tion.jda.core.entities.Guild;
-import net.dv8tion.jda.core.entities.Message;
 import net.dv8tion.jda.core.entities.TextChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.security.auth.login.LoginException;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Discord bot for one weird server.
  */
 public class FanficThreadBot implements Runnable
 {
-    private static final int SAVE_COOLDOWN_MS = 10000;
-    private static final Path SETTINGS_FILE_NAME = Paths.get("bot_settings.json");
-    private static final Path STATE_FILE_NAME = Paths.get("bot_state.json");
-
     private static final Logger LOGGER = LoggerFactory.getLogger(FanficThreadBot.class);
-    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
     private static final ScheduledExecutorService WEBHOOK_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
     private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor();
 
     private final BotArgs args;
     private CommandDispatcher<CommandSource> commandDispatcher;
+    private BotExecutor commandExecutor;
+    private BotExecutor stateExecutor;
+    private KeyedSerialExecutor memberVoteTasks;
+    private KeyedSerialExecutor narratorTasks;
+    private BotExecutor downloadExecutor;
+    private BotExecutor repostExecutor;
     private BotWebhookCache botWebhookCache;
+    private AttachmentRelay attachmentRelay;
+    private RepostPipeline repostPipeline;
+    private ChannelMessageIndex channelMessageIndex;
+    private MemberPollExpiry memberPollExpiry;
+    private MemberRoleIndex memberRoleIndex;
+    private GuildMessageRouter guildMessageRouter;
+    private MemberVoteListener memberVoteListener;
+    private NarratorListener narratorListener;
+    private BotJobManager jobManager;
+    private BotPersistence persistence;
 
     //effectively non-final
     private BotSettings settings;
     private BotState state;
-    private long lastSaveMillis;
 
     private JDA jda;
     private Guild guild;
@@ -87,19 +90,49 @@ public class FanficThreadBot implements Runnable
         NarratorCommand.register(commandDispatcher);
         SpoilerCommand.register(commandDispatcher);
 
+        //Commands are executed in order, so they have a single thread
+        commandExecutor = new BotExecutor("commands", 1, args.executorQueue, args.virtualThreads);
+        //State mutations are ordered per poll user and per narrator, not globally.
+        //Queue holds at most a drain per key and it's unbounded, so mailboxes are never drained on event threads
+        stateExecutor = new BotExecutor("state", args.stateThreads, BotExecutor.UNBOUNDED, args.virtualThreads);
+        memberVoteTasks = new KeyedSerialExecutor("membervote", stateExecutor);
+        narratorTasks = new KeyedSerialExecutor("narrator", stateExecutor);
+        //Downloads are submitted from event threads, they must never run there
+        downloadExecutor = new BotExecutor("downloads", args.downloadThreads, args.executorQueue,
+                BotExecutor.Overflow.REJECT, args.virtualThreads);
+        //Repost stages are continued from JDA request threads, they must never run there.
+        //Queue holds at most a couple of stages per repost in progress, and their count is limited, so it's unbounded
+        repostExecutor = new BotExecutor("reposts", 2, BotExecutor.UNBOUNDED, args.virtualThreads);
+
         botWebhookCache = new BotWebhookCache(this, WEBHOOK_EXECUTOR);
+        attachmentRelay = new AttachmentRelay(downloadExecutor);
+        repostPipeline = new RepostPipeline(this, repostExecutor, args.maxReposts);
+        channelMessageIndex = new ChannelMessageIndex();
+        memberPollExpiry = new MemberPollExpiry(this, EXECUTOR);
+        memberRoleIndex = new MemberRoleIndex();
+        jobManager = new BotJobManager(this, EXECUTOR);
+        persistence = new BotPersistence(this, !args.compactJson);
 
         load(true);
+        persistence.start();
 
+        memberVoteListener = new MemberVoteListener(this);
+        narratorListener = new NarratorListener(this, EXECUTOR);
+        final AnnouncementChannelListener announcementChannelListener = new AnnouncementChannelListener(this);
+        guildMessageRouter = new GuildMessageRouter(this, new CommandListener(this), announcementChannelListener,
+                new SpoilerListener(this));
         try
         {
             jda = new JDABuilder(args.token)
                     .addEventListener(
-                            new CommandListener(this),
-                            new AnnouncementChannelListener(this),
-                            new NarratorListener(this),
-                            new MemberVoteListener(this),
-                            new SpoilerListener(this)
+                            //Index is updated before it's used by other listeners
+                            new MemberRoleIndexListener(this),
+                            //Received guild messages are dispatched by the router only
+                            guildMessageRouter,
+                            announcementChannelListener,
+                            narratorListener,
+                            memberVoteListener,
+                            new WebhookCacheListener(this)
                     )
                     .build().awaitReady();
         } catch (LoginException e)
@@ -114,13 +147,17 @@ public class FanficThreadBot implements Runnable
 
         botUserId = jda.getSelfUser().getIdLong();
         guild = jda.getGuildById(args.guild);
+        memberRoleIndex.rebuild(guild, settings.getMemberRole());
 
-        startHourlyTicker();
+        reseedChannelMessageIndex();
+        if (settings.isMemberVoteEnabled()) reconcileMemberPolls();
+        memberPollExpiry.reset(state.getMemberPolls());
+        resumeJobs();
 
         Runtime.getRuntime().addShutdownHook(new Thread(() ->
         {
             LOGGER.debug("Shutdown hook executed");
-            save();
+            persistence.close();
         }, "Shutdown-hook-thread"));
 
         try {
@@ -134,164 +171,201 @@ public class FanficThreadBot implements Runnable
 
     public void shutdown(int status)
     {
-
-        forceSave();
-        jda.shutdown();
+        persistence.close();
+        if (jda != null) jda.shutdown();
         System.exit(status);
     }
 
-    private void startHourlyTicker()
+    private void resumeJobs()
     {
-        LocalDateTime now = LocalDateTime.now(ZoneId.of("UTC"));
-        LocalDateTime nextHourStart = now.withSecond(0).withMinute(0).plusHours(1);
-        long initialDelay = nextHourStart.toEpochSecond(ZoneOffset.UTC) - now.toEpochSecond(ZoneOffset.UTC);
-        EXECUTOR.scheduleWithFixedDelay(this::doEveryHour, initialDelay, 3600L, TimeUnit.SECONDS);
-        //EXECUTOR.scheduleWithFixedDelay(this::doEveryHour, 60, 30, TimeUnit.SECONDS);
+        try
+        {
+            jobManager.resume(persistence.readJobs());
+        } catch (IOException | RuntimeException e)
+        {
+            //Broken jobs file shouldn't stop the bot, jobs can be restarted by hand
+            LOGGER.error("Failed to read saved jobs", e);
+        }
     }
 
-    private void doEveryHour()
+    /**
+     * Reconcile voter ledgers of all member polls with their messages, so reactions made while bot was offline are counted.
+     *
+     * @return future completed when all polls are reconciled
+     */
+    public CompletableFuture<Void> reconcileMemberPolls()
     {
-        LOGGER.debug("Hourly tick");
-
-        if (settings.isMemberVoteEnabled())
-        {
-            long now = Instant.now().getEpochSecond();
-            TextChannel channel = guild.getTextChannelById(settings.getMemberVoteChannel());
-            if (channel == null)
-            {
-                LOGGER.error("Voting channel {} does not exist", settings.getMemberVoteChannel());
-            } else
-            {
-                for (MemberPoll poll : state.getMemberPolls())
-                {
-                    if (now - poll.getTimestampCreated() > settings.getMemberVoteTimeout())
-                    {
-                        Message message = channel.getMessageById(poll.getMessageId()).complete();
-                        if (message == null)
-                        {
-                            LOGGER.error("Poll message {} doesn't exist", poll.getMessageId());
-                            continue;
-                        }
-                        message.delete().queue();
-                        state.removeMemberPoll(poll);
-                        LOGGER.debug("Removed member poll {}/{} because it is older than the limit of {}", poll.getUserId(), poll.getMessageId(), settings.getMemberVoteTimeout());
-                    }
-                }
-            }
-        }
-        save();
+        return new MemberPollReconciler(this).reconcileAll();
     }
 
-    public void save()
+    /**
+     * Request a save of everything that was changed since the last save.
+     * Doesn't block, the actual write is done by {@link BotPersistence} writer thread.
+     *
+     * @return future completed when changes are written
+     */
+    public CompletableFuture<Void> save()
     {
-        final long nowMillis = System.currentTimeMillis();
-        final long fromLastSave = nowMillis - lastSaveMillis;
-        if (fromLastSave < SAVE_COOLDOWN_MS)
-        {
-            LOGGER.debug("Saving cancelled, only {} ms passed since last save and delay is {} ms", fromLastSave, SAVE_COOLDOWN_MS);
-            return;
-        }
-        saveSettings();
-        saveState();
-        lastSaveMillis = nowMillis;
+        return persistence.flush();
     }
 
-    public void forceSave()
+    public void load(boolean orElseCreate)
     {
-        saveSettings();
-        saveState();
+        loadSettings(orElseCreate);
+        loadState(orElseCreate);
     }
 
-    public void saveSettings()
+    public void loadSettings(boolean orElseCreate)
     {
         try
         {
-            Files.write(SETTINGS_FILE_NAME, GSON.toJson(settings).getBytes());
+            BotSettings loaded = persistence.readSettings();
+            if (loaded != null)
+            {
+                settings = loaded;
+                return;
+            }
+            LOGGER.info("Can't load bot settings: no file found");
         } catch (IOException e)
         {
-            LOGGER.error("Failed to save settings to file", e);
+            LOGGER.error("Failed to read bot settings file", e);
+            shutdown(-100);
         } catch (RuntimeException e)
         {
-            LOGGER.error("Failed to serialize settings to json", e);
+            LOGGER.error("Failed to parse bot settings from json", e);
+            shutdown(-100);
         }
+        if (orElseCreate) settings = new BotSettings();
     }
 
-    public void saveState()
+    public void loadState(boolean orElseCreate)
     {
         try
         {
-            Files.write(STATE_FILE_NAME, GSON.toJson(state).getBytes());
+            BotState loaded = persistence.readState();
+            if (loaded != null)
+            {
+                state = loaded;
+                return;
+            }
+            LOGGER.info("Can't load bot state: no file found");
         } catch (IOException e)
         {
-            LOGGER.error("Failed to save state to file", e);
+            LOGGER.error("Failed to read bot state file", e);
+            shutdown(-101);
         } catch (RuntimeException e)
         {
-            LOGGER.error("Failed to serialize state to json", e);
+            LOGGER.error("Failed to parse bot state from json", e);
+            shutdown(-101);
         }
+        if (orElseCreate) state = new BotState();
     }
 
-    public void load(boolean orElseCreate)
+    public CommandDispatcher<CommandSource> getCommandDispatcher()
     {
-        loadSettings(orElseCreate);
-        loadState(orElseCreate);
+        return commandDispatcher;
     }
 
-    public void loadSettings(boolean orElseCreate)
+    public BotWebhookCache getBotWebhookCache()
     {
-        if (!Files.exists(SETTINGS_FILE_NAME))
-        {
-            LOGGER.info("Can't load bot settings: no file found");
-        } else
-        {
-            try
-            {
-                settings = GSON.fromJson(new String(Files.readAllBytes(SETTINGS_FILE_NAME)), BotSettings.class);
-                return;
-            } catch (IOException e)
-            {
-                LOGGER.error("Failed to read bot settings file", e);
-                shutdown(-100);
-            } catch (RuntimeException e)
-            {
-                LOGGER.error("Failed to parse bot settings from json", e);
-                shutdown(-100);
-            }
-        }
-        if (orElseCreate) settings = new BotSettings();
+        return botWebhookCache;
     }
 
-    public void loadState(boolean orElseCreate)
+    /**
+     * @return executor of commands, they are executed one by one
+     */
+    public BotExecutor getCommandExecutor()
     {
-        if (!Files.exists(STATE_FILE_NAME))
-        {
-            LOGGER.info("Can't load bot state: no file found");
-        } else
+        return commandExecutor;
+    }
+
+    /**
+     * @return executor of MemberVote events, keyed by poll user id
+     */
+    public KeyedSerialExecutor getMemberVoteTasks()
+    {
+        return memberVoteTasks;
+    }
+
+    /**
+     * @return executor of narrator state mutations, keyed by narrator id
+     */
+    public KeyedSerialExecutor getNarratorTasks()
+    {
+        return narratorTasks;
+    }
+
+    public List<BotExecutor> getExecutors()
+    {
+        return Arrays.asList(commandExecutor, stateExecutor, downloadExecutor, repostExecutor);
+    }
+
+    public List<KeyedSerialExecutor> getKeyedExecutors()
+    {
+        return Arrays.asList(memberVoteTasks, narratorTasks);
+    }
+
+    public AttachmentRelay getAttachmentRelay()
+    {
+        return attachmentRelay;
+    }
+
+    public RepostPipeline getRepostPipeline()
+    {
+        return repostPipeline;
+    }
+
+    /**
+     * Drop indexed messages and load them again from history of the announcement channels.
+     */
+    public void reseedChannelMessageIndex()
+    {
+        channelMessageIndex.clear();
+        for (AnnouncementChannel announcementChannel : settings.getAnnouncementChannels())
         {
-            try
-            {
-                state = GSON.fromJson(new String(Files.readAllBytes(STATE_FILE_NAME)), BotState.class);
-                return;
-            } catch (IOException e)
-            {
-                LOGGER.error("Failed to read bot state file", e);
-                shutdown(-101);
-            } catch (RuntimeException e)
-            {
-                LOGGER.error("Failed to parse bot state from json", e);
-                shutdown(-101);
-            }
+            TextChannel channel = guild.getTextChannelById(announcementChannel.getChannelId());
+            if (channel != null) channelMessageIndex.seed(channel);
         }
-        if (orElseCreate) state = new BotState();
     }
 
-    public CommandDispatcher<CommandSource> getCommandDispatcher()
+    public ChannelMessageIndex getChannelMessageIndex()
     {
-        return commandDispatcher;
+        return channelMessageIndex;
     }
 
-    public BotWebhookCache getBotWebhookCache()
+    public MemberPollExpiry getMemberPollExpiry()
     {
-        return botWebhookCache;
+        return memberPollExpiry;
+    }
+
+    public MemberRoleIndex getMemberRoleIndex()
+    {
+        return memberRoleIndex;
+    }
+
+    public GuildMessageRouter getGuildMessageRouter()
+    {
+        return guildMessageRouter;
+    }
+
+    public MemberVoteListener getMemberVoteListener()
+    {
+        return memberVoteListener;
+    }
+
+    public NarratorListener getNarratorListener()
+    {
+        return narratorListener;
+    }
+
+    public NarratorSessions getNarratorSessions()
+    {
+        return narratorListener.getSessions();
+    }
+
+    public BotJobManager getJobManager()
+    {
+        return jobManager;
     }
 
     /**
@@ -352,9 +426,21 @@ public class FanficThreadBot implements Runnable
     {
         private static final String ARG_TOKEN = "token";
         private static final String ARG_GUILD = "guild";
+        private static final String ARG_COMPACT_JSON = "compact-json";
+        private static final String ARG_DOWNLOAD_THREADS = "download-threads";
+        private static final String ARG_STATE_THREADS = "state-threads";
+        private static final String ARG_EXECUTOR_QUEUE = "executor-queue";
+        private static final String ARG_VIRTUAL_THREADS = "virtual-threads";
+        private static final String ARG_MAX_REPOSTS = "max-reposts";
 
         private String token;
         private long guild;
+        private boolean compactJson;
+        private int downloadThreads;
+        private int stateThreads;
+        private int executorQueue;
+        private boolean virtualThreads;
+        private int maxReposts;
 
         BotArgs()
         {
@@ -365,12 +451,28 @@ public class FanficThreadBot implements Runnable
             final OptionParser optionParser = new OptionParser();
             OptionSpec<String> tokenSpec = optionParser.accepts(ARG_TOKEN).withRequiredArg().ofType(String.class).required();
             OptionSpec<Long> guildSpec = optionParser.accepts(ARG_GUILD).withRequiredArg().ofType(Long.class).required();
+            OptionSpec<Void> compactJsonSpec = optionParser.accepts(ARG_COMPACT_JSON);
+            OptionSpec<Integer> downloadThreadsSpec = optionParser.accepts(ARG_DOWNLOAD_THREADS).withRequiredArg().ofType(Integer.class).defaultsTo(4);
+            OptionSpec<Integer> stateThreadsSpec = optionParser.accepts(ARG_STATE_THREADS).withRequiredArg().ofType(Integer.class).defaultsTo(2);
+            OptionSpec<Integer> executorQueueSpec = optionParser.accepts(ARG_EXECUTOR_QUEUE).withRequiredArg().ofType(Integer.class).defaultsTo(32);
+            OptionSpec<Void> virtualThreadsSpec = optionParser.accepts(ARG_VIRTUAL_THREADS);
+            OptionSpec<Integer> maxRepostsSpec = optionParser.accepts(ARG_MAX_REPOSTS).withRequiredArg().ofType(Integer.class).defaultsTo(16);
 
             final OptionSet optionSet = optionParser.parse(args);
 
             BotArgs botArgs = new BotArgs();
             botArgs.token = optionSet.valueOf(tokenSpec);
             botArgs.guild = optionSet.valueOf(guildSpec);
+            botArgs.compactJson = optionSet.has(compactJsonSpec);
+            botArgs.downloadThreads = optionSet.valueOf(downloadThreadsSpec);
+            botArgs.stateThreads = optionSet.valueOf(stateThreadsSpec);
+            botArgs.executorQueue = optionSet.valueOf(executorQueueSpec);
+            botArgs.virtualThreads = optionSet.has(virtualThreadsSpec);
+            botArgs.maxReposts = optionSet.valueOf(maxRepostsSpec);
+            if (botArgs.downloadThreads < 1) throw new IllegalArgumentException("Download threads must be positive");
+            if (botArgs.stateThreads < 1) throw new IllegalArgumentException("State threads must be positive");
+            if (botArgs.executorQueue < 1) throw new IllegalArgumentException("Executor queue must be positive");
+            if (botArgs.maxReposts < 1) throw new IllegalArgumentException("Max reposts must be positive");
             return botArgs;
         }
 
@@ -383,5 +485,35 @@ public class FanficThreadBot implements Runnable
         {
             return guild;
         }
+
+        public boolean isCompactJson()
+        {
+            return compactJson;
+        }
+
+        public int getDownloadThreads()
+        {
+            return downloadThreads;
+        }
+
+        public int getStateThreads()
+        {
+            return stateThreads;
+        }
+
+        public int getExecutorQueue()
+        {
+            return executorQueue;
+        }
+
+        public boolean isVirtualThreads()
+        {
+            return virtualThreads;
+        }
+
+        public int getMaxReposts()
+        {
+            return maxReposts;
+        }
     }
 }
@@ -0,0 +1,100 @@
+package fanficthread.fanficthreadbot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks of the same key one by one in submission order, tasks of different keys in parallel.
+ * <p>
+ * Each key with pending tasks has a mailbox; only one drain of a mailbox is submitted to the backing executor
+ * at a time. Drain runs tasks in a loop and, after {@link #DRAIN_BATCH} tasks, resubmits itself,
+ * so a busy key doesn't starve the others.
+ * Mailbox is removed when it's empty. Mailboxes are changed only inside atomic map operations.
+ * Backing executor must never run tasks on the submitting thread, e.g. it should have an unbounded queue:
+ * otherwise a listener would drain mailboxes on its own thread.
+ * Thread-safe.
+ */
+public final class KeyedSerialExecutor
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeyedSerialExecutor.class);
+
+    private static final int DRAIN_BATCH = 64;
+
+    private final String name;
+    private final Executor executor;
+    private final ConcurrentHashMap<Long, ArrayDeque<Runnable>> mailboxes = new ConcurrentHashMap<>();
+
+    /**
+     * @param executor executor of drains, must not run tasks on the submitting thread
+     */
+    public KeyedSerialExecutor(String name, Executor executor)
+    {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    public void execute(long key, Runnable task)
+    {
+        final boolean[] drain = new boolean[1];
+        mailboxes.compute(key, (k, tasks) ->
+        {
+            if (tasks == null)
+            {
+                tasks = new ArrayDeque<>();
+                drain[0] = true;
+            }
+            tasks.add(task);
+            return tasks;
+        });
+        if (drain[0]) executor.execute(() -> drain(key));
+    }
+
+    private void drain(long key)
+    {
+        final Runnable[] task = new Runnable[1];
+        final boolean[] more = new boolean[1];
+        for (int i = 0; i < DRAIN_BATCH; i++)
+        {
+            mailboxes.computeIfPresent(key, (k, tasks) ->
+            {
+                task[0] = tasks.peek();
+                return tasks;
+            });
+            try
+            {
+                task[0].run();
+            } catch (RuntimeException e)
+            {
+                LOGGER.error("Uncaught exception in {} task of key {}", name, key, e);
+            }
+
+            mailboxes.computeIfPresent(key, (k, tasks) ->
+            {
+                tasks.poll();
+                more[0] = !tasks.isEmpty();
+                return more[0] ? tasks : null;
+            });
+            if (!more[0]) return;
+        }
+        //Let other keys run, the rest of the mailbox is drained by a new task
+        executor.execute(() -> drain(key));
+    }
+
+    /**
+     * @return count of keys with pending tasks
+     */
+    public int getPendingKeys()
+    {
+        return mailboxes.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + ": " + getPendingKeys() + " ключей в очереди";
+    }
+}
@@ -0,0 +1,68 @@
+package fanficthread.fanficthreadbot;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Count, average and max latency of an operation.
+ * Thread-safe.
+ */
+public final class LatencyCounter
+{
+    private final String name;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public LatencyCounter(String name)
+    {
+        this.name = name;
+    }
+
+    public void record(long nanos)
+    {
+        count.increment();
+        totalNanos.add(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) max = maxNanos.get();
+    }
+
+    /**
+     * Record time passed since the start.
+     *
+     * @param startNanos start time from {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos)
+    {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public double getAverageMillis()
+    {
+        final long count = this.count.sum();
+        return count == 0 ? 0 : totalNanos.sum() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public double getMaxMillis()
+    {
+        return maxNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.US, "%s: %d, avg %.1f ms, max %.1f ms", name, getCount(), getAverageMillis(), getMaxMillis());
+    }
+}
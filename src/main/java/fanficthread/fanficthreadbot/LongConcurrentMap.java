@@ -0,0 +1,371 @@
+package fanficthread.fanficthreadbot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongFunction;
+
+/**
+ * Concurrent hash map with primitive long keys, e.g. Discord snowflakes.
+ * <p>
+ * Keys are spread over lock-striped open-addressing tables with linear probing, so lookups neither box the key
+ * nor allocate. Reads are lock-free optimistic reads of {@link StampedLock} and fall back to the read lock
+ * only when they race with a write to the same stripe. Writes take the stripe write lock.
+ * <p>
+ * Null values are not allowed. Thread-safe.
+ *
+ * @param <V> value type
+ */
+public final class LongConcurrentMap<V>
+{
+    private static final int STRIPE_COUNT = 16;
+    private static final int STRIPE_SHIFT = Long.SIZE - Integer.numberOfTrailingZeros(STRIPE_COUNT);
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    public LongConcurrentMap()
+    {
+        for (int i = 0; i < STRIPE_COUNT; i++) stripes[i] = new Stripe();
+    }
+
+    private static long hash(long key)
+    {
+        //Snowflakes have sequential low bits and timestamp high bits, mix them all
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    private Stripe stripeFor(long hash)
+    {
+        return stripes[(int) (hash >>> STRIPE_SHIFT)];
+    }
+
+    public V get(long key)
+    {
+        final long hash = hash(key);
+        return stripeFor(hash).get(key, hash);
+    }
+
+    public boolean containsKey(long key)
+    {
+        return get(key) != null;
+    }
+
+    /**
+     * @return previous value or null if there was none
+     */
+    public V put(long key, V value)
+    {
+        if (value == null) throw new IllegalArgumentException("Value can't be null");
+        final long hash = hash(key);
+        return stripeFor(hash).put(key, hash, value, false);
+    }
+
+    /**
+     * @return current value if there is one, or null if the value was put
+     */
+    public V putIfAbsent(long key, V value)
+    {
+        if (value == null) throw new IllegalArgumentException("Value can't be null");
+        final long hash = hash(key);
+        return stripeFor(hash).put(key, hash, value, true);
+    }
+
+    /**
+     * Get the value or atomically create it. Doesn't lock or allocate if value is present.
+     * Mapping function is called under the stripe lock and must not access this map.
+     *
+     * @return current or created value
+     */
+    public V computeIfAbsent(long key, LongFunction<? extends V> mappingFunction)
+    {
+        final long hash = hash(key);
+        final Stripe stripe = stripeFor(hash);
+        V value = stripe.get(key, hash);
+        if (value != null) return value;
+        return stripe.computeIfAbsent(key, hash, mappingFunction);
+    }
+
+    /**
+     * @return removed value or null if there was none
+     */
+    public V remove(long key)
+    {
+        final long hash = hash(key);
+        return stripeFor(hash).remove(key, hash, null);
+    }
+
+    /**
+     * Remove the key only if it's mapped to the given value (compared by identity).
+     *
+     * @return true if removed
+     */
+    public boolean remove(long key, V value)
+    {
+        if (value == null) return false;
+        final long hash = hash(key);
+        return stripeFor(hash).remove(key, hash, value) != null;
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (Stripe stripe : stripes) size += stripe.size();
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    public void clear()
+    {
+        for (Stripe stripe : stripes) stripe.clear();
+    }
+
+    /**
+     * Get values snapshot. Each stripe is copied atomically, but not the map as a whole.
+     *
+     * @return new list of values
+     */
+    public List<V> values()
+    {
+        List<V> values = new ArrayList<>(size());
+        for (Stripe stripe : stripes) stripe.copyValuesTo(values);
+        return values;
+    }
+
+    /**
+     * Copy all mappings from another map.
+     */
+    public void putAll(LongConcurrentMap<? extends V> other)
+    {
+        for (Stripe stripe : other.stripes) stripe.copyTo(this);
+    }
+
+    private static final class Table
+    {
+        final long[] keys;
+        //null value is an empty slot
+        final Object[] values;
+        final int mask;
+
+        Table(int capacity)
+        {
+            keys = new long[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private static final class Stripe
+    {
+        private final StampedLock lock = new StampedLock();
+        private volatile Table table = new Table(INITIAL_CAPACITY);
+        //guarded by lock
+        private int size;
+
+        @SuppressWarnings("unchecked")
+        <V> V get(long key, long hash)
+        {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0)
+            {
+                final Object value = find(table, key, hash);
+                if (lock.validate(stamp)) return (V) value;
+            }
+            stamp = lock.readLock();
+            try
+            {
+                return (V) find(table, key, hash);
+            } finally
+            {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private static Object find(Table table, long key, long hash)
+        {
+            final long[] keys = table.keys;
+            final Object[] values = table.values;
+            //Bounded by capacity so a torn optimistic read can't loop forever
+            for (int i = (int) hash & table.mask, probes = 0; probes <= table.mask; i = (i + 1) & table.mask, probes++)
+            {
+                final Object value = values[i];
+                if (value == null) return null;
+                if (keys[i] == key) return value;
+            }
+            return null;
+        }
+
+        //Must be called under write lock; returns slot of the key or of the empty slot where it belongs
+        private static int slot(Table table, long key, long hash)
+        {
+            int i = (int) hash & table.mask;
+            while (table.values[i] != null && table.keys[i] != key) i = (i + 1) & table.mask;
+            return i;
+        }
+
+        @SuppressWarnings("unchecked")
+        <V> V put(long key, long hash, V value, boolean onlyIfAbsent)
+        {
+            final long stamp = lock.writeLock();
+            try
+            {
+                Table t = table;
+                int i = slot(t, key, hash);
+                final Object previous = t.values[i];
+                if (previous != null)
+                {
+                    if (!onlyIfAbsent) t.values[i] = value;
+                    return (V) previous;
+                }
+                insert(t, i, key, hash, value);
+                return null;
+            } finally
+            {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        <V> V computeIfAbsent(long key, long hash, LongFunction<? extends V> mappingFunction)
+        {
+            final long stamp = lock.writeLock();
+            try
+            {
+                Table t = table;
+                int i = slot(t, key, hash);
+                if (t.values[i] != null) return (V) t.values[i];
+                final V value = mappingFunction.apply(key);
+                if (value == null) return null;
+                insert(t, i, key, hash, value);
+                return value;
+            } finally
+            {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        private void insert(Table t, int i, long key, long hash, Object value)
+        {
+            //Keep load factor at most 1/2 so probe sequences stay short
+            if ((size + 1) * 2 > t.keys.length)
+            {
+                t = resize(t);
+                i = slot(t, key, hash);
+            }
+            t.keys[i] = key;
+            t.values[i] = value;
+            size++;
+        }
+
+        private Table resize(Table old)
+        {
+            Table t = new Table(old.keys.length * 2);
+            for (int j = 0; j < old.keys.length; j++)
+            {
+                if (old.values[j] == null) continue;
+                int i = slot(t, old.keys[j], hash(old.keys[j]));
+                t.keys[i] = old.keys[j];
+                t.values[i] = old.values[j];
+            }
+            table = t;
+            return t;
+        }
+
+        @SuppressWarnings("unchecked")
+        <V> V remove(long key, long hash, Object expected)
+        {
+            final long stamp = lock.writeLock();
+            try
+            {
+                final Table t = table;
+                int i = slot(t, key, hash);
+                final Object previous = t.values[i];
+                if (previous == null || (expected != null && previous != expected)) return null;
+
+                //Backward shift deletion: move following entries of the cluster into the hole, no tombstones
+                int hole = i;
+                for (int j = (hole + 1) & t.mask; t.values[j] != null; j = (j + 1) & t.mask)
+                {
+                    final int home = (int) hash(t.keys[j]) & t.mask;
+                    //Entry at j can move to the hole only if its home isn't cyclically in (hole, j]
+                    if (((j - home) & t.mask) >= ((j - hole) & t.mask))
+                    {
+                        t.keys[hole] = t.keys[j];
+                        t.values[hole] = t.values[j];
+                        hole = j;
+                    }
+                }
+                t.values[hole] = null;
+                t.keys[hole] = 0;
+                size--;
+                return (V) previous;
+            } finally
+            {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int size()
+        {
+            final long stamp = lock.readLock();
+            try
+            {
+                return size;
+            } finally
+            {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        void clear()
+        {
+            final long stamp = lock.writeLock();
+            try
+            {
+                table = new Table(INITIAL_CAPACITY);
+                size = 0;
+            } finally
+            {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        <V> void copyValuesTo(List<V> to)
+        {
+            final long stamp = lock.readLock();
+            try
+            {
+                for (Object value : table.values)
+                {
+                    if (value != null) to.add((V) value);
+                }
+            } finally
+            {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        <V> void copyTo(LongConcurrentMap<V> to)
+        {
+            final long stamp = lock.readLock();
+            try
+            {
+                final Table t = table;
+                for (int i = 0; i < t.keys.length; i++)
+                {
+                    if (t.values[i] != null) to.put(t.keys[i], (V) t.values[i]);
+                }
+            } finally
+            {
+                lock.unlockRead(stamp);
+            }
+        }
+    }
+}
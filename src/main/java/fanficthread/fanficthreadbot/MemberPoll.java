@@ -1,13 +1,28 @@
 package fanficthread.fanficthreadbot;
 
-import com.google.gson.*;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import net.dv8tion.jda.core.entities.Emote;
 import net.dv8tion.jda.core.entities.Guild;
-import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.MessageReaction;
+import net.dv8tion.jda.core.entities.Role;
 import net.dv8tion.jda.core.entities.TextChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import static fanficthread.fanficthreadbot.Util.getReactionMention;
 import static fanficthread.fanficthreadbot.Util.getUserMention;
@@ -15,10 +30,22 @@ import static fanficthread.fanficthreadbot.Util.getUserMention;
 @JsonAdapter(MemberPoll.JsonAdapter.class)
 public class MemberPoll
 {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MemberPoll.class);
+
+    public static final int VOTE_NONE = 0;
+    public static final int VOTE_UP = 1;
+    public static final int VOTE_DOWN = -1;
+
     private final long messageId;
     private final long userId;
     private final long timestampCreated;
 
+    //Users whose poll messages are being sent
+    private static final Set<Long> CREATING = ConcurrentHashMap.newKeySet();
+
+    private final MemberPollTally tally = new MemberPollTally();
+    private final AtomicBoolean finished = new AtomicBoolean();
+
     public MemberPoll(long messageId, long userId, long timestampCreated)
     {
         this.messageId = messageId;
@@ -26,18 +53,28 @@ public class MemberPoll
         this.timestampCreated = timestampCreated;
     }
 
-    public static MemberPoll create(FanficThreadBot bot, long userId, int nospaceChance)
+    /**
+     * Send poll message for the user, add voting reactions to it and add the poll to the state.
+     * Doesn't block.
+     *
+     * @param bot           bot
+     * @param userId        user to vote for
+     * @param nospaceChance chance in percents that the user is a raid account, shown if it's over 50
+     * @return future of the created poll, completed exceptionally if user already has a poll
+     * or MemberVote channel doesn't exist
+     */
+    public static CompletableFuture<MemberPoll> create(FanficThreadBot bot, long userId, int nospaceChance)
     {
         final BotSettings settings = bot.getSettings();
         final BotState state = bot.getState();
         final Guild guild = bot.getGuild();
 
-        if (state.getMemberPollByUser(userId) != null)
-            throw new IllegalArgumentException("Poll is already up for user " + userId);
-
         final TextChannel channel = bot.getGuild().getTextChannelById(settings.getMemberVoteChannel());
         if (channel == null)
-            throw new IllegalStateException("MemberVote channel " + settings.getMemberVoteChannel() + " does not exists");
+            return failed(new IllegalStateException("MemberVote channel " + settings.getMemberVoteChannel() + " does not exists"));
+        //Poll is in the state only when its message is sent, so polls being created are tracked separately
+        if (state.getMemberPollByUser(userId) != null || !CREATING.add(userId))
+            return failed(new IllegalArgumentException("Poll is already up for user " + userId));
 
         StringBuilder builder = new StringBuilder();
         builder.append("Посвятить в участники ").append(getUserMention(userId)).append('?');
@@ -48,15 +85,26 @@ public class MemberPoll
         builder.append("\n").append(getReactionMention(settings.getMemberVoteReactionUpvote())).append(" - да");
         builder.append("\n").append(getReactionMention(settings.getMemberVoteReactionDownvote())).append(" - нет");
 
-        Message message = channel.sendMessage(builder.toString()).complete();
+        return channel.sendMessage(builder.toString()).submit()
+                .thenApply(message ->
+                {
+                    Emote emoteUp = guild.getEmoteById(settings.getMemberVoteReactionUpvote());
+                    Emote emoteDown = guild.getEmoteById(settings.getMemberVoteReactionDownvote());
+                    message.addReaction(emoteUp).queue((v) -> message.addReaction(emoteDown).queue());
 
-        Emote emoteUp = guild.getEmoteById(settings.getMemberVoteReactionUpvote());
-        Emote emoteDown = guild.getEmoteById(settings.getMemberVoteReactionDownvote());
-        message.addReaction(emoteUp).queue((v) -> message.addReaction(emoteDown).queue());
+                    MemberPoll memberPoll = new MemberPoll(message.getIdLong(), userId, message.getCreationTime().toEpochSecond());
+                    state.addMemberPoll(memberPoll);
+                    bot.getMemberPollExpiry().add(memberPoll);
+                    return memberPoll;
+                })
+                .whenComplete((poll, e) -> CREATING.remove(userId));
+    }
 
-        MemberPoll memberPoll = new MemberPoll(message.getIdLong(), userId, message.getCreationTime().toEpochSecond());
-        state.addMemberPoll(memberPoll);
-        return memberPoll;
+    private static <T> CompletableFuture<T> failed(Throwable e)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
     }
 
     public long getMessageId()
@@ -74,30 +122,191 @@ public class MemberPoll
         return timestampCreated;
     }
 
-    public static class JsonAdapter implements JsonSerializer<MemberPoll>, JsonDeserializer<MemberPoll>
+    public MemberPollTally getTally()
+    {
+        return tally;
+    }
+
+    /**
+     * Mark the poll as finished, either by votes or by expiry.
+     *
+     * @return false if the poll is already finished
+     */
+    boolean finish()
+    {
+        return finished.compareAndSet(false, true);
+    }
+
+    /**
+     * @return copy of the poll with a copy of its voter ledger
+     */
+    MemberPoll copy()
+    {
+        MemberPoll copy = new MemberPoll(messageId, userId, timestampCreated);
+        tally.copyTo(copy.tally);
+        return copy;
+    }
+
+    /**
+     * @return {@link #VOTE_UP}, {@link #VOTE_DOWN} or {@link #VOTE_NONE} if reaction isn't a voting one
+     */
+    public static int getVote(BotSettings settings, MessageReaction.ReactionEmote emote)
+    {
+        //Unicode emojis have no id and can't be voting reactions
+        if (!emote.isEmote()) return VOTE_NONE;
+        final long reactionId = emote.getIdLong();
+        if (reactionId == settings.getMemberVoteReactionUpvote()) return VOTE_UP;
+        if (reactionId == settings.getMemberVoteReactionDownvote()) return VOTE_DOWN;
+        return VOTE_NONE;
+    }
+
+    /**
+     * Finish the poll if it has enough votes: grant member roles to the user and delete the poll message.
+     * Only votes of guild members count.
+     *
+     * @return true if the poll was finished by this call
+     */
+    public boolean checkVotes(FanficThreadBot bot)
+    {
+        final BotSettings settings = bot.getSettings();
+        final BotState state = bot.getState();
+        final Guild guild = bot.getGuild();
+
+        final int score = tally.getScore(id -> guild.getMemberById(id) != null);
+        if (score < settings.getMemberVotesRequired())
+        {
+            LOGGER.debug("MemberVote score {} of poll user {} message {}; not enough for completion", score, userId, messageId);
+            return false;
+        }
+        if (!finish() || !state.removeMemberPoll(this)) return false;
+
+        final TextChannel voteChannel = guild.getTextChannelById(settings.getMemberVoteChannel());
+        if (voteChannel == null)
+        {
+            LOGGER.error("MemberVote channel {} doesn't exists", settings.getMemberVoteChannel());
+            return true;
+        }
+
+        Member member = guild.getMemberById(userId);
+        if (member == null)
+        {
+            LOGGER.error("MemberVote user {} is not a member", userId);
+            return true;
+        }
+
+        Set<Long> rolesToAddIds = new HashSet<>(settings.getMemberAdditionalRoles());
+        rolesToAddIds.add(settings.getMemberRole());
+
+        Set<Role> rolesToAdd = rolesToAddIds.stream().map(guild::getRoleById).collect(Collectors.toSet());
+
+        guild.getController().addRolesToMember(member, rolesToAdd).queue();
+
+        voteChannel.editMessageById(messageId, "Голосование закончено, " + getUserMention(userId) + " теперь участник. Это сообщение будет удалено через несколько секунд.").queue();
+        voteChannel.deleteMessageById(messageId).queueAfter(10L, TimeUnit.SECONDS);
+
+        LOGGER.debug("MemberVote poll finished, granted roles to user {}", userId);
+        return true;
+    }
+
+    public static class JsonAdapter extends TypeAdapter<MemberPoll>
     {
         @Override
-        public JsonElement serialize(MemberPoll poll, Type type, JsonSerializationContext context)
+        public void write(JsonWriter out, MemberPoll poll) throws IOException
+        {
+            out.beginObject();
+            out.name("message_id").value(poll.getMessageId());
+            out.name("user_id").value(poll.getUserId());
+            out.name("timestamp_created").value(poll.getTimestampCreated());
+            writeVoters(out, "upvoters", poll.getTally().getUpvoters());
+            writeVoters(out, "downvoters", poll.getTally().getDownvoters());
+            out.endObject();
+        }
+
+        private static void writeVoters(JsonWriter out, String name, Map<Long, Long> voters) throws IOException
+        {
+            out.name(name).beginArray();
+            for (Map.Entry<Long, Long> voter : voters.entrySet())
+            {
+                out.beginObject();
+                out.name("user_id").value(voter.getKey());
+                out.name("timestamp").value(voter.getValue());
+                out.endObject();
+            }
+            out.endArray();
+        }
+
+        private static void readVoters(JsonReader in, MemberPollTally tally, boolean upvote) throws IOException
         {
-            JsonObject json = new JsonObject();
+            in.beginArray();
+            while (in.hasNext())
+            {
+                Long userId = null;
+                Long timestamp = null;
 
-            json.addProperty("message_id", poll.getMessageId());
-            json.addProperty("user_id", poll.getUserId());
-            json.addProperty("timestamp_created", poll.getTimestampCreated());
+                in.beginObject();
+                while (in.hasNext())
+                {
+                    switch (in.nextName())
+                    {
+                        case "user_id":
+                            userId = in.nextLong();
+                            break;
+                        case "timestamp":
+                            timestamp = in.nextLong();
+                            break;
+                        default:
+                            in.skipValue();
+                    }
+                }
+                in.endObject();
 
-            return json;
+                if (userId == null || timestamp == null)
+                    throw new JsonParseException("Member poll voter must have user_id and timestamp");
+                tally.addVote(userId, upvote, timestamp);
+            }
+            in.endArray();
         }
 
         @Override
-        public MemberPoll deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext context) throws JsonParseException
+        public MemberPoll read(JsonReader in) throws IOException
         {
-            JsonObject json = jsonElement.getAsJsonObject();
+            Long messageId = null;
+            Long userId = null;
+            Long timestampCreated = null;
+            //Polls saved before the ledger have no voters, they are filled by reconciliation
+            final MemberPollTally tally = new MemberPollTally();
 
-            final long messageId = json.get("message_id").getAsLong();
-            final long userId = json.get("user_id").getAsLong();
-            final long timestampCreated = json.get("timestamp_created").getAsLong();
+            in.beginObject();
+            while (in.hasNext())
+            {
+                switch (in.nextName())
+                {
+                    case "message_id":
+                        messageId = in.nextLong();
+                        break;
+                    case "user_id":
+                        userId = in.nextLong();
+                        break;
+                    case "timestamp_created":
+                        timestampCreated = in.nextLong();
+                        break;
+                    case "upvoters":
+                        readVoters(in, tally, true);
+                        break;
+                    case "downvoters":
+                        readVoters(in, tally, false);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
 
-            return new MemberPoll(messageId, userId, timestampCreated);
+            if (messageId == null || userId == null || timestampCreated == null)
+                throw new JsonParseException("Member poll must have message_id, user_id and timestamp_created");
+            MemberPoll poll = new MemberPoll(messageId, userId, timestampCreated);
+            tally.copyTo(poll.tally);
+            return poll;
         }
     }
 }
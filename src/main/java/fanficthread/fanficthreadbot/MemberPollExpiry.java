@@ -0,0 +1,127 @@
+package fanficthread.fanficthreadbot;
+
+import net.dv8tion.jda.core.entities.TextChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes member polls and deletes their messages when they are older than MemberVote timeout.
+ * <p>
+ * Timeout is the same for all polls, so polls ordered by creation time are ordered by deadline too.
+ * They are kept in a priority queue and a single timer is scheduled to the deadline of the oldest one.
+ * Polls removed by other means stay in the queue until their deadline and are skipped then.
+ * Expired poll is removed in the member vote mailbox of its user, in order with its vote events.
+ * Thread-safe.
+ */
+public final class MemberPollExpiry
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(MemberPollExpiry.class);
+
+    private final FanficThreadBot bot;
+    private final ScheduledExecutorService executor;
+
+    //guarded by this
+    private final PriorityQueue<MemberPoll> queue = new PriorityQueue<>(
+            Comparator.comparingLong(MemberPoll::getTimestampCreated).thenComparingLong(MemberPoll::getMessageId));
+    private ScheduledFuture<?> timer;
+
+    public MemberPollExpiry(FanficThreadBot bot, ScheduledExecutorService executor)
+    {
+        this.bot = bot;
+        this.executor = executor;
+    }
+
+    /**
+     * Start tracking the poll.
+     */
+    public synchronized void add(MemberPoll poll)
+    {
+        queue.add(poll);
+        if (queue.peek() == poll) reschedule();
+    }
+
+    /**
+     * Replace tracked polls, e.g. after the state is loaded.
+     */
+    public synchronized void reset(Collection<MemberPoll> polls)
+    {
+        queue.clear();
+        queue.addAll(polls);
+        reschedule();
+    }
+
+    /**
+     * Schedule the timer to the deadline of the oldest poll.
+     * Must be called when MemberVote is enabled or its timeout changes.
+     */
+    public synchronized void reschedule()
+    {
+        if (timer != null)
+        {
+            timer.cancel(false);
+            timer = null;
+        }
+        final BotSettings settings = bot.getSettings();
+        //Disabled MemberVote doesn't expire polls, enabling it reschedules
+        if (!settings.isMemberVoteEnabled()) return;
+        final MemberPoll oldest = queue.peek();
+        if (oldest == null) return;
+
+        final long deadlineMillis = TimeUnit.SECONDS.toMillis(oldest.getTimestampCreated() + settings.getMemberVoteTimeout());
+        final long delayMillis = Math.max(0, deadlineMillis - System.currentTimeMillis());
+        timer = executor.schedule(this::expire, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void expire()
+    {
+        final BotSettings settings = bot.getSettings();
+        final long now = Instant.now().getEpochSecond();
+
+        try
+        {
+            MemberPoll poll;
+            while ((poll = queue.peek()) != null && now - poll.getTimestampCreated() >= settings.getMemberVoteTimeout())
+            {
+                queue.poll();
+                final MemberPoll expired = poll;
+                bot.getMemberVoteTasks().execute(poll.getUserId(), () -> expirePoll(expired));
+            }
+        } catch (RuntimeException e)
+        {
+            LOGGER.error("Failed to expire member polls", e);
+        }
+        reschedule();
+    }
+
+    private void expirePoll(MemberPoll poll)
+    {
+        final BotSettings settings = bot.getSettings();
+        //Poll could be finished or removed since it was added
+        if (!poll.finish() || !bot.getState().removeMemberPoll(poll)) return;
+
+        final long messageId = poll.getMessageId();
+        final TextChannel channel = bot.getGuild().getTextChannelById(settings.getMemberVoteChannel());
+        if (channel == null)
+        {
+            LOGGER.error("Voting channel {} does not exist", settings.getMemberVoteChannel());
+        } else
+        {
+            channel.deleteMessageById(messageId).queue(null,
+                    e -> LOGGER.error("Failed to delete expired poll message {}", messageId, e));
+        }
+        LOGGER.debug("Removed member poll {}/{} because it is older than the limit of {}", poll.getUserId(), messageId, settings.getMemberVoteTimeout());
+    }
+
+    public synchronized int size()
+    {
+        return queue.size();
+    }
+}
@@ -0,0 +1,226 @@
+package fanficthread.fanficthreadbot;
+
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.MessageReaction;
+import net.dv8tion.jda.core.entities.TextChannel;
+import net.dv8tion.jda.core.entities.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reconciles voter ledgers of all member polls with the reactions of their messages.
+ * <p>
+ * Poll messages are fetched in bulk, by pages of vote channel history starting from the oldest poll.
+ * Voters of every voting reaction are fetched, all pages of them: equal count and ledger size don't mean
+ * the same voters, since a vote could be removed and another one added while the bot was offline.
+ * Only reactions with no votes, and no votes in the ledger, are skipped. Polls whose messages are gone are removed.
+ * Polls that got enough votes are finished.
+ * Every change of a poll is done in the member vote mailbox of its user, in order with its vote events.
+ */
+public final class MemberPollReconciler
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(MemberPollReconciler.class);
+
+    private static final int HISTORY_PAGE_SIZE = 100;
+    private static final int VOTERS_PAGE_SIZE = 100;
+
+    private final FanficThreadBot bot;
+
+    private final AtomicInteger historyRequests = new AtomicInteger();
+    private final AtomicInteger voterRequests = new AtomicInteger();
+
+    public MemberPollReconciler(FanficThreadBot bot)
+    {
+        this.bot = bot;
+    }
+
+    /**
+     * @return future completed when all polls are reconciled
+     */
+    public CompletableFuture<Void> reconcileAll()
+    {
+        final BotSettings settings = bot.getSettings();
+        final BotState state = bot.getState();
+        final Collection<MemberPoll> polls = state.getMemberPolls();
+        if (polls.isEmpty()) return CompletableFuture.completedFuture(null);
+
+        final TextChannel channel = bot.getGuild().getTextChannelById(settings.getMemberVoteChannel());
+        if (channel == null)
+        {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("MemberVote channel " + settings.getMemberVoteChannel() + " does not exists"));
+            return future;
+        }
+
+        long oldestId = Long.MAX_VALUE;
+        long newestId = 0;
+        final Map<Long, MemberPoll> pollsByMessage = new HashMap<>();
+        for (MemberPoll poll : polls)
+        {
+            pollsByMessage.put(poll.getMessageId(), poll);
+            oldestId = Math.min(oldestId, poll.getMessageId());
+            newestId = Math.max(newestId, poll.getMessageId());
+            //Votes made while messages are fetched are replayed over the fetched ones
+            poll.getTally().beginReconcile();
+        }
+
+        final Map<Long, Message> messages = new HashMap<>();
+        return fetchMessages(channel, oldestId - 1, newestId, pollsByMessage, messages)
+                .thenCompose(v ->
+                {
+                    List<CompletableFuture<Void>> futures = new ArrayList<>();
+                    for (MemberPoll poll : pollsByMessage.values())
+                    {
+                        Message message = messages.get(poll.getMessageId());
+                        if (message == null)
+                        {
+                            futures.add(runInMailbox(poll, () ->
+                            {
+                                poll.getTally().abortReconcile();
+                                if (!state.removeMemberPoll(poll)) return;
+                                LOGGER.info("Poll message {} for user {} was deleted; poll removed", poll.getMessageId(), poll.getUserId());
+                            }));
+                            continue;
+                        }
+                        futures.add(reconcile(poll, message)
+                                .thenCompose(reconciled -> runInMailbox(poll, () -> poll.checkVotes(bot)))
+                                .exceptionally(e ->
+                                {
+                                    LOGGER.error("Failed to reconcile poll u:{}/m:{}", poll.getUserId(), poll.getMessageId(), e);
+                                    return null;
+                                }));
+                    }
+                    return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+                })
+                .whenComplete((v, e) ->
+                {
+                    if (e != null)
+                    {
+                        for (MemberPoll poll : pollsByMessage.values()) poll.getTally().abortReconcile();
+                        LOGGER.error("Failed to reconcile member polls", e);
+                        return;
+                    }
+                    LOGGER.info("Reconciled {} member polls with {} history and {} voter requests",
+                            pollsByMessage.size(), historyRequests.get(), voterRequests.get());
+                });
+    }
+
+    /**
+     * Fetch history pages after the given message until all poll messages are covered.
+     */
+    private CompletableFuture<Void> fetchMessages(TextChannel channel, long afterId, long newestId,
+                                                  Map<Long, MemberPoll> polls, Map<Long, Message> messages)
+    {
+        historyRequests.incrementAndGet();
+        return channel.getHistoryAfter(afterId, HISTORY_PAGE_SIZE).submit().thenCompose(history ->
+        {
+            final List<Message> page = history.getRetrievedHistory();
+            long lastId = afterId;
+            for (Message message : page)
+            {
+                final long id = message.getIdLong();
+                if (polls.containsKey(id)) messages.put(id, message);
+                lastId = Math.max(lastId, id);
+            }
+            if (page.size() < HISTORY_PAGE_SIZE || lastId >= newestId) return CompletableFuture.<Void>completedFuture(null);
+            return fetchMessages(channel, lastId, newestId, polls, messages);
+        });
+    }
+
+    private CompletableFuture<Void> reconcile(MemberPoll poll, Message message)
+    {
+        final BotSettings settings = bot.getSettings();
+        final MemberPollTally tally = poll.getTally();
+
+        //Voting reaction that's gone means no votes of that kind
+        final List<CompletableFuture<List<Long>>> upvoters = new ArrayList<>();
+        final List<CompletableFuture<List<Long>>> downvoters = new ArrayList<>();
+        boolean hasUpvoteReaction = false;
+        boolean hasDownvoteReaction = false;
+        for (MessageReaction reaction : message.getReactions())
+        {
+            final int vote = MemberPoll.getVote(settings, reaction.getReactionEmote());
+            if (vote == MemberPoll.VOTE_NONE)
+            {
+                reaction.getUsers().queue(users -> users.forEach(u -> reaction.removeReaction(u).queue()));
+                LOGGER.debug("Non-voting reaction {} removed from message {}", reaction.getReactionEmote().getName(), message.getIdLong());
+                continue;
+            }
+            final boolean upvote = vote == MemberPoll.VOTE_UP;
+            if (upvote)
+            {
+                hasUpvoteReaction = true;
+            } else
+            {
+                hasDownvoteReaction = true;
+            }
+            //Own reaction is there from poll creation and isn't in the ledger
+            final int count = reaction.getCount() - (reaction.isSelf() ? 1 : 0);
+            if (count == 0 && (upvote ? tally.getUpvoteCount() : tally.getDownvoteCount()) == 0) continue;
+            (upvote ? upvoters : downvoters).add(fetchVoters(reaction));
+        }
+
+        if (upvoters.isEmpty() && downvoters.isEmpty() && hasUpvoteReaction && hasDownvoteReaction)
+        {
+            tally.abortReconcile();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final CompletableFuture<List<Long>> fetchedUpvoters = upvoters.isEmpty()
+                ? CompletableFuture.completedFuture(hasUpvoteReaction ? null : new ArrayList<>())
+                : upvoters.get(0);
+        final CompletableFuture<List<Long>> fetchedDownvoters = downvoters.isEmpty()
+                ? CompletableFuture.completedFuture(hasDownvoteReaction ? null : new ArrayList<>())
+                : downvoters.get(0);
+        return fetchedUpvoters.thenCombine(fetchedDownvoters, (up, down) -> runInMailbox(poll, () ->
+        {
+            bot.getState().reconcileMemberPollVotes(poll, up, down, Instant.now().getEpochSecond());
+            LOGGER.debug("Voters of poll u:{}/m:{} reconciled: {} up, {} down", poll.getUserId(), poll.getMessageId(),
+                    tally.getUpvoteCount(), tally.getDownvoteCount());
+        })).thenCompose(future -> future);
+    }
+
+    /**
+     * @return future completed when the step is done in the member vote mailbox of the poll user
+     */
+    private CompletableFuture<Void> runInMailbox(MemberPoll poll, Runnable step)
+    {
+        return CompletableFuture.runAsync(step, task -> bot.getMemberVoteTasks().execute(poll.getUserId(), task));
+    }
+
+    /**
+     * Fetch all pages of users of the reaction.
+     */
+    private CompletableFuture<List<Long>> fetchVoters(MessageReaction reaction)
+    {
+        final CompletableFuture<List<Long>> future = new CompletableFuture<>();
+        final List<Long> voters = new ArrayList<>(reaction.getCount());
+        final int[] users = new int[1];
+        reaction.getUsers().limit(VOTERS_PAGE_SIZE).forEachAsync((User user) ->
+        {
+            users[0]++;
+            if (!user.isBot()) voters.add(user.getIdLong());
+            return true;
+        }, future::completeExceptionally).whenComplete((v, e) ->
+        {
+            voterRequests.addAndGet(users[0] / VOTERS_PAGE_SIZE + 1);
+            if (e != null)
+            {
+                future.completeExceptionally(e);
+            } else
+            {
+                future.complete(voters);
+            }
+        });
+        return future;
+    }
+}
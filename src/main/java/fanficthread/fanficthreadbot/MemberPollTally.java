@@ -0,0 +1,167 @@
+package fanficthread.fanficthreadbot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongPredicate;
+
+/**
+ * Voter ledger of a member poll: who voted which way and when, updated from reaction events.
+ * <p>
+ * Ledger is persisted with {@link BotState} and is mutated only through it, so every change is journaled.
+ * Reactions made while the bot was offline are not seen, so the ledger is reconciled with the poll message reactions
+ * by {@link MemberPollReconciler}. Events received during reconciliation are replayed on top of the fetched reactions.
+ * Thread-safe.
+ */
+public final class MemberPollTally
+{
+    //guarded by this, user id -> vote timestamp in epoch seconds
+    private final Map<Long, Long> upvoters = new HashMap<>();
+    private final Map<Long, Long> downvoters = new HashMap<>();
+    private List<Vote> pending;
+
+    /**
+     * Add a vote. Repeated vote keeps the time of the first one.
+     */
+    synchronized void addVote(long userId, boolean upvote, long timestamp)
+    {
+        (upvote ? upvoters : downvoters).putIfAbsent(userId, timestamp);
+        if (pending != null) pending.add(new Vote(userId, upvote, timestamp, true));
+    }
+
+    synchronized void removeVote(long userId, boolean upvote)
+    {
+        (upvote ? upvoters : downvoters).remove(userId);
+        if (pending != null) pending.add(new Vote(userId, upvote, 0, false));
+    }
+
+    synchronized void clear()
+    {
+        upvoters.clear();
+        downvoters.clear();
+        if (pending != null) pending.clear();
+    }
+
+    /**
+     * Start recording events to replay them when the reactions are fetched.
+     */
+    public synchronized void beginReconcile()
+    {
+        pending = new ArrayList<>();
+    }
+
+    /**
+     * Replace voters with the fetched ones and replay events received since {@link #beginReconcile()}.
+     * Voters that are already in the ledger keep their vote time.
+     *
+     * @param fetchedUpvoters   fetched upvoters, null to keep the current ones
+     * @param fetchedDownvoters fetched downvoters, null to keep the current ones
+     * @param timestamp         vote time of the new voters
+     */
+    synchronized void finishReconcile(Collection<Long> fetchedUpvoters, Collection<Long> fetchedDownvoters, long timestamp)
+    {
+        if (fetchedUpvoters != null) replace(upvoters, fetchedUpvoters, timestamp);
+        if (fetchedDownvoters != null) replace(downvoters, fetchedDownvoters, timestamp);
+        if (pending != null)
+        {
+            for (Vote vote : pending)
+            {
+                Map<Long, Long> voters = vote.upvote ? upvoters : downvoters;
+                if (vote.added)
+                {
+                    voters.putIfAbsent(vote.userId, vote.timestamp);
+                } else
+                {
+                    voters.remove(vote.userId);
+                }
+            }
+            pending = null;
+        }
+    }
+
+    private static void replace(Map<Long, Long> voters, Collection<Long> fetched, long timestamp)
+    {
+        Map<Long, Long> previous = new HashMap<>(voters);
+        voters.clear();
+        for (long userId : fetched)
+        {
+            voters.put(userId, previous.getOrDefault(userId, timestamp));
+        }
+    }
+
+    /**
+     * Stop recording events, keeping the current voters.
+     */
+    public synchronized void abortReconcile()
+    {
+        pending = null;
+    }
+
+    /**
+     * @param isLegitVoter filter of voters that count
+     * @return upvotes minus downvotes
+     */
+    public synchronized int getScore(LongPredicate isLegitVoter)
+    {
+        int score = 0;
+        for (long userId : upvoters.keySet())
+        {
+            if (isLegitVoter.test(userId)) score++;
+        }
+        for (long userId : downvoters.keySet())
+        {
+            if (isLegitVoter.test(userId)) score--;
+        }
+        return score;
+    }
+
+    public synchronized int getUpvoteCount()
+    {
+        return upvoters.size();
+    }
+
+    public synchronized int getDownvoteCount()
+    {
+        return downvoters.size();
+    }
+
+    /**
+     * @return copy of upvoters with their vote timestamps
+     */
+    public synchronized Map<Long, Long> getUpvoters()
+    {
+        return new HashMap<>(upvoters);
+    }
+
+    /**
+     * @return copy of downvoters with their vote timestamps
+     */
+    public synchronized Map<Long, Long> getDownvoters()
+    {
+        return new HashMap<>(downvoters);
+    }
+
+    synchronized void copyTo(MemberPollTally other)
+    {
+        other.upvoters.putAll(upvoters);
+        other.downvoters.putAll(downvoters);
+    }
+
+    private static final class Vote
+    {
+        private final long userId;
+        private final boolean upvote;
+        private final long timestamp;
+        private final boolean added;
+
+        private Vote(long userId, boolean upvote, long timestamp, boolean added)
+        {
+            this.userId = userId;
+            this.upvote = upvote;
+            this.timestamp = timestamp;
+            this.added = added;
+        }
+    }
+}
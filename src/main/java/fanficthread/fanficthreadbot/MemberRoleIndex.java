@@ -0,0 +1,108 @@
+package fanficthread.fanficthreadbot;
+
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.Role;
+
+import java.util.List;
+
+/**
+ * Guild members split by whether they hold the member role, fed from member join, leave and role events.
+ * <p>
+ * Checks of a single user are O(1) lookups and lists of holders or non-users cost O(result),
+ * instead of looping over roles of every guild member. Bots are in neither set.
+ * Index is rebuilt from the guild when it's ready and when the member role is changed.
+ * Reads are lock-free, updates are serialized. Thread-safe.
+ */
+public final class MemberRoleIndex
+{
+    //Values are the user ids, so the sets can be listed
+    private final LongConcurrentMap<Long> holders = new LongConcurrentMap<>();
+    private final LongConcurrentMap<Long> nonUsers = new LongConcurrentMap<>();
+    private volatile long memberRoleId;
+
+    /**
+     * Index all members of the guild.
+     */
+    public synchronized void rebuild(Guild guild, long memberRoleId)
+    {
+        this.memberRoleId = memberRoleId;
+        holders.clear();
+        nonUsers.clear();
+        for (Member member : guild.getMembers()) update(member);
+    }
+
+    /**
+     * Index the member after join or change of roles.
+     */
+    public synchronized void update(Member member)
+    {
+        final long userId = member.getUser().getIdLong();
+        if (member.getUser().isBot())
+        {
+            remove(userId);
+            return;
+        }
+        boolean holder = false;
+        for (Role role : member.getRoles())
+        {
+            if (role.getIdLong() == memberRoleId)
+            {
+                holder = true;
+                break;
+            }
+        }
+        if (holder)
+        {
+            nonUsers.remove(userId);
+            holders.put(userId, userId);
+        } else
+        {
+            holders.remove(userId);
+            nonUsers.put(userId, userId);
+        }
+    }
+
+    /**
+     * Forget the user after leave.
+     */
+    public synchronized void remove(long userId)
+    {
+        holders.remove(userId);
+        nonUsers.remove(userId);
+    }
+
+    /**
+     * @return member role the index is built for
+     */
+    public long getMemberRoleId()
+    {
+        return memberRoleId;
+    }
+
+    public boolean hasMemberRole(long userId)
+    {
+        return holders.containsKey(userId);
+    }
+
+    /**
+     * @return true if user is a guild member without member role and not a bot
+     */
+    public boolean isNonUser(long userId)
+    {
+        return nonUsers.containsKey(userId);
+    }
+
+    public List<Long> getHolders()
+    {
+        return holders.values();
+    }
+
+    /**
+     * @return guild members without member role, bots excluded
+     */
+    public List<Long> getNonUsers()
+    {
+        return nonUsers.values();
+    }
+}
@@ -1,7 +1,10 @@
 package fanficthread.fanficthreadbot;
 
-import com.google.gson.*;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import net.dv8tion.jda.core.entities.Guild;
 import net.dv8tion.jda.core.entities.Member;
 import net.dv8tion.jda.core.entities.Role;
@@ -10,10 +13,13 @@ import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 import java.time.Instant;
 import java.util.List;
 
+/**
+ * Immutable narrator time value, see {@link NarratorLedger} for the live times.
+ */
 @JsonAdapter(Narrator.JsonAdapter.class)
 public class Narrator implements Comparable<Narrator>
 {
@@ -21,11 +27,11 @@ public class Narrator implements Comparable<Narrator>
 
     private final long id;
     //seconds
-    private int time;
+    private final int time;
 
     public Narrator(long id)
     {
-        this.id = id;
+        this(id, 0);
     }
 
     public Narrator(long id, int time)
@@ -39,23 +45,11 @@ public class Narrator implements Comparable<Narrator>
         return id;
     }
 
-    public void addTime(int time)
-    {
-        if (time < 0) throw new IllegalArgumentException("Can't add less than 0 seconds of time");
-        this.time += time;
-    }
-
     public int getTime()
     {
         return time;
     }
 
-    public void setTime(int time)
-    {
-        if (time < 0) throw new IllegalArgumentException("Time can't be less than 0");
-        this.time = time;
-    }
-
     @Override
     public int compareTo(@NotNull Narrator o)
     {
@@ -81,27 +75,41 @@ public class Narrator implements Comparable<Narrator>
         return (int) (id ^ (id >>> 32));
     }
 
-    public static class JsonAdapter implements JsonSerializer<Narrator>, JsonDeserializer<Narrator>
+    public static class JsonAdapter extends TypeAdapter<Narrator>
     {
         @Override
-        public JsonElement serialize(Narrator narrator, Type type, JsonSerializationContext context)
+        public void write(JsonWriter out, Narrator narrator) throws IOException
         {
-            JsonObject json = new JsonObject();
-
-            json.addProperty("id", narrator.getId());
-            json.addProperty("time", narrator.getTime());
-
-            return json;
+            out.beginObject();
+            out.name("id").value(narrator.getId());
+            out.name("time").value(narrator.getTime());
+            out.endObject();
         }
 
         @Override
-        public Narrator deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext context) throws JsonParseException
+        public Narrator read(JsonReader in) throws IOException
         {
-            JsonObject json = jsonElement.getAsJsonObject();
-
-            final long id = json.get("id").getAsLong();
-            final int time = json.get("time").getAsInt();
-
+            Long id = null;
+            Integer time = null;
+
+            in.beginObject();
+            while (in.hasNext())
+            {
+                switch (in.nextName())
+                {
+                    case "id":
+                        id = in.nextLong();
+                        break;
+                    case "time":
+                        time = in.nextInt();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+
+            if (id == null || time == null) throw new JsonParseException("Narrator must have id and time");
             return new Narrator(id, time);
         }
     }
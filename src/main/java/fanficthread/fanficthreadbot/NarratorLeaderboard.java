@@ -0,0 +1,283 @@
+package fanficthread.fanficthreadbot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Narrators ordered by narrated time, descending, then by id.
+ * <p>
+ * Order-statistic treap with subtree sizes: update, rank and top-k are O(log n) expected.
+ * Maintained by {@link NarratorLedger} on every time change.
+ * <p>
+ * Thread-safe.
+ */
+public final class NarratorLeaderboard
+{
+    //guarded by this
+    private final LongConcurrentMap<Node> nodes = new LongConcurrentMap<>();
+    private Node root;
+
+    /**
+     * Set narrator time, adding the narrator if needed.
+     */
+    synchronized void set(long id, int time)
+    {
+        Node node = nodes.get(id);
+        if (node == null)
+        {
+            node = new Node(id, time);
+            nodes.put(id, node);
+        } else
+        {
+            if (node.time == time) return;
+            //Node is reused, it keeps its priority
+            root = erase(root, node.time, id);
+            node.time = time;
+            node.left = null;
+            node.right = null;
+            node.size = 1;
+        }
+        root = insert(root, node);
+    }
+
+    synchronized void remove(long id)
+    {
+        Node node = nodes.remove(id);
+        if (node != null) root = erase(root, node.time, id);
+    }
+
+    synchronized void clear()
+    {
+        nodes.clear();
+        root = null;
+    }
+
+    public synchronized int size()
+    {
+        return size(root);
+    }
+
+    /**
+     * @param id narrator user id
+     * @return 0-based place of the narrator, -1 if there is no such narrator
+     */
+    public synchronized int rank(long id)
+    {
+        final Node node = nodes.get(id);
+        if (node == null) return -1;
+
+        int rank = 0;
+        Node t = root;
+        while (t != null)
+        {
+            final int c = compare(node.time, id, t.time, t.id);
+            if (c == 0) return rank + size(t.left);
+            if (c < 0)
+            {
+                t = t.left;
+            } else
+            {
+                rank += size(t.left) + 1;
+                t = t.right;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param from  0-based place of the first narrator
+     * @param count max count of narrators
+     * @return narrators at places from {@code from}, in order
+     */
+    public synchronized List<Narrator> range(int from, int count)
+    {
+        if (from < 0) throw new IllegalArgumentException("Place can't be less than 0");
+        List<Narrator> out = new ArrayList<>(Math.max(0, Math.min(count, size(root) - from)));
+        collect(root, from, from + count, 0, out);
+        return out;
+    }
+
+    public List<Narrator> top(int count)
+    {
+        return range(0, count);
+    }
+
+    /**
+     * Top narrators and place of the narrator, read at once so they agree with each other.
+     * If the narrator is below the top, its neighbours above and below are included too.
+     *
+     * @param id    narrator user id
+     * @param count max count of top narrators
+     */
+    public synchronized Standing standing(long id, int count)
+    {
+        final List<Narrator> top = range(0, count);
+        final int rank = rank(id);
+        if (rank < count) return new Standing(top, rank, rank, Collections.emptyList());
+        final int from = Math.max(count, rank - 1);
+        return new Standing(top, rank, from, range(from, rank + 2 - from));
+    }
+
+    private static void collect(Node t, int from, int to, int offset, List<Narrator> out)
+    {
+        if (t == null || offset >= to || offset + t.size <= from) return;
+        final int place = offset + size(t.left);
+        collect(t.left, from, to, offset, out);
+        if (place >= from && place < to) out.add(new Narrator(t.id, t.time));
+        collect(t.right, from, to, place + 1, out);
+    }
+
+    private static int compare(int time1, long id1, int time2, long id2)
+    {
+        if (time1 != time2) return time1 > time2 ? -1 : 1;
+        return Long.compare(id1, id2);
+    }
+
+    private static int size(Node t)
+    {
+        return t == null ? 0 : t.size;
+    }
+
+    private static Node insert(Node t, Node node)
+    {
+        if (t == null) return node;
+        if (node.priority > t.priority)
+        {
+            split(t, node.time, node.id, node);
+            node.update();
+            return node;
+        }
+        if (compare(node.time, node.id, t.time, t.id) < 0)
+        {
+            t.left = insert(t.left, node);
+        } else
+        {
+            t.right = insert(t.right, node);
+        }
+        t.update();
+        return t;
+    }
+
+    //Splits t into nodes less than the key, put to into.left, and the rest, put to into.right
+    private static void split(Node t, int time, long id, Node into)
+    {
+        if (t == null)
+        {
+            into.left = null;
+            into.right = null;
+            return;
+        }
+        if (compare(t.time, t.id, time, id) < 0)
+        {
+            split(t.right, time, id, into);
+            t.right = into.left;
+            t.update();
+            into.left = t;
+        } else
+        {
+            split(t.left, time, id, into);
+            t.left = into.right;
+            t.update();
+            into.right = t;
+        }
+    }
+
+    private static Node erase(Node t, int time, long id)
+    {
+        if (t == null) return null;
+        final int c = compare(time, id, t.time, t.id);
+        if (c == 0) return merge(t.left, t.right);
+        if (c < 0)
+        {
+            t.left = erase(t.left, time, id);
+        } else
+        {
+            t.right = erase(t.right, time, id);
+        }
+        t.update();
+        return t;
+    }
+
+    private static Node merge(Node left, Node right)
+    {
+        if (left == null) return right;
+        if (right == null) return left;
+        if (left.priority > right.priority)
+        {
+            left.right = merge(left.right, right);
+            left.update();
+            return left;
+        }
+        right.left = merge(left, right.left);
+        right.update();
+        return right;
+    }
+
+    public static final class Standing
+    {
+        private final List<Narrator> top;
+        private final int rank;
+        private final int neighboursFrom;
+        private final List<Narrator> neighbours;
+
+        private Standing(List<Narrator> top, int rank, int neighboursFrom, List<Narrator> neighbours)
+        {
+            this.top = top;
+            this.rank = rank;
+            this.neighboursFrom = neighboursFrom;
+            this.neighbours = neighbours;
+        }
+
+        public List<Narrator> getTop()
+        {
+            return top;
+        }
+
+        /**
+         * @return 0-based place of the narrator, -1 if there is no such narrator
+         */
+        public int getRank()
+        {
+            return rank;
+        }
+
+        /**
+         * @return 0-based place of the first neighbour
+         */
+        public int getNeighboursFrom()
+        {
+            return neighboursFrom;
+        }
+
+        /**
+         * @return narrator with its neighbours if it's below the top, empty list otherwise
+         */
+        public List<Narrator> getNeighbours()
+        {
+            return neighbours;
+        }
+    }
+
+    private static final class Node
+    {
+        final long id;
+        int time;
+        final int priority = ThreadLocalRandom.current().nextInt();
+        int size = 1;
+        Node left;
+        Node right;
+
+        Node(long id, int time)
+        {
+            this.id = id;
+            this.time = time;
+        }
+
+        void update()
+        {
+            size = 1 + size(left) + size(right);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package fanficthread.fanficthreadbot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Narrated time of all narrators.
+ * <p>
+ * Ids and times are kept in dense chunked primitive arrays, narrator id is mapped to its slot in them.
+ * Slot value packs narrated time in the high 32 bits and time added since it was last journaled in the low 32 bits,
+ * so an increment of both is a single lock-free atomic add, and the journal can take the added time
+ * together with the time it belongs to. Only adding a new narrator, removal and snapshots take the ledger lock.
+ * Slots of removed narrators are not reused until {@link #clear()}, so an increment racing with removal
+ * can only hit a dead slot and never another narrator.
+ * <p>
+ * Time set and removal are mirrored to the {@link NarratorLeaderboard} at once. Increments never lock it:
+ * the first increment of a narrator since the last catch-up flags its slot and queues the narrator,
+ * and only queued narrators are caught up when the leaderboard is taken.
+ * <p>
+ * Thread-safe.
+ */
+public final class NarratorLedger
+{
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final long UNJOURNALED_MASK = 0xFFFFFFFFL;
+
+    @FunctionalInterface
+    public interface JournalSink
+    {
+        void timeAdded(long id, int seconds);
+    }
+
+    private final NarratorLeaderboard leaderboard = new NarratorLeaderboard();
+    private volatile Storage storage = new Storage();
+
+    /**
+     * @return leaderboard with all increments done before the call
+     */
+    public NarratorLeaderboard getLeaderboard()
+    {
+        synchronized (leaderboard)
+        {
+            final Storage s = storage;
+            //Narrators queued during the catch-up are left for the next one, so it can't run forever
+            for (int queued = s.changed.size(); queued > 0; queued--)
+            {
+                final Long id = s.changed.poll();
+                if (id == null) break;
+                final Integer slot = s.slots.get(id);
+                //Removed narrator is already removed from the leaderboard
+                if (slot == null) continue;
+                //Flag is cleared before the time is read, so a later increment queues the narrator again
+                s.flag(slot).set(slot & CHUNK_MASK, 0);
+                leaderboard.set(id, time(s.value(slot).get(slot & CHUNK_MASK)));
+            }
+        }
+        return leaderboard;
+    }
+
+    private static int time(long value)
+    {
+        return (int) (value >>> 32);
+    }
+
+    /**
+     * @param id narrator user id
+     * @return narrator or null if there is no narrator with such id
+     */
+    public Narrator get(long id)
+    {
+        final Storage s = storage;
+        final Integer slot = s.slots.get(id);
+        if (slot == null) return null;
+        return new Narrator(id, time(s.value(slot).get(slot & CHUNK_MASK)));
+    }
+
+    /**
+     * @param id narrator user id
+     * @return narrated time in seconds, 0 if there is no narrator with such id
+     */
+    public int getTime(long id)
+    {
+        final Storage s = storage;
+        final Integer slot = s.slots.get(id);
+        if (slot == null) return 0;
+        return time(s.value(slot).get(slot & CHUNK_MASK));
+    }
+
+    public boolean contains(long id)
+    {
+        return storage.slots.containsKey(id);
+    }
+
+    /**
+     * Atomically add time, creating narrator if needed. Lock-free unless the narrator is new.
+     * Added time is also kept as not journaled, see {@link #drainUnjournaled(JournalSink)}.
+     *
+     * @param id      narrator user id
+     * @param seconds seconds to add
+     * @return new narrated time
+     */
+    public int addTime(long id, int seconds)
+    {
+        if (seconds < 0) throw new IllegalArgumentException("Can't add less than 0 seconds of time");
+        final Storage s = storage;
+        final int slot = slotOf(s, id);
+        final int time = time(s.value(slot).addAndGet(slot & CHUNK_MASK, ((long) seconds << 32) | seconds));
+        final AtomicIntegerArray flag = s.flag(slot);
+        if (flag.get(slot & CHUNK_MASK) == 0 && flag.compareAndSet(slot & CHUNK_MASK, 0, 1)) s.changed.add(id);
+        return time;
+    }
+
+    /**
+     * Set time, creating narrator if needed. Time added before is dropped as journaled, the set overrides it.
+     *
+     * @param id      narrator user id
+     * @param seconds new narrated time
+     */
+    public void setTime(long id, int seconds)
+    {
+        if (seconds < 0) throw new IllegalArgumentException("Time can't be less than 0");
+        final Storage s = storage;
+        final int slot = slotOf(s, id);
+        s.value(slot).set(slot & CHUNK_MASK, (long) seconds << 32);
+        syncLeaderboard(id);
+    }
+
+    /**
+     * @return true if narrator was removed
+     */
+    public boolean remove(long id)
+    {
+        synchronized (this)
+        {
+            final Storage s = storage;
+            final Integer slot = s.slots.remove(id);
+            if (slot == null) return false;
+            s.ids[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] = 0;
+            s.value(slot).set(slot & CHUNK_MASK, 0);
+            s.size--;
+        }
+        syncLeaderboard(id);
+        return true;
+    }
+
+    public void clear()
+    {
+        synchronized (leaderboard)
+        {
+            synchronized (this)
+            {
+                storage = new Storage();
+            }
+            leaderboard.clear();
+        }
+    }
+
+    /**
+     * Copy the current time of the narrator to the leaderboard.
+     * Current time is read under the leaderboard lock instead of being passed, so racing updates
+     * of the same narrator can't be applied out of order: the last one always sees the latest time.
+     */
+    private void syncLeaderboard(long id)
+    {
+        synchronized (leaderboard)
+        {
+            final Storage s = storage;
+            final Integer slot = s.slots.get(id);
+            if (slot == null)
+            {
+                leaderboard.remove(id);
+            } else
+            {
+                leaderboard.set(id, time(s.value(slot).get(slot & CHUNK_MASK)));
+            }
+        }
+    }
+
+    public synchronized int size()
+    {
+        return storage.size;
+    }
+
+    /**
+     * Copy all narrators. Narrators can't be added or removed during the copy.
+     *
+     * @return new list of narrators
+     */
+    public synchronized List<Narrator> snapshot()
+    {
+        final Storage s = storage;
+        List<Narrator> narrators = new ArrayList<>(s.size);
+        for (int slot = 0; slot < s.slotCount; slot++)
+        {
+            final long id = s.ids[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+            if (id != 0) narrators.add(new Narrator(id, time(s.value(slot).get(slot & CHUNK_MASK))));
+        }
+        return narrators;
+    }
+
+    /**
+     * Copy all narrators and mark all time as journaled, atomically per narrator:
+     * increments after the copy of a narrator stay not journaled.
+     *
+     * @return new list of narrators
+     */
+    public synchronized List<Narrator> snapshotJournaled()
+    {
+        final Storage s = storage;
+        List<Narrator> narrators = new ArrayList<>(s.size);
+        for (int slot = 0; slot < s.slotCount; slot++)
+        {
+            final long id = s.ids[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+            if (id == 0) continue;
+            final long value = s.value(slot).getAndUpdate(slot & CHUNK_MASK, v -> v & ~UNJOURNALED_MASK);
+            narrators.add(new Narrator(id, time(value)));
+        }
+        return narrators;
+    }
+
+    /**
+     * Pass time added since the last drain to the sink and mark it as journaled.
+     */
+    public synchronized void drainUnjournaled(JournalSink sink)
+    {
+        final Storage s = storage;
+        for (int slot = 0; slot < s.slotCount; slot++)
+        {
+            final long id = s.ids[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+            if (id == 0) continue;
+            final long value = s.value(slot).getAndUpdate(slot & CHUNK_MASK, v -> v & ~UNJOURNALED_MASK);
+            final int seconds = (int) (value & UNJOURNALED_MASK);
+            if (seconds != 0) sink.timeAdded(id, seconds);
+        }
+    }
+
+    private int slotOf(Storage s, long id)
+    {
+        final Integer slot = s.slots.get(id);
+        if (slot != null) return slot;
+        return allocateSlot(s, id);
+    }
+
+    private synchronized int allocateSlot(Storage s, long id)
+    {
+        if (id == 0) throw new IllegalArgumentException("Narrator id can't be 0");
+        //Slot could be allocated by another thread while waiting for the lock
+        final Integer existing = s.slots.get(id);
+        if (existing != null) return existing;
+
+        final int slot = s.slotCount;
+        final int chunk = slot >>> CHUNK_SHIFT;
+        if (chunk == s.values.length)
+        {
+            //Chunks are published before the slot, so lock-free readers always see the chunk of a mapped slot
+            s.ids = Arrays.copyOf(s.ids, chunk + 1);
+            s.ids[chunk] = new long[CHUNK_SIZE];
+            AtomicIntegerArray[] flags = Arrays.copyOf(s.flags, chunk + 1);
+            flags[chunk] = new AtomicIntegerArray(CHUNK_SIZE);
+            s.flags = flags;
+            AtomicLongArray[] values = Arrays.copyOf(s.values, chunk + 1);
+            values[chunk] = new AtomicLongArray(CHUNK_SIZE);
+            s.values = values;
+        }
+        s.ids[chunk][slot & CHUNK_MASK] = id;
+        s.slotCount++;
+        s.size++;
+        s.slots.put(id, slot);
+        return slot;
+    }
+
+    private static final class Storage
+    {
+        final LongConcurrentMap<Integer> slots = new LongConcurrentMap<>();
+        //guarded by the ledger lock
+        long[][] ids = new long[0][];
+        int slotCount;
+        int size;
+        volatile AtomicLongArray[] values = new AtomicLongArray[0];
+        //1 if the slot was incremented since the leaderboard caught up with it
+        volatile AtomicIntegerArray[] flags = new AtomicIntegerArray[0];
+        //Narrators with flagged slots, in order of flagging
+        final ConcurrentLinkedQueue<Long> changed = new ConcurrentLinkedQueue<>();
+
+        AtomicLongArray value(int slot)
+        {
+            return values[slot >>> CHUNK_SHIFT];
+        }
+
+        AtomicIntegerArray flag(int slot)
+        {
+            return flags[slot >>> CHUNK_SHIFT];
+        }
+    }
+}
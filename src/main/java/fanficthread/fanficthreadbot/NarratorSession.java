@@ -0,0 +1,107 @@
+package fanficthread.fanficthreadbot;
+
+import net.dv8tion.jda.core.audio.hooks.ConnectionListener;
+import net.dv8tion.jda.core.audio.hooks.ConnectionStatus;
+import net.dv8tion.jda.core.entities.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+/**
+ * Recording session of a voice channel: its audience and speaking time of its users.
+ * <p>
+ * Session is the connection listener of its audio connection, so speaking events come right to it.
+ * Speaking time is flushed to the sink periodically and when the session is closed.
+ * Thread-safe.
+ */
+public final class NarratorSession implements ConnectionListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(NarratorSession.class);
+
+    private static final long FLUSH_INTERVAL_SEC = 10;
+
+    private final long channelId;
+    private final IntSupplier minAudience;
+    private final SpeakingAccumulator.Sink sink;
+    private final AtomicInteger audience;
+    private final SpeakingAccumulator speaking = new SpeakingAccumulator();
+    private final ScheduledFuture<?> flushTask;
+
+    /**
+     * @param audience    count of users in the channel, bots excluded
+     * @param minAudience min audience for speech to be counted
+     * @param sink        receiver of speaking time
+     */
+    NarratorSession(long channelId, int audience, IntSupplier minAudience, SpeakingAccumulator.Sink sink,
+                    ScheduledExecutorService executor)
+    {
+        this.channelId = channelId;
+        this.audience = new AtomicInteger(audience);
+        this.minAudience = minAudience;
+        this.sink = sink;
+        this.flushTask = executor.scheduleWithFixedDelay(() -> speaking.flush(System.nanoTime(), sink),
+                FLUSH_INTERVAL_SEC, FLUSH_INTERVAL_SEC, TimeUnit.SECONDS);
+    }
+
+    public long getChannelId()
+    {
+        return channelId;
+    }
+
+    public int getAudience()
+    {
+        return audience.get();
+    }
+
+    public void audienceJoined()
+    {
+        LOGGER.debug("Session {} audience incremented to {}", channelId, audience.incrementAndGet());
+    }
+
+    public void audienceLeft(long userId)
+    {
+        speaking.record(userId, false, System.nanoTime());
+        LOGGER.debug("Session {} audience decremented to {}", channelId, audience.decrementAndGet());
+    }
+
+    /**
+     * Stop the session and flush all speaking time.
+     */
+    void close()
+    {
+        flushTask.cancel(false);
+        speaking.close(System.nanoTime(), sink);
+    }
+
+    @Override
+    public void onPing(long ping)
+    {
+    }
+
+    @Override
+    public void onStatusChange(ConnectionStatus status)
+    {
+    }
+
+    @Override
+    public void onUserSpeaking(User user, boolean isSpeaking)
+    {
+        if (user.isBot()) return;
+        userSpeaking(user.getIdLong(), isSpeaking, System.nanoTime());
+    }
+
+    /**
+     * @param timeNanos time of the toggle from {@link System#nanoTime()}
+     */
+    public void userSpeaking(long userId, boolean isSpeaking, long timeNanos)
+    {
+        //Speech started without enough audience isn't counted, stop of counted speech always is
+        if (isSpeaking && audience.get() < minAudience.getAsInt()) return;
+        speaking.record(userId, isSpeaking, timeNanos);
+    }
+}
@@ -0,0 +1,77 @@
+package fanficthread.fanficthreadbot;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.IntSupplier;
+
+/**
+ * Active {@link NarratorSession}s by voice channel id.
+ * <p>
+ * Sessions are independent, each has its own audience and speaking time.
+ * Registry itself doesn't limit the count of sessions, but a bot has one audio connection per guild
+ * and there is one recorder, so {@link fanficthread.fanficthreadbot.listeners.NarratorListener}
+ * keeps at most one session open, the one of the channel the recorder is in.
+ * Thread-safe.
+ */
+public final class NarratorSessions
+{
+    private final IntSupplier minAudience;
+    private final SpeakingAccumulator.Sink sink;
+    private final ScheduledExecutorService executor;
+    private final LongConcurrentMap<NarratorSession> sessions = new LongConcurrentMap<>();
+
+    /**
+     * @param minAudience min audience for speech to be counted
+     * @param sink        receiver of speaking time of all sessions
+     * @param executor    executor of periodic flushes
+     */
+    public NarratorSessions(IntSupplier minAudience, SpeakingAccumulator.Sink sink, ScheduledExecutorService executor)
+    {
+        this.minAudience = minAudience;
+        this.sink = sink;
+        this.executor = executor;
+    }
+
+    /**
+     * Open session of the channel.
+     *
+     * @param audience count of users in the channel, bots excluded
+     * @return new session or null if the channel already has one
+     */
+    public NarratorSession open(long channelId, int audience)
+    {
+        final NarratorSession[] created = new NarratorSession[1];
+        sessions.computeIfAbsent(channelId, id -> created[0] = new NarratorSession(id, audience, minAudience, sink, executor));
+        return created[0];
+    }
+
+    /**
+     * @return session of the channel or null if there is none
+     */
+    public NarratorSession get(long channelId)
+    {
+        return sessions.get(channelId);
+    }
+
+    /**
+     * Close session of the channel and flush its speaking time.
+     *
+     * @return closed session or null if there was none
+     */
+    public NarratorSession close(long channelId)
+    {
+        final NarratorSession session = sessions.remove(channelId);
+        if (session != null) session.close();
+        return session;
+    }
+
+    public List<NarratorSession> getSessions()
+    {
+        return sessions.values();
+    }
+
+    public int size()
+    {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,226 @@
+package fanficthread.fanficthreadbot;
+
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.TextChannel;
+import net.dv8tion.jda.core.entities.User;
+import net.dv8tion.jda.webhook.WebhookMessageBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reposts non-announcement messages from announcement channels to their repost channels and deletes the originals.
+ * <p>
+ * Repost is a non-blocking pipeline: previous message lookup and attachment downloads run in parallel,
+ * the lookup is a history request only if the previous message isn't in {@link ChannelMessageIndex},
+ * then the webhook message is sent and the original is deleted. Attachments are downloaded with {@link AttachmentRelay};
+ * the ones that can't be re-uploaded are re-posted as links.
+ * All stages run on the repost executor, never on JDA threads that complete the requests.
+ * Count of reposts in progress is limited, since each one holds its downloaded attachments until it's sent.
+ * When the limit is reached, messages are deleted without repost.
+ * Thread-safe.
+ */
+public final class RepostPipeline
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(RepostPipeline.class);
+
+    private static final String DELETE_REASON = "Non-announcement in an announcement channel";
+
+    private final FanficThreadBot bot;
+    private final Executor executor;
+    private final Semaphore reposts;
+
+    private final LatencyCounter historyLatency = new LatencyCounter("history");
+    private final LatencyCounter downloadLatency = new LatencyCounter("download");
+    private final LatencyCounter sendLatency = new LatencyCounter("send");
+    private final LatencyCounter deleteLatency = new LatencyCounter("delete");
+    private final LatencyCounter totalLatency = new LatencyCounter("total");
+
+    /**
+     * @param executor   executor of pipeline stages, must not run tasks on the submitting thread
+     * @param maxReposts max count of reposts in progress
+     */
+    public RepostPipeline(FanficThreadBot bot, Executor executor, int maxReposts)
+    {
+        this.bot = bot;
+        this.executor = executor;
+        this.reposts = new Semaphore(maxReposts);
+    }
+
+    /**
+     * Repost the message if repost channel is set and delete it.
+     * Original is deleted even if repost failed or too many reposts are in progress.
+     *
+     * @param announcementChannel channel of the message
+     * @param repostChannelId     repost channel id, 0 if there is none
+     * @param message             message to repost
+     * @return future completed when the original is deleted
+     */
+    public CompletableFuture<Void> process(TextChannel announcementChannel, long repostChannelId, Message message)
+    {
+        final long startNanos = System.nanoTime();
+        final boolean admitted = repostChannelId != 0 && reposts.tryAcquire();
+        if (repostChannelId != 0 && !admitted)
+        {
+            LOGGER.warn("Too many re-posts in progress, message {} in announcement channel {} is deleted without re-post",
+                    message.getIdLong(), announcementChannel.getIdLong());
+        }
+        CompletableFuture<Void> repost = admitted
+                ? CompletableFuture.completedFuture(null).thenComposeAsync(v -> repost(announcementChannel, repostChannelId, message), executor)
+                : CompletableFuture.completedFuture(null);
+
+        return repost
+                .handleAsync((v, e) ->
+                {
+                    if (admitted) reposts.release();
+                    if (e != null) LOGGER.error("Failed to re-post message {} from announcement channel {}",
+                            message.getIdLong(), announcementChannel.getIdLong(), e);
+                    return null;
+                }, executor)
+                .thenComposeAsync(v -> timed(deleteLatency, message.delete().reason(DELETE_REASON).submit()), executor)
+                .whenCompleteAsync((v, e) ->
+                {
+                    totalLatency.recordSince(startNanos);
+                    if (e != null)
+                    {
+                        LOGGER.error("Failed to delete non-announcement message {} in announcement channel {}",
+                                message.getIdLong(), announcementChannel.getIdLong(), e);
+                    } else
+                    {
+                        LOGGER.debug("Non-announcement message {} in announcement channel {} deleted",
+                                message.getIdLong(), announcementChannel.getIdLong());
+                    }
+                }, executor);
+    }
+
+    private CompletableFuture<Void> repost(TextChannel announcementChannel, long repostChannelId, Message message)
+    {
+        final Guild guild = announcementChannel.getGuild();
+        final long announcementChannelId = announcementChannel.getIdLong();
+        final TextChannel repostChannel = guild.getTextChannelById(repostChannelId);
+        if (repostChannel == null)
+        {
+            LOGGER.error("Channel {} is used as repost channel for announcement channel {} but doesn't exists", repostChannelId, announcementChannelId);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final long previousId = bot.getChannelMessageIndex().getPrevious(announcementChannelId, message.getIdLong());
+        final CompletableFuture<String> content;
+        if (previousId != ChannelMessageIndex.UNKNOWN)
+        {
+            content = CompletableFuture.completedFuture(buildContent(guild, announcementChannelId, previousId, message));
+        } else
+        {
+            content = timed(historyLatency, announcementChannel.getHistoryBefore(message, 1).submit())
+                    .handleAsync((history, e) ->
+                    {
+                        if (e != null)
+                        {
+                            LOGGER.warn("Failed to get message before {} in announcement channel {}, re-posting without link",
+                                    message.getIdLong(), announcementChannelId, e);
+                            return message.getContentRaw();
+                        }
+                        List<Message> previousMessages = history.getRetrievedHistory();
+                        final long id = previousMessages.isEmpty() ? ChannelMessageIndex.NONE : previousMessages.get(0).getIdLong();
+                        return buildContent(guild, announcementChannelId, id, message);
+                    }, executor);
+        }
+
+        final List<Message.Attachment> attachments = message.getAttachments();
+        final List<CompletableFuture<AttachmentRelay.RelayedFile>> files = new ArrayList<>(attachments.size());
+        for (Message.Attachment attachment : attachments)
+        {
+            files.add(download(attachment));
+        }
+
+        return content
+                .thenCombineAsync(CompletableFuture.allOf(files.toArray(new CompletableFuture[0])), (c, v) ->
+                {
+                    User user = message.getAuthor();
+                    Member member = guild.getMember(user);
+
+                    WebhookMessageBuilder webhookMessageBuilder = new WebhookMessageBuilder();
+                    webhookMessageBuilder.setUsername(((member == null) ? user.getName() : member.getEffectiveName()));
+                    webhookMessageBuilder.setAvatarUrl(user.getEffectiveAvatarUrl());
+                    StringBuilder contentBuilder = new StringBuilder(c);
+                    for (int i = 0; i < attachments.size(); i++)
+                    {
+                        AttachmentRelay.RelayedFile file = files.get(i).join();
+                        if (file != null)
+                        {
+                            file.addTo(webhookMessageBuilder);
+                        } else
+                        {
+                            contentBuilder.append('\n').append(attachments.get(i).getUrl());
+                        }
+                    }
+                    webhookMessageBuilder.setContent(contentBuilder.toString());
+                    webhookMessageBuilder.addEmbeds(message.getEmbeds());
+                    return webhookMessageBuilder.build();
+                }, executor)
+                .thenComposeAsync(webhookMessage -> timed(sendLatency, bot.getBotWebhookCache().send(repostChannel, webhookMessage)), executor)
+                .whenCompleteAsync((v, e) -> closeAll(files), executor)
+                .thenRunAsync(() -> LOGGER.debug("Message {} re-posted from an announcement channel {} to {}",
+                        message.getIdLong(), announcementChannelId, repostChannelId), executor);
+    }
+
+    private static String buildContent(Guild guild, long announcementChannelId, long previousId, Message message)
+    {
+        if (previousId == ChannelMessageIndex.NONE) return message.getContentRaw();
+
+        return "[>>" + previousId + "](<"
+                + Util.getMessageLink(guild.getIdLong(), announcementChannelId, previousId)
+                + ">)\n" + message.getContentRaw();
+    }
+
+    /**
+     * @return future of the downloaded attachment, completed with null if it can't be downloaded
+     */
+    private CompletableFuture<AttachmentRelay.RelayedFile> download(Message.Attachment attachment)
+    {
+        final long startNanos = System.nanoTime();
+        return bot.getAttachmentRelay().fetch(attachment, attachment.getFileName())
+                .handleAsync((file, e) ->
+                {
+                    downloadLatency.recordSince(startNanos);
+                    if (e != null)
+                    {
+                        LOGGER.error("Can't download attachment {}, re-posting it as a link", attachment.getFileName(), e);
+                        return null;
+                    }
+                    return file;
+                }, executor);
+    }
+
+    private void closeAll(List<CompletableFuture<AttachmentRelay.RelayedFile>> files)
+    {
+        //Files are closed only when downloaded, ones still downloading after a failed send close on completion
+        for (CompletableFuture<AttachmentRelay.RelayedFile> file : files)
+        {
+            file.thenAcceptAsync(f ->
+            {
+                if (f != null) f.close();
+            }, executor);
+        }
+    }
+
+    private static <T> CompletableFuture<T> timed(LatencyCounter counter, CompletableFuture<T> future)
+    {
+        final long startNanos = System.nanoTime();
+        //Recorded on the completing thread, so wait in the executor queue isn't counted as request latency
+        return future.whenComplete((v, e) -> counter.recordSince(startNanos));
+    }
+
+    public List<LatencyCounter> getLatencyCounters()
+    {
+        return Arrays.asList(historyLatency, downloadLatency, sendLatency, deleteLatency, totalLatency);
+    }
+}
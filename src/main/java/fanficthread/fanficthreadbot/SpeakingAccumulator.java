@@ -0,0 +1,179 @@
+package fanficthread.fanficthreadbot;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Speaking time of users in a voice session.
+ * <p>
+ * Speaking toggles come many times a second, so they are only appended to a primitive ring buffer
+ * with {@link System#nanoTime()} timestamps. The buffer is drained into per-user speaking intervals
+ * on flush, or when it's full. Flush hands out whole seconds and carries the rest to the next flush,
+ * so short utterances add up instead of being truncated to 0 seconds each.
+ * Users that are speaking at flush have their time till now flushed too.
+ * Thread-safe.
+ */
+public final class SpeakingAccumulator
+{
+    private static final int CAPACITY = 1024;
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int INITIAL_USERS = 16;
+
+    @FunctionalInterface
+    public interface Sink
+    {
+        void add(long userId, int seconds);
+    }
+
+    //guarded by this
+    private final long[] users = new long[CAPACITY];
+    private final long[] nanos = new long[CAPACITY];
+    private final boolean[] speaking = new boolean[CAPACITY];
+    private int head;
+    private int size;
+    //Drained state by user: start of the current interval if speaking and not flushed time.
+    //Session has few users, so they are scanned linearly
+    private long[] userIds = new long[INITIAL_USERS];
+    private boolean[] userSpeaking = new boolean[INITIAL_USERS];
+    private long[] speakingSince = new long[INITIAL_USERS];
+    private long[] unflushedNanos = new long[INITIAL_USERS];
+    private int userCount;
+
+    /**
+     * @param userId     user
+     * @param isSpeaking true if user started speaking, false if stopped or left
+     * @param timeNanos  time of the toggle from {@link System#nanoTime()}
+     */
+    public synchronized void record(long userId, boolean isSpeaking, long timeNanos)
+    {
+        if (size == CAPACITY) drain();
+        final int tail = (head + size) % CAPACITY;
+        users[tail] = userId;
+        nanos[tail] = timeNanos;
+        speaking[tail] = isSpeaking;
+        size++;
+    }
+
+    private void drain()
+    {
+        for (; size > 0; size--, head = (head + 1) % CAPACITY)
+        {
+            final long userId = users[head];
+            if (speaking[head])
+            {
+                final int i = indexOrAdd(userId);
+                if (!userSpeaking[i])
+                {
+                    userSpeaking[i] = true;
+                    speakingSince[i] = nanos[head];
+                }
+                continue;
+            }
+            final int i = indexOf(userId);
+            if (i >= 0 && userSpeaking[i])
+            {
+                userSpeaking[i] = false;
+                addNanos(i, nanos[head] - speakingSince[i]);
+            }
+        }
+    }
+
+    private int indexOf(long userId)
+    {
+        for (int i = 0; i < userCount; i++)
+        {
+            if (userIds[i] == userId) return i;
+        }
+        return -1;
+    }
+
+    private int indexOrAdd(long userId)
+    {
+        final int i = indexOf(userId);
+        if (i >= 0) return i;
+        if (userCount == userIds.length)
+        {
+            final int capacity = userCount * 2;
+            userIds = Arrays.copyOf(userIds, capacity);
+            userSpeaking = Arrays.copyOf(userSpeaking, capacity);
+            speakingSince = Arrays.copyOf(speakingSince, capacity);
+            unflushedNanos = Arrays.copyOf(unflushedNanos, capacity);
+        }
+        userIds[userCount] = userId;
+        userSpeaking[userCount] = false;
+        unflushedNanos[userCount] = 0;
+        return userCount++;
+    }
+
+    /**
+     * Remove the user by moving the last one in its place.
+     */
+    private void removeAt(int i)
+    {
+        final int last = --userCount;
+        userIds[i] = userIds[last];
+        userSpeaking[i] = userSpeaking[last];
+        speakingSince[i] = speakingSince[last];
+        unflushedNanos[i] = unflushedNanos[last];
+    }
+
+    private void addNanos(int i, long time)
+    {
+        if (time > 0) unflushedNanos[i] += time;
+    }
+
+    /**
+     * Pass whole seconds of speaking time to the sink, keeping the rest.
+     *
+     * @param nowNanos time of the flush from {@link System#nanoTime()}
+     */
+    public void flush(long nowNanos, Sink sink)
+    {
+        flush(nowNanos, sink, false);
+    }
+
+    /**
+     * Stop all intervals and pass all speaking time to the sink, the rest is rounded.
+     *
+     * @param nowNanos time of the close from {@link System#nanoTime()}
+     */
+    public void close(long nowNanos, Sink sink)
+    {
+        flush(nowNanos, sink, true);
+    }
+
+    private void flush(long nowNanos, Sink sink, boolean close)
+    {
+        final long[] flushedUsers;
+        final int[] flushedSeconds;
+        int flushedCount = 0;
+        synchronized (this)
+        {
+            drain();
+            flushedUsers = new long[userCount];
+            flushedSeconds = new int[userCount];
+            //Backwards, so the user moved in place of a removed one is already flushed
+            for (int i = userCount - 1; i >= 0; i--)
+            {
+                if (userSpeaking[i])
+                {
+                    addNanos(i, nowNanos - speakingSince[i]);
+                    speakingSince[i] = nowNanos;
+                    if (close) userSpeaking[i] = false;
+                }
+                final long time = unflushedNanos[i] + (close ? SECOND_NANOS / 2 : 0);
+                final int seconds = (int) (time / SECOND_NANOS);
+                if (seconds > 0)
+                {
+                    flushedUsers[flushedCount] = userIds[i];
+                    flushedSeconds[flushedCount] = seconds;
+                    flushedCount++;
+                }
+                unflushedNanos[i] = close ? 0 : time % SECOND_NANOS;
+                if (!userSpeaking[i] && unflushedNanos[i] == 0) removeAt(i);
+            }
+        }
+        //Sink is called outside the lock, it can be slow
+        for (int i = 0; i < flushedCount; i++) sink.add(flushedUsers[i], flushedSeconds[i]);
+    }
+}
@@ -137,6 +137,8 @@ public final class AnnouncementChannelCommand
         }
 
         settings.addAnnouncementChannel(new AnnouncementChannel(channel));
+        final TextChannel textChannel = bot.getGuild().getTextChannelById(channel);
+        if (textChannel != null) bot.getChannelMessageIndex().seed(textChannel);
         commandChannel.sendMessage("Канал **" + getChannelMention(channel) + "** теперь является каналом для объявлений.").queue();
         LOGGER.debug("Channel {} is now an announcement channel", channel);
 
@@ -160,6 +162,7 @@ public final class AnnouncementChannelCommand
         }
 
         settings.removeAnnouncementChannel(channel);
+        bot.getChannelMessageIndex().remove(channel);
         commandChannel.sendMessage("Канал **" + getChannelMention(channel) + "** больше не является каналом для объявлений.").queue();
         LOGGER.debug("Channel {} is now not an announcement channel", channel);
         return 415842214;
@@ -182,6 +185,7 @@ public final class AnnouncementChannelCommand
             return 657616385;
         }
         announcementChannel.setRepostChannelId(repostChannel);
+        settings.markModified();
         commandChannel.sendMessage("Канал **" + getChannelMention(repostChannel) + "** установлен как канал для репостов из **" + getChannelMention(channel) + "**.").queue();
         LOGGER.debug("Channel {} is now the repost channel of announcement channel {}", repostChannel, channel);
         return 414441414;
@@ -203,6 +207,7 @@ public final class AnnouncementChannelCommand
             return 657616385;
         }
         announcementChannel.setRepostChannelId(0);
+        settings.markModified();
         commandChannel.sendMessage("Канал для репостов из " + getChannelMention(channel) + "отключен.").queue();
         LOGGER.debug("Announcement channel {} now doesn't have a repost channel", channel);
 
@@ -2,21 +2,30 @@ package fanficthread.fanficthreadbot.command.impl;
 
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.context.CommandContext;
+import fanficthread.fanficthreadbot.AttachmentRelay;
+import fanficthread.fanficthreadbot.BotExecutor;
+import fanficthread.fanficthreadbot.BotPersistence;
 import fanficthread.fanficthreadbot.BotSettings;
+import fanficthread.fanficthreadbot.BotWebhookCache;
+import fanficthread.fanficthreadbot.ChannelMessageIndex;
 import fanficthread.fanficthreadbot.FanficThreadBot;
+import fanficthread.fanficthreadbot.KeyedSerialExecutor;
+import fanficthread.fanficthreadbot.LatencyCounter;
+import fanficthread.fanficthreadbot.NarratorSession;
 import fanficthread.fanficthreadbot.command.CommandSource;
+import fanficthread.fanficthreadbot.jobs.BotJob;
+import fanficthread.fanficthreadbot.jobs.BotJobManager;
+import fanficthread.fanficthreadbot.jobs.KickNonUsersJob;
+import fanficthread.fanficthreadbot.listeners.MemberVoteListener;
 import net.dv8tion.jda.core.Permission;
-import net.dv8tion.jda.core.entities.Guild;
-import net.dv8tion.jda.core.entities.Member;
 import net.dv8tion.jda.core.entities.TextChannel;
-import net.dv8tion.jda.core.managers.GuildController;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import static com.mojang.brigadier.arguments.IntegerArgumentType.integer;
+import static fanficthread.fanficthreadbot.Util.getUserMention;
 import static fanficthread.fanficthreadbot.command.Commands.argument;
 import static fanficthread.fanficthreadbot.command.Commands.literal;
 
@@ -24,6 +33,9 @@ public final class BotCommand
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(BotCommand.class);
 
+    private static final int DEFAULT_KICK_CONCURRENCY = 2;
+    private static final int DRY_RUN_LISTED_USERS = 20;
+
     private BotCommand()
     {
     }
@@ -38,8 +50,39 @@ public final class BotCommand
                 .then(literal("save")
                         .executes(BotCommand::executeSave)
                 )
+                .then(literal("stats")
+                        .executes(BotCommand::executeStats)
+                )
                 .then(literal("kicknonusers")
-                        .executes(BotCommand::executeKickNonUsers)
+                        .executes(BotCommand::executeKickNonUsersDryRun)
+                        .then(literal("confirm")
+                                .executes(c -> executeKickNonUsers(c, DEFAULT_KICK_CONCURRENCY))
+                                .then(argument("concurrency", integer(1, 10))
+                                        .executes(c -> executeKickNonUsers(c, c.getArgument("concurrency", Integer.class)))
+                                )
+                        )
+                )
+                .then(literal("jobs")
+                        .executes(BotCommand::executeJobs)
+                        .then(literal("cancel")
+                                .then(argument("job-id", integer(1))
+                                        .executes(BotCommand::executeJobCancel)
+                                )
+                        )
+                        .then(literal("rate")
+                                .then(argument("steps-per-minute", integer(1, 600))
+                                        .executes(BotCommand::executeJobRate)
+                                )
+                        )
+                )
+                .then(literal("stateformat")
+                        .executes(BotCommand::executeStateFormatGet)
+                        .then(literal("json")
+                                .executes(c -> executeStateFormatSet(c, BotPersistence.StateFormat.JSON))
+                        )
+                        .then(literal("binary")
+                                .executes(c -> executeStateFormatSet(c, BotPersistence.StateFormat.BINARY))
+                        )
                 )
         );
     }
@@ -50,13 +93,148 @@ public final class BotCommand
         final FanficThreadBot bot = source.getBot();
         final TextChannel commandChannel = source.getChannel();
 
-        commandChannel.sendMessage("Состояние и настройки бота сохранены.").queue();
         LOGGER.info("Bot manual save issued");
-        bot.forceSave();
+        bot.save().thenRun(() -> commandChannel.sendMessage("Состояние и настройки бота сохранены.").queue());
 
         return 45777241;
     }
 
+    private static int executeStats(CommandContext<CommandSource> context)
+    {
+        final CommandSource source = context.getSource();
+        final FanficThreadBot bot = source.getBot();
+        final BotWebhookCache webhookCache = bot.getBotWebhookCache();
+        final TextChannel commandChannel = source.getChannel();
+
+        StringBuilder builder = new StringBuilder("Статистика бота:");
+        builder.append("\nВебхуки: ").append(webhookCache.size()).append(" в кэше, ")
+                .append(webhookCache.getHits()).append(" попаданий, ")
+                .append(webhookCache.getMisses()).append(" промахов, ")
+                .append(webhookCache.getInvalidations()).append(" сбросов");
+        final ChannelMessageIndex messageIndex = bot.getChannelMessageIndex();
+        builder.append("\nИндекс сообщений: ").append(messageIndex.getHits()).append(" попаданий, ")
+                .append(messageIndex.getMisses()).append(" промахов");
+        final AttachmentRelay attachmentRelay = bot.getAttachmentRelay();
+        builder.append("\nВложения: ").append(attachmentRelay.getAvailableBudget() / 1024).append(" КиБ свободно, ")
+                .append(attachmentRelay.getQueuedDownloads()).append(" в очереди");
+        final MemberVoteListener memberVoteListener = bot.getMemberVoteListener();
+        builder.append("\nРеакции голосований: ").append(memberVoteListener.getReactionsProcessed()).append(" обработано, ")
+                .append(memberVoteListener.getReactionsFilteredByChannel()).append(" вне канала, ")
+                .append(memberVoteListener.getReactionsFilteredByPoll()).append(" не к голосованиям");
+        builder.append("\nСессии чтецов: ").append(bot.getNarratorSessions().size());
+        for (NarratorSession session : bot.getNarratorSessions().getSessions())
+        {
+            builder.append("\n• <#").append(session.getChannelId()).append(">: ")
+                    .append(session.getAudience()).append(" слушателей");
+        }
+        builder.append("\nИсполнители:");
+        for (BotExecutor executor : bot.getExecutors())
+        {
+            builder.append("\n• ").append(executor);
+        }
+        for (KeyedSerialExecutor executor : bot.getKeyedExecutors())
+        {
+            builder.append("\n• ").append(executor);
+        }
+        builder.append("\nОбработка сообщений:");
+        for (LatencyCounter counter : bot.getGuildMessageRouter().getLatencyCounters())
+        {
+            builder.append("\n• ").append(counter);
+        }
+        builder.append("\nРепосты:");
+        for (LatencyCounter counter : bot.getRepostPipeline().getLatencyCounters())
+        {
+            builder.append("\n• ").append(counter);
+        }
+
+        commandChannel.sendMessage(builder.toString()).queue();
+
+        return 36652417;
+    }
+
+    private static int executeStateFormatGet(CommandContext<CommandSource> context)
+    {
+        final CommandSource source = context.getSource();
+        final BotSettings settings = source.getBot().getSettings();
+        final TextChannel commandChannel = source.getChannel();
+
+        commandChannel.sendMessage("Состояние бота хранится в формате " + settings.getStateFormat().getName() + ".").queue();
+
+        return 24811536;
+    }
+
+    private static int executeStateFormatSet(CommandContext<CommandSource> context, BotPersistence.StateFormat format)
+    {
+        final CommandSource source = context.getSource();
+        final FanficThreadBot bot = source.getBot();
+        final BotSettings settings = bot.getSettings();
+        final TextChannel commandChannel = source.getChannel();
+
+        if (settings.getStateFormat() == format)
+        {
+            commandChannel.sendMessage("Состояние бота уже хранится в формате " + format.getName() + ".").queue();
+            return 24811538;
+        }
+
+        LOGGER.info("Bot state format change to {} issued", format.getName());
+        settings.setStateFormat(format);
+        bot.save().thenRun(() -> commandChannel.sendMessage("Состояние бота переведено в формат " + format.getName() + ".").queue());
+
+        return 24811537;
+    }
+
+    private static int executeJobs(CommandContext<CommandSource> context)
+    {
+        final CommandSource source = context.getSource();
+        final FanficThreadBot bot = source.getBot();
+        final TextChannel commandChannel = source.getChannel();
+
+        final List<BotJob> jobs = bot.getJobManager().getJobs();
+        if (jobs.isEmpty())
+        {
+            commandChannel.sendMessage("Нет активных задач.").queue();
+            return 63417290;
+        }
+        StringBuilder builder = new StringBuilder("Задачи (").append(bot.getSettings().getJobRate()).append(" шагов в минуту):");
+        for (int i = 0; i < jobs.size(); i++)
+        {
+            builder.append("\n• ").append(BotJobManager.formatReport(jobs.get(i), i == 0 ? "выполняется" : "в очереди"));
+        }
+        commandChannel.sendMessage(builder.toString()).queue();
+
+        return 63417291;
+    }
+
+    private static int executeJobCancel(CommandContext<CommandSource> context)
+    {
+        final CommandSource source = context.getSource();
+        final FanficThreadBot bot = source.getBot();
+        final TextChannel commandChannel = source.getChannel();
+        final int jobId = context.getArgument("job-id", Integer.class);
+
+        //Cancelled job reports itself to its report channel
+        if (!bot.getJobManager().cancel(jobId))
+        {
+            commandChannel.sendMessage("Задачи #" + jobId + " нет.").queue();
+            return 63417292;
+        }
+        return 63417293;
+    }
+
+    private static int executeJobRate(CommandContext<CommandSource> context)
+    {
+        final CommandSource source = context.getSource();
+        final FanficThreadBot bot = source.getBot();
+        final TextChannel commandChannel = source.getChannel();
+        final int rate = context.getArgument("steps-per-minute", Integer.class);
+
+        bot.getSettings().setJobRate(rate);
+        commandChannel.sendMessage("Задачи теперь выполняют " + rate + " шагов в минуту.").queue();
+        LOGGER.debug("Job rate set to {} steps per minute", rate);
+
+        return 63417294;
+    }
+
     private static int executeShutdown(CommandContext<CommandSource> context)
     {
         final CommandSource source = context.getSource();
@@ -70,33 +248,49 @@ public final class BotCommand
         return 4414222;
     }
 
-    private static int executeKickNonUsers(CommandContext<CommandSource> context)
+    private static int executeKickNonUsersDryRun(CommandContext<CommandSource> context)
     {
         final CommandSource source = context.getSource();
         final FanficThreadBot bot = source.getBot();
-        final BotSettings settings = bot.getSettings();
-        final Guild guild = bot.getGuild();
-        final GuildController controller = guild.getController();
         final TextChannel commandChannel = source.getChannel();
-        final long memberRoleId = settings.getMemberRole();
 
-        List<Member> members = guild.getMembers();
-        List<Long> kicked = new ArrayList<>();
-        for (Member member : members)
+        final List<Long> targets = bot.getMemberRoleIndex().getNonUsers();
+        if (targets.isEmpty())
+        {
+            commandChannel.sendMessage("На сервере нет не-участников.").queue();
+            return 44741152;
+        }
+
+        StringBuilder builder = new StringBuilder("Будет кикнуто ").append(targets.size()).append(" не-участников:");
+        for (int i = 0; i < targets.size() && i < DRY_RUN_LISTED_USERS; i++)
         {
-            if (!member.getUser().isBot() && member.getRoles().stream().noneMatch(r -> r.getIdLong() == memberRoleId)
-            )
-            {
-                kicked.add(member.getUser().getIdLong());
-                controller.kick(member, "Non-user kick").queue();
-            }
+            builder.append(' ').append(getUserMention(targets.get(i)));
         }
+        if (targets.size() > DRY_RUN_LISTED_USERS) builder.append(" и другие");
+        builder.append("\nДля кика: bot kicknonusers confirm [одновременных киков]");
+        commandChannel.sendMessage(builder.toString()).queue();
+        LOGGER.debug("Kick non-users dry run found {} users", targets.size());
+
+        return 44741153;
+    }
+
+    private static int executeKickNonUsers(CommandContext<CommandSource> context, int concurrency)
+    {
+        final CommandSource source = context.getSource();
+        final FanficThreadBot bot = source.getBot();
+        final TextChannel commandChannel = source.getChannel();
 
-        if (!kicked.isEmpty())
+        final List<Long> targets = bot.getMemberRoleIndex().getNonUsers();
+        if (targets.isEmpty())
         {
-            LOGGER.info("Kicked non-user members: {}", kicked);
+            commandChannel.sendMessage("На сервере нет не-участников.").queue();
+            return 44741152;
         }
-        commandChannel.sendMessage("Было кикнуто " + kicked.size() + " не-участников.").queue();
+
+        //Kicks are done by a job within the rate budget, it reports the progress to this channel
+        final BotJobManager jobManager = bot.getJobManager();
+        jobManager.submit(new KickNonUsersJob(jobManager.nextId(), commandChannel.getIdLong(), targets, concurrency));
+        LOGGER.info("Kick of {} non-users queued, {} at once", targets.size(), concurrency);
 
         return 44741151;
     }
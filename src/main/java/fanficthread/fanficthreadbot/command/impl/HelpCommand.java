@@ -88,9 +88,10 @@ public final class HelpCommand
                     .append("\n• vote additional <@additional-role> -> display role's status as additional MemberVote role")
                     .append("\n• vote additional <@additional-role> add -> make role additional MemberVote role")
                     .append("\n• vote additional <@additional-role> delete -> remove role from additional MemberVote roles")
-                    .append("\n• vote open all -> open MemberVote poll for all users without member role")
+                    .append("\n• vote open all -> open MemberVote poll for all users without member role, as a job")
                     .append("\n• vote open <@user> -> open MemberVote poll for user")
-                    .append("\n• vote cleanup - clean voting channel from non-poll messages");
+                    .append("\n• vote cleanup -> clean whole voting channel history from non-poll messages, as a job")
+                    .append("\n• vote recount -> recount votes of all polls from their reactions");
             channel.sendMessage(voteBuilder.toString()).queue();
         }
         LOGGER.debug("Command help shown; channel:{}, user:{}", channel.getIdLong(), member.getUser().getIdLong());
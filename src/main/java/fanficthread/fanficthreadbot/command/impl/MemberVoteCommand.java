@@ -4,6 +4,9 @@ import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.context.CommandContext;
 import fanficthread.fanficthreadbot.*;
 import fanficthread.fanficthreadbot.command.CommandSource;
+import fanficthread.fanficthreadbot.jobs.BotJobManager;
+import fanficthread.fanficthreadbot.jobs.CleanupVoteChannelJob;
+import fanficthread.fanficthreadbot.jobs.OpenMemberPollsJob;
 import net.dv8tion.jda.core.Permission;
 import net.dv8tion.jda.core.entities.Guild;
 import net.dv8tion.jda.core.entities.Member;
@@ -41,6 +44,7 @@ import static fanficthread.fanficthreadbot.command.argument.UserArgumentType.use
  * vote additional @additional-role - display current status
  * vote additional @additional-role add - make role additional
  * vote additional @additional-role delete - make role not-additional
+ * vote recount - recount votes of all polls from their reactions
  * <p>
  * Permission level: Admin only
  */
@@ -115,6 +119,9 @@ public final class MemberVoteCommand
                 .then(literal("cleanup")
                         .executes(MemberVoteCommand::executeCleanup)
                 )
+                .then(literal("recount")
+                        .executes(MemberVoteCommand::executeRecount)
+                )
                 .executes(MemberVoteCommand::executeSendStatus)
         );
     }
@@ -124,26 +131,47 @@ public final class MemberVoteCommand
         final CommandSource source = context.getSource();
         final FanficThreadBot bot = source.getBot();
         final BotSettings settings = bot.getSettings();
-        final BotState state = bot.getState();
         final Guild guild = bot.getGuild();
         final TextChannel commandChannel = source.getChannel();
 
-        final TextChannel pollChannel = guild.getTextChannelById(settings.getMemberVoteChannel());
-
-        pollChannel.getHistoryBefore(pollChannel.getLatestMessageIdLong(), 100).complete().getRetrievedHistory().forEach(message ->
-                {
-                    if (state.getMemberPollByMessage(message.getIdLong()) == null)
-                    {
-                        message.delete().queue();
-                    }
-                }
-        );
+        final long pollChannelId = settings.getMemberVoteChannel();
+        final TextChannel pollChannel = guild.getTextChannelById(pollChannelId);
+        if (pollChannel == null)
+        {
+            commandChannel.sendMessage("Канала голосований " + getChannelMention(pollChannelId) + " не существует.").queue();
+            LOGGER.debug("Tried to cleanup member vote channel {} but it doesn't exist", pollChannelId);
+            return 45678728;
+        }
 
-        commandChannel.sendMessage("Канал голосований очищен от лишних сообщений.").queue();
-        LOGGER.debug("Member vote channel {} purged from non-poll messages", settings.getMemberVoteChannel());
+        //History is cleaned by a job within the rate budget, it reports the progress to this channel.
+        //Message id is a timestamp, so the next one is before the latest message and the latest is cleaned too
+        final BotJobManager jobManager = bot.getJobManager();
+        jobManager.submit(new CleanupVoteChannelJob(jobManager.nextId(), commandChannel.getIdLong(),
+                pollChannelId, pollChannel.getLatestMessageIdLong() + 1));
+        LOGGER.debug("Member vote channel {} cleanup is queued", pollChannelId);
         return 45678727;
     }
 
+    private static int executeRecount(CommandContext<CommandSource> context)
+    {
+        final CommandSource source = context.getSource();
+        final FanficThreadBot bot = source.getBot();
+        final TextChannel commandChannel = source.getChannel();
+        final int polls = bot.getState().getMemberPolls().size();
+
+        bot.reconcileMemberPolls().whenComplete((v, e) ->
+        {
+            if (e != null)
+            {
+                commandChannel.sendMessage("Не удалось пересчитать голоса.").queue();
+                return;
+            }
+            commandChannel.sendMessage("Голоса в " + polls + " голосованиях пересчитаны.").queue();
+            LOGGER.debug("Recounted votes of {} member polls", polls);
+        });
+        return 87651093;
+    }
+
     private static int executeOpenAll(CommandContext<CommandSource> context)
     {
         final CommandSource source = context.getSource();
@@ -160,11 +188,7 @@ public final class MemberVoteCommand
             LOGGER.debug("Member role {} doesn't exist", memberRoleId);
         }
 
-        List<Long> users = guild.getMembers().stream()
-                .filter(member -> !member.getUser().isBot())
-                .filter(member -> !member.getRoles().contains(memberRole))
-                .map(member -> member.getUser().getIdLong())
-                .collect(Collectors.toList());
+        final List<Long> users = bot.getMemberRoleIndex().getNonUsers();
 
         if (users.isEmpty())
         {
@@ -173,18 +197,10 @@ public final class MemberVoteCommand
             return 74892161;
         }
 
-        for (long user : users)
-            MemberPoll.create(bot, user, -1);
-
-        StringBuilder builder = new StringBuilder("Голосование для пользователей ");
-        List<String> userMentions = users.stream()
-                .map(Util::getUserNicknameMention)
-                .collect(Collectors.toList());
-        builder.append(String.join(", ", userMentions));
-        builder.append(" открыто.");
-
-        commandChannel.sendMessage(builder.toString()).queue();
-        LOGGER.debug("Member polls for users {} are open", users);
+        //Polls are opened by a job within the rate budget, it reports the progress to this channel
+        final BotJobManager jobManager = bot.getJobManager();
+        jobManager.submit(new OpenMemberPollsJob(jobManager.nextId(), commandChannel.getIdLong(), users));
+        LOGGER.debug("Member polls for {} users are queued", users.size());
         return 787827114;
     }
 
@@ -219,21 +235,24 @@ public final class MemberVoteCommand
             return 65527271;
         }
 
-        List<Role> roles = member.getRoles();
-        for (Role role : roles)
+        if (bot.getMemberRoleIndex().hasMemberRole(user))
         {
-            if (role.getIdLong() == settings.getMemberRole())
-            {
-                commandChannel.sendMessage("Пользователь " + getUserMention(user) + " уже имеет роль участника, голосование не требуется.").queue();
-                LOGGER.debug("Tried to open poll for user {} but user already has member role {}", user, settings.getMemberRole());
-                return 5267878;
-            }
+            commandChannel.sendMessage("Пользователь " + getUserMention(user) + " уже имеет роль участника, голосование не требуется.").queue();
+            LOGGER.debug("Tried to open poll for user {} but user already has member role {}", user, settings.getMemberRole());
+            return 5267878;
         }
 
-        MemberPoll.create(bot, user, -1);
-
-        commandChannel.sendMessage("Голосование для пользователя " + getUserMention(user) + " открыто.").queue();
-        LOGGER.debug("Opened poll for user {}", user);
+        MemberPoll.create(bot, user, -1).whenComplete((poll, e) ->
+        {
+            if (e != null)
+            {
+                commandChannel.sendMessage("Не удалось открыть голосование для пользователя " + getUserMention(user) + ".").queue();
+                LOGGER.error("Failed to open poll for user {}", user, e);
+                return;
+            }
+            commandChannel.sendMessage("Голосование для пользователя " + getUserMention(user) + " открыто.").queue();
+            LOGGER.debug("Opened poll for user {}", user);
+        });
         return 2141245171;
     }
 
@@ -245,6 +264,7 @@ public final class MemberVoteCommand
         final TextChannel commandChannel = source.getChannel();
 
         settings.setMemberVoteEnabled(true);
+        bot.getMemberPollExpiry().reschedule();
         commandChannel.sendMessage("Система демократичного посвящения участников включена.").queue();
         LOGGER.debug("Member vote is enabled");
 
@@ -321,6 +341,7 @@ public final class MemberVoteCommand
         final int timeout = context.getArgument("poll-timeout", Integer.class);
 
         settings.setMemberVoteTimeout(timeout);
+        bot.getMemberPollExpiry().reschedule();
         commandChannel.sendMessage("Максимальное время на голосование установлено как " + timeout + " секунд.").queue();
         LOGGER.debug("Member poll timeout set to {}", timeout);
 
@@ -335,6 +356,7 @@ public final class MemberVoteCommand
         final TextChannel commandChannel = source.getChannel();
         final long memberRole = context.getArgument("member-role", Long.class);
         settings.setMemberRole(memberRole);
+        bot.getMemberRoleIndex().rebuild(bot.getGuild(), memberRole);
         commandChannel.sendMessage("Роль " + getRoleMention(memberRole) + " теперь является ролью участника.").queue();
         LOGGER.debug("Role {} is now the member role", memberRole);
 
@@ -6,6 +6,8 @@ import fanficthread.fanficthreadbot.BotSettings;
 import fanficthread.fanficthreadbot.BotState;
 import fanficthread.fanficthreadbot.FanficThreadBot;
 import fanficthread.fanficthreadbot.Narrator;
+import fanficthread.fanficthreadbot.NarratorLeaderboard;
+import fanficthread.fanficthreadbot.NarratorSession;
 import fanficthread.fanficthreadbot.command.CommandSource;
 import net.dv8tion.jda.core.EmbedBuilder;
 import net.dv8tion.jda.core.Permission;
@@ -15,7 +17,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.awt.*;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Random;
@@ -158,7 +159,6 @@ public final class NarratorCommand
         final BotState state = bot.getState();
         final TextChannel commandChannel = source.getChannel();
 
-        bot.saveState();
         state.clearNarrators();
 
         commandChannel.sendMessage("Пользовательские данные авто-диктора очищены.").queue();
@@ -221,11 +221,13 @@ public final class NarratorCommand
         final long user = context.getArgument("user", Long.class);
         final int seconds = context.getArgument("seconds", Integer.class);
 
-        Narrator narrator = state.getOrCreateNarrator(user);
-        narrator.setTime(seconds);
-
-        commandChannel.sendMessage("Время начитки " + getUserMention(user) + " установлено на " + seconds + " секунд.").queue();
-        LOGGER.debug("Narrator user {} time set to {}", user, seconds);
+        //Ordered with the narrated time being added by the narrator listener
+        bot.getNarratorTasks().execute(user, () ->
+        {
+            state.setNarratorTime(user, seconds);
+            commandChannel.sendMessage("Время начитки " + getUserMention(user) + " установлено на " + seconds + " секунд.").queue();
+            LOGGER.debug("Narrator user {} time set to {}", user, seconds);
+        });
 
         return 609392665;
     }
@@ -239,11 +241,12 @@ public final class NarratorCommand
         final long user = context.getArgument("user", Long.class);
         final int seconds = context.getArgument("seconds", Integer.class);
 
-        Narrator narrator = state.getOrCreateNarrator(user);
-        narrator.addTime(seconds);
-
-        commandChannel.sendMessage(getUserMention(user) + " добавлено " + seconds + " секунд времени начитки. Итого пользователь \"начитал\" " + narrator.getTime() + " секунд.").queue();
-        LOGGER.debug("Narrator user {} added {} seconds to time", user, seconds);
+        bot.getNarratorTasks().execute(user, () ->
+        {
+            final int time = state.addNarratorTime(user, seconds);
+            commandChannel.sendMessage(getUserMention(user) + " добавлено " + seconds + " секунд времени начитки. Итого пользователь \"начитал\" " + time + " секунд.").queue();
+            LOGGER.debug("Narrator user {} added {} seconds to time", user, seconds);
+        });
 
         return 25100837;
     }
@@ -256,8 +259,7 @@ public final class NarratorCommand
         final TextChannel commandChannel = source.getChannel();
         final long user = context.getArgument("user", Long.class);
 
-        Narrator narrator = state.getOrCreateNarrator(user);
-        commandChannel.sendMessage(getUserMention(user) + " начитал " + narrator.getTime() + " секунд.").queue();
+        commandChannel.sendMessage(getUserMention(user) + " начитал " + state.getNarratorTime(user) + " секунд.").queue();
         LOGGER.debug("Sent user {} status", user);
 
         return 981234476;
@@ -276,6 +278,10 @@ public final class NarratorCommand
         builder.append("\nРоль: ").append(getRoleMention(settings.getNarratorRole()));
         builder.append("\nМин. аудитория: ").append(settings.getNarratorMinAudience());
         builder.append("\nРоль активна: ").append(settings.getNarratorActiveTime()).append(" секунд");
+        final List<NarratorSession> sessions = bot.getNarratorListener().getSessions().getSessions();
+        builder.append("\nЗаписываемый канал: ")
+                .append(sessions.isEmpty() ? "нет" : getChannelMention(sessions.get(0).getChannelId()));
+        builder.append("\nВремя начитки считается только в одном голосовом канале: в том, где находится записывающий бот.");
 
         commandChannel.sendMessage(builder.toString()).queue();
         LOGGER.debug("Sent current Narrator status");
@@ -294,7 +300,8 @@ public final class NarratorCommand
         final Member member = source.getMember();
         final long userId = member.getUser().getIdLong();
 
-        List<Narrator> narrators = new ArrayList<>(state.getNarrators());
+        final NarratorLeaderboard.Standing standing = state.getNarratorLeaderboard().standing(userId, max);
+        List<Narrator> narrators = standing.getTop();
         if (narrators.isEmpty())
         {
             commandChannel.sendMessage("Дикторов нет.").queue();
@@ -302,9 +309,7 @@ public final class NarratorCommand
             return 55772174;
         }
 
-        narrators.sort((a, b) -> -Integer.compare(a.getTime(), b.getTime()));
-        Narrator userNarrator = state.getNarrator(userId);
-        int placeOfUser = userNarrator != null ? narrators.indexOf(userNarrator) : -1;
+        final int placeOfUser = standing.getRank();
 
         Random random = new Random();
         final float hue = random.nextFloat();
@@ -330,7 +335,7 @@ public final class NarratorCommand
                         ":keycap_ten:"
                 };
 
-        for (int i = 0; i < narrators.size() && i < max; i++)
+        for (int i = 0; i < narrators.size(); i++)
         {
             Narrator narrator = narrators.get(i);
             builder
@@ -342,15 +347,24 @@ public final class NarratorCommand
                     .appendDescription(String.format(Locale.US, "%.1f", narrator.getTime() / 3600.0f));
             if (i == placeOfUser) builder.appendDescription(" <- **ты!**");
         }
-        if (placeOfUser > max)
+        if (placeOfUser >= max)
         {
-            builder
-                    .appendDescription("\n**• • •**\n")
-                    .appendDescription(Integer.toString(placeOfUser))
-                    .appendDescription("  **|**  ")
-                    .appendDescription(getUserNicknameMention(userNarrator.getId()))
-                    .appendDescription("  **|**  ")
-                    .appendDescription(String.format(Locale.US, "%.1f", userNarrator.getTime() / 3600.0f));
+            //Show the user with their neighbours above and below
+            final int from = standing.getNeighboursFrom();
+            builder.appendDescription("\n**• • •**");
+            List<Narrator> neighbours = standing.getNeighbours();
+            for (int i = 0; i < neighbours.size(); i++)
+            {
+                Narrator narrator = neighbours.get(i);
+                builder
+                        .appendDescription("\n")
+                        .appendDescription(Integer.toString(from + i + 1))
+                        .appendDescription("  **|**  ")
+                        .appendDescription(getUserNicknameMention(narrator.getId()))
+                        .appendDescription("  **|**  ")
+                        .appendDescription(String.format(Locale.US, "%.1f", narrator.getTime() / 3600.0f));
+                if (from + i == placeOfUser) builder.appendDescription(" <- **ты!**");
+            }
         }
 
         commandChannel.sendMessage(builder.build()).queue();
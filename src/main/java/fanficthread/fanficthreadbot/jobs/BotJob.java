@@ -0,0 +1,167 @@
+package fanficthread.fanficthreadbot.jobs;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import fanficthread.fanficthreadbot.FanficThreadBot;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Long-running job split into steps, run by {@link BotJobManager} within the job rate budget.
+ * <p>
+ * Job state is persisted between steps, so the job is resumed after restart.
+ * Steps done since the last save are repeated, so a step must tolerate being done twice.
+ * Job state is guarded by the job monitor.
+ */
+@JsonAdapter(BotJob.JsonAdapter.class)
+public abstract class BotJob
+{
+    private final int id;
+    private final long reportChannelId;
+
+    //guarded by this
+    private int done;
+    private int failed;
+
+    protected BotJob(int id, long reportChannelId)
+    {
+        this.id = id;
+        this.reportChannelId = reportChannelId;
+    }
+
+    public final int getId()
+    {
+        return id;
+    }
+
+    /**
+     * @return text channel where the job reports its progress
+     */
+    public final long getReportChannelId()
+    {
+        return reportChannelId;
+    }
+
+    public abstract String getType();
+
+    /**
+     * @return what the job does, shown in progress reports
+     */
+    public abstract String getDescription();
+
+    /**
+     * @return count of all steps, -1 if unknown
+     */
+    public abstract int getTotal();
+
+    public synchronized int getDone()
+    {
+        return done;
+    }
+
+    public synchronized int getFailed()
+    {
+        return failed;
+    }
+
+    /**
+     * @return progress shown in reports
+     */
+    protected synchronized String getProgress()
+    {
+        return done + "/" + getTotal();
+    }
+
+    protected synchronized void stepDone(boolean success)
+    {
+        done++;
+        if (!success) failed++;
+    }
+
+    /**
+     * Do the next step. Called under the job monitor and only after the previous step is completed.
+     * Job is aborted if the step fails.
+     *
+     * @param bot bot
+     * @return future of true if there are more steps
+     */
+    protected abstract CompletableFuture<Boolean> step(FanficThreadBot bot);
+
+    /**
+     * Called on the job executor when the step is completed, successfully or not, before the next step is scheduled.
+     * Called under the job monitor. Blocking work of the step is done here, not on threads that complete its requests.
+     */
+    protected void afterStep()
+    {
+    }
+
+    /**
+     * Write job specific state. Called under the job monitor.
+     */
+    protected abstract void writeState(JsonWriter out) throws IOException;
+
+    @FunctionalInterface
+    private interface Reader
+    {
+        BotJob read(int id, long reportChannelId, JsonObject state);
+    }
+
+    private static final Map<String, Reader> READERS = new HashMap<>();
+
+    static
+    {
+        READERS.put(OpenMemberPollsJob.TYPE, OpenMemberPollsJob::read);
+        READERS.put(CleanupVoteChannelJob.TYPE, CleanupVoteChannelJob::read);
+        READERS.put(KickNonUsersJob.TYPE, KickNonUsersJob::read);
+    }
+
+    public static class JsonAdapter extends TypeAdapter<BotJob>
+    {
+        @Override
+        public void write(JsonWriter out, BotJob job) throws IOException
+        {
+            synchronized (job)
+            {
+                out.beginObject();
+                out.name("type").value(job.getType());
+                out.name("id").value(job.getId());
+                out.name("report_channel").value(job.getReportChannelId());
+                out.name("done").value(job.done);
+                out.name("failed").value(job.failed);
+                out.name("state").beginObject();
+                job.writeState(out);
+                out.endObject();
+                out.endObject();
+            }
+        }
+
+        @Override
+        public BotJob read(JsonReader in) throws IOException
+        {
+            //Type can be anywhere in the object, so it's read as a tree
+            final JsonObject obj = new JsonParser().parse(in).getAsJsonObject();
+            if (!obj.has("type") || !obj.has("id") || !obj.has("report_channel") || !obj.has("state"))
+                throw new JsonParseException("Job must have type, id, report_channel and state");
+
+            final String type = obj.get("type").getAsString();
+            final Reader reader = READERS.get(type);
+            if (reader == null) throw new JsonParseException("Unknown job type " + type);
+
+            final BotJob job = reader.read(obj.get("id").getAsInt(), obj.get("report_channel").getAsLong(), obj.getAsJsonObject("state"));
+            synchronized (job)
+            {
+                if (obj.has("done")) job.done = obj.get("done").getAsInt();
+                if (obj.has("failed")) job.failed = obj.get("failed").getAsInt();
+            }
+            return job;
+        }
+    }
+}
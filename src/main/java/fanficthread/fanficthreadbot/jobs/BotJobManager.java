@@ -0,0 +1,247 @@
+package fanficthread.fanficthreadbot.jobs;
+
+import fanficthread.fanficthreadbot.FanficThreadBot;
+import net.dv8tion.jda.core.entities.TextChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link BotJob}s one at a time, in order of submission.
+ * <p>
+ * Steps of all jobs share the rate budget of {@link fanficthread.fanficthreadbot.BotSettings#getJobRate()} steps
+ * per minute: the next step is scheduled after the previous one is completed plus the budget interval.
+ * Progress is reported by editing a single message in the job report channel.
+ * Every change bumps the version, so {@link fanficthread.fanficthreadbot.BotPersistence} saves the jobs.
+ * Thread-safe.
+ */
+public final class BotJobManager
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(BotJobManager.class);
+
+    private static final long PROGRESS_REPORT_INTERVAL_MS = 15000;
+
+    private final FanficThreadBot bot;
+    private final ScheduledExecutorService executor;
+    private final AtomicLong version = new AtomicLong();
+
+    //guarded by this
+    private final Deque<BotJob> queue = new ArrayDeque<>();
+    private final Map<Integer, Long> progressMessages = new HashMap<>();
+    private final Map<Integer, Long> lastReportMillis = new HashMap<>();
+    private int nextId = 1;
+    private boolean stepPending;
+
+    public BotJobManager(FanficThreadBot bot, ScheduledExecutorService executor)
+    {
+        this.bot = bot;
+        this.executor = executor;
+    }
+
+    public synchronized int nextId()
+    {
+        return nextId++;
+    }
+
+    public synchronized void submit(BotJob job)
+    {
+        queue.add(job);
+        version.incrementAndGet();
+        report(job, queue.peek() == job ? "выполняется" : "в очереди");
+        LOGGER.info("Job #{} {} submitted with {} steps", job.getId(), job.getType(), job.getTotal());
+        scheduleStep();
+    }
+
+    /**
+     * Continue jobs saved before restart.
+     */
+    public synchronized void resume(Collection<BotJob> jobs)
+    {
+        for (BotJob job : jobs)
+        {
+            queue.add(job);
+            nextId = Math.max(nextId, job.getId() + 1);
+            report(job, "продолжена после перезапуска");
+            LOGGER.info("Job #{} {} resumed at {}/{}", job.getId(), job.getType(), job.getDone(), job.getTotal());
+        }
+        if (!jobs.isEmpty()) version.incrementAndGet();
+        scheduleStep();
+    }
+
+    /**
+     * Cancel the job. Its step in progress, if any, is completed but no new steps are done.
+     *
+     * @return false if there is no such job
+     */
+    public synchronized boolean cancel(int id)
+    {
+        for (BotJob job : queue)
+        {
+            if (job.getId() == id)
+            {
+                queue.remove(job);
+                version.incrementAndGet();
+                reportFinal(job, "отменена");
+                LOGGER.info("Job #{} {} cancelled at {}/{}", job.getId(), job.getType(), job.getDone(), job.getTotal());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return snapshot of queued jobs, the running one first
+     */
+    public synchronized List<BotJob> getJobs()
+    {
+        return new ArrayList<>(queue);
+    }
+
+    /**
+     * @return version of the jobs, incremented on every change
+     */
+    public long getVersion()
+    {
+        return version.get();
+    }
+
+    private void scheduleStep()
+    {
+        if (stepPending || queue.isEmpty()) return;
+        stepPending = true;
+        final long delayMillis = TimeUnit.MINUTES.toMillis(1) / Math.max(1, bot.getSettings().getJobRate());
+        executor.schedule(this::runStep, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void runStep()
+    {
+        final BotJob job;
+        synchronized (this)
+        {
+            job = queue.peek();
+            if (job == null)
+            {
+                stepPending = false;
+                return;
+            }
+        }
+
+        CompletableFuture<Boolean> step;
+        try
+        {
+            synchronized (job)
+            {
+                step = job.step(bot);
+            }
+        } catch (RuntimeException e)
+        {
+            step = new CompletableFuture<>();
+            step.completeExceptionally(e);
+        }
+        step.whenCompleteAsync((hasMore, e) ->
+        {
+            try
+            {
+                synchronized (job)
+                {
+                    job.afterStep();
+                }
+            } catch (RuntimeException e2)
+            {
+                LOGGER.error("Job #{} {} failed to complete its step", job.getId(), job.getType(), e2);
+            }
+            stepCompleted(job, hasMore, e);
+        }, executor);
+    }
+
+    private synchronized void stepCompleted(BotJob job, Boolean hasMore, Throwable e)
+    {
+        stepPending = false;
+        version.incrementAndGet();
+        //Job could be cancelled while its step was running
+        if (queue.peek() == job)
+        {
+            if (e != null)
+            {
+                queue.poll();
+                reportFinal(job, "прервана из-за ошибки");
+                LOGGER.error("Job #{} {} aborted at {}/{}", job.getId(), job.getType(), job.getDone(), job.getTotal(), e);
+            } else if (!hasMore)
+            {
+                queue.poll();
+                reportFinal(job, "завершена");
+                LOGGER.info("Job #{} {} finished, {} of {} steps failed", job.getId(), job.getType(), job.getFailed(), job.getTotal());
+            } else
+            {
+                reportProgress(job);
+            }
+            final BotJob next = queue.peek();
+            if (next != null && next != job && !progressMessages.containsKey(next.getId())) report(next, "выполняется");
+        }
+        scheduleStep();
+    }
+
+    private void reportProgress(BotJob job)
+    {
+        final long now = System.currentTimeMillis();
+        final Long last = lastReportMillis.get(job.getId());
+        if (last != null && now - last < PROGRESS_REPORT_INTERVAL_MS) return;
+        report(job, "выполняется");
+    }
+
+    private void reportFinal(BotJob job, String status)
+    {
+        report(job, status);
+        progressMessages.remove(job.getId());
+        lastReportMillis.remove(job.getId());
+    }
+
+    private void report(BotJob job, String status)
+    {
+        final TextChannel channel = bot.getGuild().getTextChannelById(job.getReportChannelId());
+        if (channel == null)
+        {
+            LOGGER.warn("Report channel {} of job #{} doesn't exist", job.getReportChannelId(), job.getId());
+            return;
+        }
+        lastReportMillis.put(job.getId(), System.currentTimeMillis());
+
+        final String text = formatReport(job, status);
+        final Long messageId = progressMessages.get(job.getId());
+        if (messageId != null)
+        {
+            channel.editMessageById(messageId, text).queue();
+        } else
+        {
+            //Until the message is sent, progress is reported with new messages; it's rare since reports are rare
+            channel.sendMessage(text).queue(message ->
+            {
+                synchronized (this)
+                {
+                    if (queue.contains(job)) progressMessages.put(job.getId(), message.getIdLong());
+                }
+            });
+        }
+    }
+
+    public static String formatReport(BotJob job, String status)
+    {
+        StringBuilder builder = new StringBuilder("Задача #").append(job.getId())
+                .append(" (").append(job.getDescription()).append(") ").append(status)
+                .append(": ").append(job.getProgress());
+        final int failed = job.getFailed();
+        if (failed > 0) builder.append(", ошибок: ").append(failed);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,214 @@
+package fanficthread.fanficthreadbot.jobs;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
+import fanficthread.fanficthreadbot.BotState;
+import fanficthread.fanficthreadbot.FanficThreadBot;
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.TextChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes non-poll messages from the whole history of the vote channel, newest first.
+ * <p>
+ * Every step is a single request: either a history page is fetched, or found messages younger than
+ * 14 days are bulk deleted by up to 100, or one older message is deleted, since bulk delete doesn't take them.
+ */
+public final class CleanupVoteChannelJob extends BotJob
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(CleanupVoteChannelJob.class);
+
+    static final String TYPE = "cleanup_vote_channel";
+
+    private static final int HISTORY_PAGE_SIZE = 100;
+    private static final int BULK_DELETE_LIMIT = 100;
+    //Discord doesn't bulk delete messages older than 14 days; hour is a margin for the time the job waits
+    private static final long BULK_DELETE_MAX_AGE_MS = TimeUnit.DAYS.toMillis(14) - TimeUnit.HOURS.toMillis(1);
+    //Fresh poll message can be sent but not yet added to the state
+    private static final long MIN_AGE_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long DISCORD_EPOCH_MS = 1420070400000L;
+
+    private final long channelId;
+
+    //guarded by this
+    private long before;
+    private boolean historyEnd;
+    private int scanned;
+    private int deleted;
+    private final Deque<Long> bulkDeletable = new ArrayDeque<>();
+    private final Deque<Long> singleDeletable = new ArrayDeque<>();
+    //Throughput is counted since the job is started or resumed
+    private final long startMillis = System.currentTimeMillis();
+    private int deletedSinceStart;
+
+    /**
+     * @param before the history is cleaned from this message (exclusive) to the beginning of the channel
+     */
+    public CleanupVoteChannelJob(int id, long reportChannelId, long channelId, long before)
+    {
+        super(id, reportChannelId);
+        this.channelId = channelId;
+        this.before = before;
+    }
+
+    @Override
+    public String getType()
+    {
+        return TYPE;
+    }
+
+    @Override
+    public String getDescription()
+    {
+        return "очистка канала голосований";
+    }
+
+    /**
+     * @return -1 since the history size is unknown
+     */
+    @Override
+    public int getTotal()
+    {
+        return -1;
+    }
+
+    @Override
+    protected synchronized String getProgress()
+    {
+        final long minutes = Math.max(1, TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - startMillis));
+        return "просмотрено " + scanned + ", удалено " + deleted + " (" + deletedSinceStart / minutes + " в минуту)";
+    }
+
+    @Override
+    protected CompletableFuture<Boolean> step(FanficThreadBot bot)
+    {
+        final TextChannel channel = bot.getGuild().getTextChannelById(channelId);
+        if (channel == null) throw new IllegalStateException("Vote channel " + channelId + " does not exist");
+
+        //Messages waiting for bulk delete could get too old while the job waited
+        final long now = System.currentTimeMillis();
+        while (!bulkDeletable.isEmpty() && now - getCreationMillis(bulkDeletable.peekLast()) > BULK_DELETE_MAX_AGE_MS)
+        {
+            singleDeletable.addFirst(bulkDeletable.pollLast());
+        }
+
+        if (bulkDeletable.size() > 1)
+        {
+            final List<Long> ids = new ArrayList<>(Math.min(bulkDeletable.size(), BULK_DELETE_LIMIT));
+            while (!bulkDeletable.isEmpty() && ids.size() < BULK_DELETE_LIMIT) ids.add(bulkDeletable.poll());
+            final List<String> stringIds = new ArrayList<>(ids.size());
+            for (long id : ids) stringIds.add(Long.toUnsignedString(id));
+            return channel.deleteMessagesByIds(stringIds).submit().handle((v, e) ->
+            {
+                if (e != null) LOGGER.error("Failed to bulk delete {} messages from vote channel {}", ids.size(), channelId, e);
+                return deletedStep(e == null ? ids.size() : 0);
+            });
+        }
+        //Bulk delete takes at least two messages
+        if (!bulkDeletable.isEmpty()) singleDeletable.addFirst(bulkDeletable.poll());
+
+        if (!singleDeletable.isEmpty())
+        {
+            final long id = singleDeletable.poll();
+            return channel.deleteMessageById(id).submit().handle((v, e) ->
+            {
+                if (e != null) LOGGER.error("Failed to delete message {} from vote channel {}", id, channelId, e);
+                return deletedStep(e == null ? 1 : 0);
+            });
+        }
+
+        if (historyEnd) return CompletableFuture.completedFuture(false);
+
+        final BotState state = bot.getState();
+        return channel.getHistoryBefore(before, HISTORY_PAGE_SIZE).submit().thenApply(history ->
+        {
+            final List<Message> page = history.getRetrievedHistory();
+            synchronized (this)
+            {
+                final long fetchedMillis = System.currentTimeMillis();
+                for (Message message : page)
+                {
+                    final long id = message.getIdLong();
+                    before = Math.min(before, id);
+                    if (state.getMemberPollByMessage(id) != null) continue;
+                    final long age = fetchedMillis - getCreationMillis(id);
+                    if (age < MIN_AGE_MS) continue;
+                    (age <= BULK_DELETE_MAX_AGE_MS ? bulkDeletable : singleDeletable).add(id);
+                }
+                scanned += page.size();
+                if (page.size() < HISTORY_PAGE_SIZE) historyEnd = true;
+                stepDone(true);
+                return !historyEnd || !bulkDeletable.isEmpty() || !singleDeletable.isEmpty();
+            }
+        });
+    }
+
+    private synchronized boolean deletedStep(int count)
+    {
+        deleted += count;
+        deletedSinceStart += count;
+        stepDone(count > 0);
+        return !historyEnd || !bulkDeletable.isEmpty() || !singleDeletable.isEmpty();
+    }
+
+    private static long getCreationMillis(long snowflake)
+    {
+        return (snowflake >>> 22) + DISCORD_EPOCH_MS;
+    }
+
+    @Override
+    protected void writeState(JsonWriter out) throws IOException
+    {
+        out.name("channel").value(channelId);
+        out.name("before").value(before);
+        out.name("history_end").value(historyEnd);
+        out.name("scanned").value(scanned);
+        out.name("deleted").value(deleted);
+        writeIds(out, "bulk_deletable", bulkDeletable);
+        writeIds(out, "single_deletable", singleDeletable);
+    }
+
+    private static void writeIds(JsonWriter out, String name, Collection<Long> ids) throws IOException
+    {
+        out.name(name).beginArray();
+        for (long id : ids) out.value(id);
+        out.endArray();
+    }
+
+    static CleanupVoteChannelJob read(int id, long reportChannelId, JsonObject state)
+    {
+        if (!state.has("channel") || !state.has("before"))
+            throw new JsonParseException("Cleanup vote channel job must have channel and before");
+        final CleanupVoteChannelJob job = new CleanupVoteChannelJob(id, reportChannelId,
+                state.get("channel").getAsLong(), state.get("before").getAsLong());
+        synchronized (job)
+        {
+            if (state.has("history_end")) job.historyEnd = state.get("history_end").getAsBoolean();
+            if (state.has("scanned")) job.scanned = state.get("scanned").getAsInt();
+            if (state.has("deleted")) job.deleted = state.get("deleted").getAsInt();
+            readIds(state, "bulk_deletable", job.bulkDeletable);
+            readIds(state, "single_deletable", job.singleDeletable);
+        }
+        return job;
+    }
+
+    private static void readIds(JsonObject state, String name, Collection<Long> ids)
+    {
+        if (!state.has(name)) return;
+        final JsonArray array = state.getAsJsonArray(name);
+        for (JsonElement element : array) ids.add(element.getAsLong());
+    }
+}
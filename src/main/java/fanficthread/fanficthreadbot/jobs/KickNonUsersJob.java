@@ -0,0 +1,175 @@
+package fanficthread.fanficthreadbot.jobs;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
+import fanficthread.fanficthreadbot.FanficThreadBot;
+import fanficthread.fanficthreadbot.MemberRoleIndex;
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.Member;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Kicks members without the member role, a chunk of concurrent kicks per step.
+ * Users that got the member role or left since the job was created are skipped.
+ * Every kicked user is appended to the audit log when the step is completed.
+ */
+public final class KickNonUsersJob extends BotJob
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(KickNonUsersJob.class);
+
+    static final String TYPE = "kick_non_users";
+
+    private static final Path AUDIT_LOG_FILE_NAME = Paths.get("kick_audit.log");
+    private static final String KICK_REASON = "Non-user kick";
+
+    private final int concurrency;
+
+    //guarded by this
+    private final Deque<Long> users;
+    private final int total;
+    //guarded by this, kicks of the current step
+    private final List<String> auditLines = new ArrayList<>();
+
+    /**
+     * @param concurrency kicks done at once in a step
+     */
+    public KickNonUsersJob(int id, long reportChannelId, Collection<Long> users, int concurrency)
+    {
+        this(id, reportChannelId, users, users.size(), concurrency);
+    }
+
+    private KickNonUsersJob(int id, long reportChannelId, Collection<Long> users, int total, int concurrency)
+    {
+        super(id, reportChannelId);
+        if (concurrency < 1) throw new IllegalArgumentException("Concurrency must be positive");
+        this.users = new ArrayDeque<>(users);
+        this.total = total;
+        this.concurrency = concurrency;
+    }
+
+    @Override
+    public String getType()
+    {
+        return TYPE;
+    }
+
+    @Override
+    public String getDescription()
+    {
+        return "кик не-участников";
+    }
+
+    @Override
+    public int getTotal()
+    {
+        return total;
+    }
+
+    @Override
+    protected CompletableFuture<Boolean> step(FanficThreadBot bot)
+    {
+        final Guild guild = bot.getGuild();
+        final MemberRoleIndex memberRoleIndex = bot.getMemberRoleIndex();
+
+        //Users are removed only when their kicks are done, so kicks not done before a save are repeated
+        final List<Long> chunk = new ArrayList<>(concurrency);
+        for (long userId : users)
+        {
+            if (chunk.size() == concurrency) break;
+            chunk.add(userId);
+        }
+
+        final List<CompletableFuture<Void>> kicks = new ArrayList<>(concurrency);
+        for (long userId : chunk)
+        {
+            final Member member = guild.getMemberById(userId);
+            if (member == null || !memberRoleIndex.isNonUser(userId))
+            {
+                users.remove(userId);
+                stepDone(true);
+                LOGGER.debug("Kick of user {} is not needed anymore, skipped", userId);
+                continue;
+            }
+            final String userName = member.getUser().getName();
+            kicks.add(guild.getController().kick(member, KICK_REASON).submit().handle((v, e) ->
+            {
+                if (e != null)
+                {
+                    LOGGER.error("Failed to kick non-user {}", userId, e);
+                } else
+                {
+                    LOGGER.info("Kicked non-user {} ({})", userId, userName);
+                }
+                synchronized (this)
+                {
+                    //Written by afterStep, kicks are completed on JDA request threads
+                    if (e == null) auditLines.add(Instant.now() + "\t#" + getId() + "\t" + userId + "\t" + userName);
+                    users.remove(userId);
+                    stepDone(e == null);
+                }
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(kicks.toArray(new CompletableFuture[0])).thenApply(v ->
+        {
+            synchronized (this)
+            {
+                return !users.isEmpty();
+            }
+        });
+    }
+
+    @Override
+    protected void afterStep()
+    {
+        if (auditLines.isEmpty()) return;
+        try
+        {
+            Files.write(AUDIT_LOG_FILE_NAME, auditLines, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e)
+        {
+            LOGGER.error("Failed to write {} kicks to audit log: {}", auditLines.size(), auditLines, e);
+        }
+        auditLines.clear();
+    }
+
+    @Override
+    protected void writeState(JsonWriter out) throws IOException
+    {
+        out.name("total").value(total);
+        out.name("concurrency").value(concurrency);
+        out.name("users").beginArray();
+        for (long user : users) out.value(user);
+        out.endArray();
+    }
+
+    static KickNonUsersJob read(int id, long reportChannelId, JsonObject state)
+    {
+        if (!state.has("total") || !state.has("users"))
+            throw new JsonParseException("Kick non-users job must have total and users");
+        final JsonArray array = state.getAsJsonArray("users");
+        final Deque<Long> users = new ArrayDeque<>(array.size());
+        for (JsonElement user : array) users.add(user.getAsLong());
+        final int concurrency = state.has("concurrency") ? state.get("concurrency").getAsInt() : 1;
+        return new KickNonUsersJob(id, reportChannelId, users, state.get("total").getAsInt(), concurrency);
+    }
+}
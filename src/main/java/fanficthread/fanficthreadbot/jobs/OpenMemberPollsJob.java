@@ -0,0 +1,112 @@
+package fanficthread.fanficthreadbot.jobs;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
+import fanficthread.fanficthreadbot.BotSettings;
+import fanficthread.fanficthreadbot.FanficThreadBot;
+import fanficthread.fanficthreadbot.MemberPoll;
+import net.dv8tion.jda.core.entities.Member;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Opens member polls for the users one by one.
+ * Users that became members, left or got a poll since the job was created are skipped.
+ */
+public final class OpenMemberPollsJob extends BotJob
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(OpenMemberPollsJob.class);
+
+    static final String TYPE = "open_member_polls";
+
+    //guarded by this
+    private final Deque<Long> users;
+    private final int total;
+
+    public OpenMemberPollsJob(int id, long reportChannelId, Collection<Long> users)
+    {
+        this(id, reportChannelId, users, users.size());
+    }
+
+    private OpenMemberPollsJob(int id, long reportChannelId, Collection<Long> users, int total)
+    {
+        super(id, reportChannelId);
+        this.users = new ArrayDeque<>(users);
+        this.total = total;
+    }
+
+    @Override
+    public String getType()
+    {
+        return TYPE;
+    }
+
+    @Override
+    public String getDescription()
+    {
+        return "открытие голосований";
+    }
+
+    @Override
+    public int getTotal()
+    {
+        return total;
+    }
+
+    @Override
+    protected CompletableFuture<Boolean> step(FanficThreadBot bot)
+    {
+        final BotSettings settings = bot.getSettings();
+        final Long userId = users.peek();
+        if (userId == null) return CompletableFuture.completedFuture(false);
+        if (!settings.isMemberVoteEnabled()) throw new IllegalStateException("MemberVote is disabled");
+
+        final Member member = bot.getGuild().getMemberById(userId);
+        if (member == null || bot.getMemberRoleIndex().hasMemberRole(userId) || bot.getState().getMemberPollByUser(userId) != null)
+        {
+            users.poll();
+            stepDone(true);
+            LOGGER.debug("Poll for user {} is not needed anymore, skipped", userId);
+            return CompletableFuture.completedFuture(!users.isEmpty());
+        }
+
+        return MemberPoll.create(bot, userId, -1).handle((poll, e) ->
+        {
+            if (e != null) LOGGER.error("Failed to open poll for user {}", userId, e);
+            synchronized (this)
+            {
+                users.poll();
+                stepDone(e == null);
+                return !users.isEmpty();
+            }
+        });
+    }
+
+    @Override
+    protected void writeState(JsonWriter out) throws IOException
+    {
+        out.name("total").value(total);
+        out.name("users").beginArray();
+        for (long user : users) out.value(user);
+        out.endArray();
+    }
+
+    static OpenMemberPollsJob read(int id, long reportChannelId, JsonObject state)
+    {
+        if (!state.has("total") || !state.has("users"))
+            throw new JsonParseException("Open member polls job must have total and users");
+        final JsonArray array = state.getAsJsonArray("users");
+        final Deque<Long> users = new ArrayDeque<>(array.size());
+        for (JsonElement user : array) users.add(user.getAsLong());
+        return new OpenMemberPollsJob(id, reportChannelId, users, state.get("total").getAsInt());
+    }
+}
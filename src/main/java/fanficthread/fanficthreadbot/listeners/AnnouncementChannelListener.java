@@ -1,104 +1,61 @@
 package fanficthread.fanficthreadbot.listeners;
 
 import fanficthread.fanficthreadbot.AnnouncementChannel;
-import fanficthread.fanficthreadbot.BotSettings;
+import fanficthread.fanficthreadbot.ChannelMessageIndex;
 import fanficthread.fanficthreadbot.FanficThreadBot;
-import fanficthread.fanficthreadbot.Util;
-import net.dv8tion.jda.core.entities.*;
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.TextChannel;
+import net.dv8tion.jda.core.events.ReconnectedEvent;
+import net.dv8tion.jda.core.events.message.MessageBulkDeleteEvent;
+import net.dv8tion.jda.core.events.message.guild.GuildMessageDeleteEvent;
 import net.dv8tion.jda.core.events.message.guild.GuildMessageReceivedEvent;
-import net.dv8tion.jda.webhook.WebhookClient;
-import net.dv8tion.jda.webhook.WebhookMessageBuilder;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.List;
 
+/**
+ * Reposts messages of announcement channels and keeps their message index.
+ * Received messages are dispatched by {@link GuildMessageRouter}.
+ * Messages sent or deleted while disconnected aren't seen, so the index is seeded again on reconnect.
+ */
 public class AnnouncementChannelListener extends AbstractListener
 {
-    private static final Logger LOGGER = LoggerFactory.getLogger(AnnouncementChannelListener.class);
-
     public AnnouncementChannelListener(FanficThreadBot bot)
     {
         super(bot);
     }
 
-    @Override
-    public void onGuildMessageReceived(GuildMessageReceivedEvent event)
+    void handleMessage(GuildMessageReceivedEvent event, AnnouncementChannel announcementChannel)
     {
-        final Guild guild = event.getGuild();
-        if (!bot.isLockedGuild(guild.getIdLong())) return;
-
-        final BotSettings settings = bot.getSettings();
         final TextChannel channel = event.getChannel();
         final long channelId = channel.getIdLong();
 
-        final AnnouncementChannel announcementChannel = settings.getAnnouncementChannel(channelId);
-        if (announcementChannel == null) return;
-
         final Message message = event.getMessage();
+        bot.getChannelMessageIndex().messageReceived(channelId, message.getIdLong());
         if (message.mentionsEveryone()) return;
 
-        final long repostChannelId = announcementChannel.getRepostChannelId();
-        if (repostChannelId != 0)
-        {
-            repost(guild, channel, repostChannelId, message);
-        }
-
-        message.delete().reason("Non-announcement in an announcement channel").queue();
-        LOGGER.debug("Non-announcement message {} in announcement channel {} deleted", event.getMessageIdLong(), channelId);
+        bot.getRepostPipeline().process(channel, announcementChannel.getRepostChannelId(), message);
     }
 
-    private void repost(Guild guild, TextChannel announcementChannel, long repostChannelId, Message message)
+    @Override
+    public void onReconnect(ReconnectedEvent event)
     {
-        final long announcementChannelId = announcementChannel.getIdLong();
-        TextChannel repostChannel = guild.getTextChannelById(repostChannelId);
-        if (repostChannel == null)
-        {
-            LOGGER.error("Channel {} is used as repost channel for announcement channel {} but doesn't exists", repostChannelId, announcementChannelId);
-            return;
-        }
-
-        User user = message.getAuthor();
-        Member member = guild.getMember(user);
-
-        WebhookClient webhookClient = bot.getBotWebhookCache().getClient(repostChannel);
-
-        WebhookMessageBuilder webhookMessageBuilder = new WebhookMessageBuilder();
-        webhookMessageBuilder.setUsername(((member == null) ? user.getName() : member.getEffectiveName()));
-        webhookMessageBuilder.setAvatarUrl(user.getEffectiveAvatarUrl());
-
-        List<Message> previousMessages = announcementChannel.getHistoryBefore(message, 1).complete().getRetrievedHistory();
-        if (previousMessages.size() > 0)
-        {
-            Message previousMessage = previousMessages.get(0);
+        bot.reseedChannelMessageIndex();
+    }
 
-            String content = "[>>" + previousMessage.getIdLong() + "](<"
-                    + Util.getMessageLink(guild.getIdLong(), announcementChannelId, previousMessage.getIdLong())
-                    + ">)\n" + message.getContentRaw();
-            webhookMessageBuilder.setContent(content);
-        } else
-        {
-            webhookMessageBuilder.setContent(message.getContentRaw());
-        }
+    @Override
+    public void onGuildMessageDelete(GuildMessageDeleteEvent event)
+    {
+        if (!bot.isLockedGuild(event.getGuild().getIdLong())) return;
+        bot.getChannelMessageIndex().messageDeleted(event.getChannel().getIdLong(), event.getMessageIdLong());
+    }
 
-        webhookMessageBuilder.addEmbeds(message.getEmbeds());
-        List<Message.Attachment> attachments = message.getAttachments();
-        for (Message.Attachment attachment : attachments)
+    @Override
+    public void onMessageBulkDelete(MessageBulkDeleteEvent event)
+    {
+        if (!bot.isLockedGuild(event.getGuild().getIdLong())) return;
+        final ChannelMessageIndex index = bot.getChannelMessageIndex();
+        final long channelId = event.getChannel().getIdLong();
+        for (String messageId : event.getMessageIds())
         {
-            try
-            {
-                String name = attachment.getFileName();
-                InputStream is = attachment.getInputStream();
-                webhookMessageBuilder.addFile(name, is);
-            } catch (IllegalArgumentException | IOException e)
-            {
-                LOGGER.error("Can't download and upload attachment", e);
-            }
+            index.messageDeleted(channelId, Long.parseLong(messageId));
         }
-        webhookClient.send(webhookMessageBuilder.build());
-
-        LOGGER.debug("Message {} re-posted from an announcement channel {} with webhook {}", message.getIdLong(), announcementChannelId, webhookClient.getIdLong());
     }
 }
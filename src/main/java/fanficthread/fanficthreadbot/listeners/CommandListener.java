@@ -7,35 +7,59 @@ import fanficthread.fanficthreadbot.FanficThreadBot;
 import fanficthread.fanficthreadbot.Util;
 import fanficthread.fanficthreadbot.command.CommandSource;
 import net.dv8tion.jda.core.entities.Member;
-import net.dv8tion.jda.core.entities.Message;
 import net.dv8tion.jda.core.entities.TextChannel;
 import net.dv8tion.jda.core.entities.User;
 import net.dv8tion.jda.core.events.message.guild.GuildMessageReceivedEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Executes commands: lines of guild messages that start with the bot mention.
+ * Messages are dispatched by {@link GuildMessageRouter}.
+ */
 public class CommandListener extends AbstractListener
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(CommandListener.class);
 
+    //Bot user id is known only after login, so the prefix is built with the first message
+    private volatile String commandPrefix;
+
     public CommandListener(FanficThreadBot bot)
     {
         super(bot);
     }
 
-    @Override
-    public void onGuildMessageReceived(GuildMessageReceivedEvent event)
+    private String getCommandPrefix()
+    {
+        String prefix = commandPrefix;
+        if (prefix == null)
+        {
+            prefix = Util.getUserMention(bot.getBotUserId()) + " ";
+            if (bot.getBotUserId() != 0) commandPrefix = prefix;
+        }
+        return prefix;
+    }
+
+    /**
+     * Almost all messages aren't commands, they are rejected with this single scan.
+     *
+     * @return index of the first command prefix in the content or -1 if there is none
+     */
+    int indexOfPrefix(String content)
+    {
+        return content.indexOf(getCommandPrefix());
+    }
+
+    /**
+     * @param prefixIndex index of the first command prefix in the content
+     */
+    void handleMessage(GuildMessageReceivedEvent event, String content, int prefixIndex)
     {
-        final long guildId = event.getGuild().getIdLong();
         final long channelId = event.getChannel().getIdLong();
         final long messageId = event.getMessageIdLong();
         final TextChannel commandChannel = event.getChannel();
+        final String commandPrefix = getCommandPrefix();
 
-        if (!bot.isLockedGuild(guildId))
-        {
-            LOGGER.debug("GuildMessageReceivedEvent({}/{}) from unknown guild ({}), skipped", channelId, messageId, guildId);
-            return;
-        }
         final User user = event.getAuthor();
         if (user == null)
         {
@@ -50,26 +74,42 @@ public class CommandListener extends AbstractListener
             return;
         }
 
-        final Message message = event.getMessage();
-        String content = message.getContentRaw();
-        String[] lines = content.split("\n");
-        final String commandPrefix = Util.getUserMention(bot.getBotUserId()) + " ";
-
-        for (String line : lines)
+        //Every line that starts with the prefix is a command; only these lines are cut out of the content
+        prefixIndex = nextCommand(content, commandPrefix, prefixIndex);
+        while (prefixIndex >= 0)
         {
-            executeCommand(line, commandPrefix, channelId, messageId, commandChannel, member, userId);
+            final int lineEnd = lineEnd(content, prefixIndex);
+            final String command = content.substring(prefixIndex + commandPrefix.length(), lineEnd);
+            executeCommand(command, channelId, messageId, commandChannel, member, userId);
+            prefixIndex = nextCommand(content, commandPrefix, lineEnd);
         }
     }
 
-    private void executeCommand(String content, String commandPrefix, long channelId, long messageId, TextChannel commandChannel, Member member, long userId)
+    /**
+     * @param from index to search from, the start of a line or any prefix occurrence
+     * @return index of the next prefix that starts a line or -1 if there is none
+     */
+    static int nextCommand(String content, String commandPrefix, int from)
     {
-        if (!content.startsWith(commandPrefix))
+        int prefixIndex = content.indexOf(commandPrefix, from);
+        while (prefixIndex > 0 && content.charAt(prefixIndex - 1) != '\n')
         {
-            LOGGER.debug("Message({}/{}) does not start with command prefix, skipped", channelId, messageId);
-            return;
+            prefixIndex = content.indexOf(commandPrefix, lineEnd(content, prefixIndex));
         }
+        return prefixIndex;
+    }
 
-        content = content.substring(commandPrefix.length());
+    /**
+     * @return index of the line break after the index or content length if the line is the last one
+     */
+    static int lineEnd(String content, int index)
+    {
+        final int lineEnd = content.indexOf('\n', index);
+        return lineEnd < 0 ? content.length() : lineEnd;
+    }
+
+    private void executeCommand(String content, long channelId, long messageId, TextChannel commandChannel, Member member, long userId)
+    {
         if (content.isEmpty())
         {
             LOGGER.debug("Message({}/{}) consists only of command prefix, skipped", channelId, messageId);
@@ -0,0 +1,111 @@
+package fanficthread.fanficthreadbot.listeners;
+
+import fanficthread.fanficthreadbot.AnnouncementChannel;
+import fanficthread.fanficthreadbot.BotSettings;
+import fanficthread.fanficthreadbot.FanficThreadBot;
+import fanficthread.fanficthreadbot.LatencyCounter;
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.User;
+import net.dv8tion.jda.core.events.message.guild.GuildMessageReceivedEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Single entry point for received guild messages.
+ * <p>
+ * Each message is classified once - announcement channel message, spoiler candidate, command - with a single
+ * read of the settings and hash lookups by channel id, and is dispatched only to the interested handlers.
+ * Commands are executed by the command executor. Time spent in each handler is counted.
+ */
+public class GuildMessageRouter extends AbstractListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(GuildMessageRouter.class);
+
+    private final CommandListener commands;
+    private final AnnouncementChannelListener announcements;
+    private final SpoilerListener spoilers;
+
+    private final LatencyCounter commandLatency = new LatencyCounter("commands");
+    private final LatencyCounter announcementLatency = new LatencyCounter("announcements");
+    private final LatencyCounter spoilerLatency = new LatencyCounter("spoilers");
+
+    public GuildMessageRouter(FanficThreadBot bot, CommandListener commands, AnnouncementChannelListener announcements,
+                              SpoilerListener spoilers)
+    {
+        super(bot);
+        this.commands = commands;
+        this.announcements = announcements;
+        this.spoilers = spoilers;
+    }
+
+    @Override
+    public void onGuildMessageReceived(GuildMessageReceivedEvent event)
+    {
+        final long guildId = event.getGuild().getIdLong();
+        if (!bot.isLockedGuild(guildId))
+        {
+            LOGGER.debug("GuildMessageReceivedEvent({}/{}) from unknown guild ({}), skipped", event.getChannel().getIdLong(), event.getMessageIdLong(), guildId);
+            return;
+        }
+
+        final BotSettings settings = bot.getSettings();
+        final long channelId = event.getChannel().getIdLong();
+        final Message message = event.getMessage();
+        final User author = event.getAuthor();
+
+        final String content = message.getContentRaw();
+        final int prefixIndex = commands.indexOfPrefix(content);
+        if (prefixIndex >= 0)
+        {
+            //Commands can take long, so they are executed off the event thread
+            bot.getCommandExecutor().execute(() ->
+            {
+                final long start = System.nanoTime();
+                try
+                {
+                    commands.handleMessage(event, content, prefixIndex);
+                } catch (RuntimeException e)
+                {
+                    LOGGER.error("Failed to handle commands of message {}/{}", channelId, event.getMessageIdLong(), e);
+                }
+                commandLatency.recordSince(start);
+            });
+        }
+
+        final AnnouncementChannel announcementChannel = settings.getAnnouncementChannel(channelId);
+        if (announcementChannel != null)
+        {
+            final long start = System.nanoTime();
+            try
+            {
+                announcements.handleMessage(event, announcementChannel);
+            } catch (RuntimeException e)
+            {
+                LOGGER.error("Failed to handle announcement message {}/{}", channelId, event.getMessageIdLong(), e);
+            }
+            announcementLatency.recordSince(start);
+        }
+
+        if (settings.isSpoilerEnabled() && !message.getAttachments().isEmpty() && !author.isBot() && !author.isFake()
+                && !settings.isInSpoilerWhitelist(channelId))
+        {
+            final long start = System.nanoTime();
+            try
+            {
+                spoilers.handleMessage(event);
+            } catch (RuntimeException e)
+            {
+                LOGGER.error("Failed to handle spoiler candidate message {}/{}", channelId, event.getMessageIdLong(), e);
+            }
+            spoilerLatency.recordSince(start);
+        }
+    }
+
+    public List<LatencyCounter> getLatencyCounters()
+    {
+        return Arrays.asList(commandLatency, announcementLatency, spoilerLatency);
+    }
+}
@@ -0,0 +1,47 @@
+package fanficthread.fanficthreadbot.listeners;
+
+import fanficthread.fanficthreadbot.FanficThreadBot;
+import net.dv8tion.jda.core.events.guild.member.GuildMemberJoinEvent;
+import net.dv8tion.jda.core.events.guild.member.GuildMemberLeaveEvent;
+import net.dv8tion.jda.core.events.guild.member.GuildMemberRoleAddEvent;
+import net.dv8tion.jda.core.events.guild.member.GuildMemberRoleRemoveEvent;
+
+/**
+ * Keeps {@link fanficthread.fanficthreadbot.MemberRoleIndex} up to date.
+ * Must be registered before the listeners that use the index.
+ */
+public class MemberRoleIndexListener extends AbstractListener
+{
+    public MemberRoleIndexListener(FanficThreadBot bot)
+    {
+        super(bot);
+    }
+
+    @Override
+    public void onGuildMemberJoin(GuildMemberJoinEvent event)
+    {
+        if (!bot.isLockedGuild(event.getGuild().getIdLong())) return;
+        bot.getMemberRoleIndex().update(event.getMember());
+    }
+
+    @Override
+    public void onGuildMemberLeave(GuildMemberLeaveEvent event)
+    {
+        if (!bot.isLockedGuild(event.getGuild().getIdLong())) return;
+        bot.getMemberRoleIndex().remove(event.getUser().getIdLong());
+    }
+
+    @Override
+    public void onGuildMemberRoleAdd(GuildMemberRoleAddEvent event)
+    {
+        if (!bot.isLockedGuild(event.getGuild().getIdLong())) return;
+        bot.getMemberRoleIndex().update(event.getMember());
+    }
+
+    @Override
+    public void onGuildMemberRoleRemove(GuildMemberRoleRemoveEvent event)
+    {
+        if (!bot.isLockedGuild(event.getGuild().getIdLong())) return;
+        bot.getMemberRoleIndex().update(event.getMember());
+    }
+}
@@ -9,30 +9,31 @@ import net.dv8tion.jda.core.events.guild.member.GuildMemberJoinEvent;
 import net.dv8tion.jda.core.events.guild.member.GuildMemberLeaveEvent;
 import net.dv8tion.jda.core.events.guild.member.GuildMemberRoleAddEvent;
 import net.dv8tion.jda.core.events.guild.member.GuildMemberRoleRemoveEvent;
+import net.dv8tion.jda.core.events.message.guild.GenericGuildMessageEvent;
 import net.dv8tion.jda.core.events.message.guild.GuildMessageDeleteEvent;
-import net.dv8tion.jda.core.events.message.guild.react.GenericGuildMessageReactionEvent;
-import net.dv8tion.jda.core.managers.GuildController;
+import net.dv8tion.jda.core.events.message.guild.GuildMessageReactionRemoveAllEvent;
+import net.dv8tion.jda.core.events.message.guild.react.GuildMessageReactionAddEvent;
+import net.dv8tion.jda.core.events.message.guild.react.GuildMessageReactionRemoveEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.TimeUnit;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
-
-import static fanficthread.fanficthreadbot.Util.getUserMention;
+import java.time.Instant;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * On GuildMemberJoin - check and create poll
  * On GuildMemberRoleRemove - check and create poll
  * On GuildMemberLeave - check and delete poll
- * On GenericGuildMessageReaction - check poll status and grant role
+ * On GuildMessageReactionAdd/Remove/RemoveAll - update poll tally, check poll status and grant role
  */
 public class MemberVoteListener extends AbstractListener
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(MemberVoteListener.class);
 
+    private final LongAdder reactionsFilteredByChannel = new LongAdder();
+    private final LongAdder reactionsFilteredByPoll = new LongAdder();
+    private final LongAdder reactionsProcessed = new LongAdder();
+
     public MemberVoteListener(FanficThreadBot bot)
     {
         super(bot);
@@ -41,13 +42,15 @@ public class MemberVoteListener extends AbstractListener
     @Override
     public void onGuildMemberJoin(GuildMemberJoinEvent event)
     {
-        checkAndCreatePoll(event.getMember());
+        final Member member = event.getMember();
+        bot.getMemberVoteTasks().execute(member.getUser().getIdLong(), () -> checkAndCreatePoll(member));
     }
 
     @Override
     public void onGuildMemberRoleRemove(GuildMemberRoleRemoveEvent event)
     {
-        checkAndCreatePoll(event.getMember());
+        final Member member = event.getMember();
+        bot.getMemberVoteTasks().execute(member.getUser().getIdLong(), () -> checkAndCreatePoll(member));
     }
 
     private void checkAndCreatePoll(Member member)
@@ -59,29 +62,25 @@ public class MemberVoteListener extends AbstractListener
         if (!settings.isMemberVoteEnabled()) return;
         if (state.getMemberPollByUser(userId) != null) return;
 
-        for (Role role : member.getRoles())
-        {
-            if (role.getIdLong() == settings.getMemberRole()) return;
-        }
+        if (bot.getMemberRoleIndex().hasMemberRole(userId)) return;
 
         long userAccountTimestamp = ((userId >> 22) + 1420070400000L) / 1000;
         long memberJoinTimestamp = member.getJoinDate().toEpochSecond();
         long secondsBetween = memberJoinTimestamp - userAccountTimestamp;
         float nospaceChance = 1.0F - ((secondsBetween + 1) / 172800.0F);
 
-        try
-        {
-            MemberPoll.create(bot, userId, (int) (nospaceChance * 100));
-        } catch (RuntimeException e)
+        MemberPoll.create(bot, userId, (int) (nospaceChance * 100)).exceptionally(e ->
         {
             LOGGER.error("Failed to create member poll", e);
-        }
+            return null;
+        });
     }
 
     @Override
     public void onGuildMemberLeave(GuildMemberLeaveEvent event)
     {
-        checkAndDeletePoll(event.getUser().getIdLong());
+        final long userId = event.getUser().getIdLong();
+        bot.getMemberVoteTasks().execute(userId, () -> checkAndDeletePoll(userId));
     }
 
     @Override
@@ -95,8 +94,11 @@ public class MemberVoteListener extends AbstractListener
         MemberPoll poll = state.getMemberPollByMessage(event.getMessageIdLong());
         if (poll == null) return;
 
-        state.removeMemberPoll(poll);
-        LOGGER.debug("Manually deleted poll message {} for user {}; poll removed", event.getMessageIdLong(), poll.getUserId());
+        bot.getMemberVoteTasks().execute(poll.getUserId(), () ->
+        {
+            if (!state.removeMemberPoll(poll)) return;
+            LOGGER.debug("Manually deleted poll message {} for user {}; poll removed", poll.getMessageId(), poll.getUserId());
+        });
     }
 
     @Override
@@ -111,9 +113,13 @@ public class MemberVoteListener extends AbstractListener
         final Guild guild = bot.getGuild();
         final TextChannel channel = guild.getTextChannelById(settings.getMemberVoteChannel());
 
-        channel.deleteMessageById(poll.getMessageId()).queue();
-        state.removeMemberPoll(poll);
-        LOGGER.debug("Deleted poll u:{}/m:{} because user was manually given member role {}", poll.getUserId(), poll.getMessageId(), settings.getMemberRole());
+        bot.getMemberVoteTasks().execute(poll.getUserId(), () ->
+        {
+            //Poll can be already removed when member role is granted by the poll itself
+            if (!state.removeMemberPoll(poll)) return;
+            if (channel != null) channel.deleteMessageById(poll.getMessageId()).queue();
+            LOGGER.debug("Deleted poll u:{}/m:{} because user was manually given member role {}", poll.getUserId(), poll.getMessageId(), settings.getMemberRole());
+        });
     }
 
     private void checkAndDeletePoll(final long userId)
@@ -123,9 +129,7 @@ public class MemberVoteListener extends AbstractListener
         if (!settings.isMemberVoteEnabled()) return;
 
         MemberPoll poll = state.getMemberPollByUser(userId);
-        if (poll == null) return;
-
-        state.removeMemberPoll(poll);
+        if (poll == null || !state.removeMemberPoll(poll)) return;
 
         final TextChannel voteChannel = bot.getGuild().getTextChannelById(settings.getMemberVoteChannel());
         if (voteChannel == null)
@@ -134,113 +138,110 @@ public class MemberVoteListener extends AbstractListener
             return;
         }
 
-        final Message message = voteChannel.getMessageById(poll.getMessageId()).complete();
-        if (message == null)
-        {
-            LOGGER.error("MemberVote poll message {} doesn't exists", poll.getMessageId());
-            return;
-        }
-
-        message.delete().queue();
+        voteChannel.deleteMessageById(poll.getMessageId()).queue(null,
+                e -> LOGGER.error("Failed to delete MemberVote poll message {}", poll.getMessageId(), e));
     }
 
     @Override
-    public void onGenericGuildMessageReaction(GenericGuildMessageReactionEvent event)
-    {
-        checkPollStatus(event.getMessageIdLong());
-    }
-
-    private void checkPollStatus(long messageId)
+    public void onGuildMessageReactionAdd(GuildMessageReactionAddEvent event)
     {
-        final BotSettings settings = bot.getSettings();
-        final BotState state = bot.getState();
-        final Guild guild = bot.getGuild();
-
-        if (!settings.isMemberVoteEnabled()) return;
+        final MemberPoll poll = getPoll(event);
+        if (poll == null) return;
+        final User user = event.getUser();
+        if (user.isBot()) return;
 
-        final MemberPoll poll = state.getMemberPollByMessage(messageId);
-        if (poll == null)
+        final int vote = MemberPoll.getVote(bot.getSettings(), event.getReactionEmote());
+        if (vote == MemberPoll.VOTE_NONE)
         {
-            LOGGER.warn("Someone added reaction to message {} in MemberVote channel, but message isn't poll somehow.", messageId);
+            event.getReaction().removeReaction(user).queue();
+            LOGGER.debug("Non-voting reaction {} removed from message {}", event.getReactionEmote().getName(), poll.getMessageId());
             return;
         }
-
-        final TextChannel voteChannel = guild.getTextChannelById(settings.getMemberVoteChannel());
-        if (voteChannel == null)
+        final long timestamp = Instant.now().getEpochSecond();
+        //Journaled vote and the poll check are done off the event thread, in order with other events of the poll
+        bot.getMemberVoteTasks().execute(poll.getUserId(), () ->
         {
-            LOGGER.error("MemberVote channel {} doesn't exists", voteChannel);
-            return;
-        }
+            bot.getState().addMemberPollVote(poll, user.getIdLong(), vote == MemberPoll.VOTE_UP, timestamp);
+            poll.checkVotes(bot);
+        });
+    }
 
-        final Message message = voteChannel.getMessageById(messageId).complete();
-        if (message == null)
+    @Override
+    public void onGuildMessageReactionRemove(GuildMessageReactionRemoveEvent event)
+    {
+        final MemberPoll poll = getPoll(event);
+        if (poll == null) return;
+        final User user = event.getUser();
+        if (user.isBot()) return;
+
+        final int vote = MemberPoll.getVote(bot.getSettings(), event.getReactionEmote());
+        if (vote == MemberPoll.VOTE_NONE) return;
+        bot.getMemberVoteTasks().execute(poll.getUserId(), () ->
         {
-            LOGGER.error("MemberVote poll message {} doesn't exists", poll.getMessageId());
-            return;
-        }
+            bot.getState().removeMemberPollVote(poll, user.getIdLong(), vote == MemberPoll.VOTE_UP);
+            //Removed downvote can be the one that completes the poll
+            poll.checkVotes(bot);
+        });
+    }
 
+    @Override
+    public void onGuildMessageReactionRemoveAll(GuildMessageReactionRemoveAllEvent event)
+    {
+        final MemberPoll poll = getPoll(event);
+        if (poll == null) return;
+        bot.getMemberVoteTasks().execute(poll.getUserId(), () ->
+        {
+            bot.getState().clearMemberPollVotes(poll);
+            LOGGER.debug("All reactions removed from poll message {}", poll.getMessageId());
+        });
+    }
 
-        final int score = countScore(message);
-        if (score < settings.getMemberVotesRequired())
+    /**
+     * Reactions come from all over the guild, so they are filtered by the vote channel before anything else
+     * and then by the exact lock-free lookup of poll messages.
+     *
+     * @return poll of the reacted message or null if it's not a poll
+     */
+    private MemberPoll getPoll(GenericGuildMessageEvent event)
+    {
+        final BotSettings settings = bot.getSettings();
+        if (event.getChannel().getIdLong() != settings.getMemberVoteChannel() || !settings.isMemberVoteEnabled())
         {
-            LOGGER.debug("MemberVote score {} counted from poll user {} message {}; not enough for completion", score, poll.getUserId(), poll.getMessageId());
-            return;
+            reactionsFilteredByChannel.increment();
+            return null;
         }
 
-        state.removeMemberPoll(poll);
-
-        final long userId = poll.getUserId();
-        Member member = guild.getMemberById(userId);
-        if (member == null)
+        final long messageId = event.getMessageIdLong();
+        final MemberPoll poll = bot.getState().getMemberPollByMessage(messageId);
+        if (poll == null)
         {
-            LOGGER.error("MemberVote user {} is not a member", userId);
-            return;
+            //Usually a reaction to a poll that is just finished or to a message left in the vote channel
+            reactionsFilteredByPoll.increment();
+            LOGGER.debug("Reaction to message {} in MemberVote channel that isn't a poll, skipped", messageId);
+            return null;
         }
+        reactionsProcessed.increment();
+        return poll;
+    }
 
-        Set<Long> rolesToAddIds = new HashSet<>(settings.getMemberAdditionalRoles());
-        rolesToAddIds.add(settings.getMemberRole());
-
-        Set<Role> rolesToAdd = rolesToAddIds.stream().map(guild::getRoleById).collect(Collectors.toSet());
-
-        GuildController controller = bot.getGuild().getController();
-        controller.addRolesToMember(member, rolesToAdd).queue();
-
-        message.editMessage("Голосование закончено, " + getUserMention(userId) + " теперь участник. Это сообщение будет удалено через несколько секунд.").queue();
-        message.delete().queueAfter(10L, TimeUnit.SECONDS);
-
-        LOGGER.debug("MemberVote poll finished, granted roles to user {}", userId);
+    /**
+     * @return count of reaction events filtered out because they were not in MemberVote channel
+     */
+    public long getReactionsFilteredByChannel()
+    {
+        return reactionsFilteredByChannel.sum();
     }
 
-    private int countScore(Message message)
+    /**
+     * @return count of reaction events in MemberVote channel filtered out because their message isn't a poll
+     */
+    public long getReactionsFilteredByPoll()
     {
-        final BotSettings settings = bot.getSettings();
-        final Guild guild = bot.getGuild();
-        final Predicate<User> isLegitVoter = u -> !u.isBot() && guild.isMember(u);
+        return reactionsFilteredByPoll.sum();
+    }
 
-        int score = 0;
-        for (MessageReaction reaction : message.getReactions())
-        {
-            long reactionId;
-            try
-            {
-                reactionId = reaction.getReactionEmote().getIdLong();
-            } catch (IllegalStateException e)
-            {
-                reactionId = 0L;
-            }
-
-            if (reactionId == settings.getMemberVoteReactionUpvote())
-            {
-                score += reaction.getUsers().complete().stream().filter(isLegitVoter).count();
-            } else if (reactionId == settings.getMemberVoteReactionDownvote())
-            {
-                score -= reaction.getUsers().complete().stream().filter(isLegitVoter).count();
-            } else
-            {
-                reaction.getUsers().queue(users -> users.forEach(u -> reaction.removeReaction(u).queue()));
-                LOGGER.debug("Non-voting reaction {} removed from message {}", reactionId, message.getIdLong());
-            }
-        }
-        return score;
+    public long getReactionsProcessed()
+    {
+        return reactionsProcessed.sum();
     }
 }
@@ -3,143 +3,146 @@ package fanficthread.fanficthreadbot.listeners;
 import fanficthread.fanficthreadbot.BotSettings;
 import fanficthread.fanficthreadbot.FanficThreadBot;
 import fanficthread.fanficthreadbot.Narrator;
-import net.dv8tion.jda.core.audio.hooks.ConnectionListener;
-import net.dv8tion.jda.core.audio.hooks.ConnectionStatus;
+import fanficthread.fanficthreadbot.NarratorSession;
+import fanficthread.fanficthreadbot.NarratorSessions;
 import net.dv8tion.jda.core.entities.User;
 import net.dv8tion.jda.core.entities.VoiceChannel;
 import net.dv8tion.jda.core.events.guild.voice.GuildVoiceJoinEvent;
 import net.dv8tion.jda.core.events.guild.voice.GuildVoiceLeaveEvent;
+import net.dv8tion.jda.core.events.guild.voice.GuildVoiceMoveEvent;
 import net.dv8tion.jda.core.managers.AudioManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
-import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
-
-public class NarratorListener extends AbstractListener implements ConnectionListener
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Counts speaking time of narrators in the voice channel of the recorder bot.
+ * <p>
+ * Guild has one audio connection, so only one channel is tracked at a time: the session is opened when
+ * the recorder joins a channel and follows it when it moves. Speech in other channels isn't counted,
+ * the {@code narrator} command output says so.
+ */
+public class NarratorListener extends AbstractListener
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(NarratorListener.class);
 
-    private long currentChannelId;
-    private int channelUserCount;
-    private long reconnect5SecLock;
-    private Map<Long, Long> userSpeakSessions = new ConcurrentHashMap<>();
+    private final NarratorSessions sessions;
+
+    private volatile long reconnect5SecLock;
 
-    public NarratorListener(FanficThreadBot bot)
+    public NarratorListener(FanficThreadBot bot, ScheduledExecutorService executor)
     {
         super(bot);
+        this.sessions = new NarratorSessions(() -> bot.getSettings().getNarratorMinAudience(), this::addNarratedTime, executor);
+    }
+
+    public NarratorSessions getSessions()
+    {
+        return sessions;
     }
 
     @Override
     public void onGuildVoiceJoin(GuildVoiceJoinEvent event)
     {
+        join(event.getMember().getUser(), event.getChannelJoined(), false);
+    }
+
+    @Override
+    public void onGuildVoiceLeave(GuildVoiceLeaveEvent event)
+    {
+        leave(event.getMember().getUser(), event.getChannelLeft(), false);
+    }
+
+    @Override
+    public void onGuildVoiceMove(GuildVoiceMoveEvent event)
+    {
+        //Recorder that moves keeps recording, so the move is exempt from the reconnect lock
         final User user = event.getMember().getUser();
-        final long userId = user.getIdLong();
-        final VoiceChannel channel = event.getChannelJoined();
+        final VoiceChannel joined = event.getChannelJoined();
+        final boolean recorderLeft = leave(user, event.getChannelLeft(), true);
+        join(user, joined, true);
+        if (recorderLeft && sessions.get(joined.getIdLong()) == null)
+        {
+            bot.getGuild().getAudioManager().closeAudioConnection();
+            LOGGER.debug("Audio connection closed, recording isn't continued in {}", joined.getIdLong());
+        }
+    }
 
-        if (currentChannelId != 0)
+    private void join(User user, VoiceChannel channel, boolean move)
+    {
+        final NarratorSession session = sessions.get(channel.getIdLong());
+        if (session != null)
         {
-            if (currentChannelId == channel.getIdLong() && !user.isBot())
-            {
-                channelUserCount++;
-                LOGGER.debug("Channel user count incremented to {}", channelUserCount);
-            }
+            if (!user.isBot()) session.audienceJoined();
             return;
         }
 
         final BotSettings settings = bot.getSettings();
         if (!settings.isNarratorEnabled()) return;
-        if (userId != settings.getNarratorRecorder()) return;
-        if (Instant.now().getEpochSecond() - reconnect5SecLock < 5) return;
+        if (user.getIdLong() != settings.getNarratorRecorder()) return;
+        if (!move && Instant.now().getEpochSecond() - reconnect5SecLock < 5) return;
 
-        final AudioManager manager = bot.getGuild().getAudioManager();
+        final int audience = (int) channel.getMembers().stream().filter(m -> !m.getUser().isBot()).count();
+        final NarratorSession opened = sessions.open(channel.getIdLong(), audience);
+        if (opened == null) return;
 
+        //Guild has one audio connection and there's one recorder, so this is the only open session
+        final AudioManager manager = bot.getGuild().getAudioManager();
         manager.openAudioConnection(channel);
-        manager.setConnectionListener(this);
-
-        channelUserCount = (int) channel.getMembers().stream().filter(m -> !m.getUser().isBot()).count();
-        currentChannelId = channel.getIdLong();
-        LOGGER.debug("Audio connection to {} established, {} current users", currentChannelId, channelUserCount);
+        manager.setConnectionListener(opened);
+        LOGGER.debug("Audio connection to {} established, {} current users, {} sessions",
+                channel.getIdLong(), audience, sessions.size());
     }
 
-    @Override
-    public void onGuildVoiceLeave(GuildVoiceLeaveEvent event)
+    /**
+     * @param move if true, the audio connection is left open for the following join
+     * @return true if the recorder left and its session was closed
+     */
+    private boolean leave(User user, VoiceChannel channel, boolean move)
     {
-        final User user = event.getMember().getUser();
         final long userId = user.getIdLong();
         checkNarratorRole(userId);
 
-        if (currentChannelId == 0 || currentChannelId != event.getChannelLeft().getIdLong()) return;
-        final BotSettings settings = bot.getSettings();
-        if (!settings.isNarratorEnabled()) return;
+        final NarratorSession session = sessions.get(channel.getIdLong());
+        if (session == null) return false;
 
-        if (userId != settings.getNarratorRecorder())
+        if (userId != bot.getSettings().getNarratorRecorder())
         {
-            if (!user.isBot())
-            {
-                userSpeakSessions.remove(userId);
-                channelUserCount--;
-                LOGGER.debug("Channel user count decremented to {}", channelUserCount);
-            }
-            return;
+            if (!user.isBot()) session.audienceLeft(userId);
+            return false;
         }
 
+        if (sessions.close(channel.getIdLong()) == null) return false;
         final AudioManager manager = bot.getGuild().getAudioManager();
-        manager.closeAudioConnection();
-        LOGGER.debug("Audio connection to {} closed", currentChannelId);
-
-        currentChannelId = 0;
-        channelUserCount = 0;
-        userSpeakSessions.clear();
-
-        reconnect5SecLock = Instant.now().getEpochSecond();
-    }
-
-    private void checkNarratorRole(long userId)
-    {
-        Narrator narrator = bot.getState().getNarrator(userId);
-        if (narrator != null)
+        final VoiceChannel connected = manager.getConnectedChannel();
+        //Connection is moved, not closed, by the following join
+        if (!move && (connected == null || connected.getIdLong() == channel.getIdLong()))
         {
-            LOGGER.debug("Checked narrator role of {}", narrator.getId());
+            manager.closeAudioConnection();
+            LOGGER.debug("Audio connection to {} closed", channel.getIdLong());
         }
+        if (!move) reconnect5SecLock = Instant.now().getEpochSecond();
+        return true;
     }
 
-    @Override
-    public void onPing(long l)
+    private void addNarratedTime(long userId, int seconds)
     {
-
-    }
-
-    @Override
-    public void onStatusChange(ConnectionStatus connectionStatus)
-    {
-
+        //Journaled off the flushing thread, in order with other mutations of the narrator
+        bot.getNarratorTasks().execute(userId, () ->
+        {
+            bot.getState().addNarratorTime(userId, seconds);
+            LOGGER.debug("Narrator {} narrated for {} seconds", userId, seconds);
+        });
     }
 
-    @Override
-    public void onUserSpeaking(User user, boolean b)
+    private void checkNarratorRole(long userId)
     {
-        if (channelUserCount < bot.getSettings().getNarratorMinAudience()) return;
-        if (user.isBot()) return;
-
-        final long id = user.getIdLong();
-        if (b)
-        {
-            userSpeakSessions.computeIfAbsent(id, u -> Instant.now().getEpochSecond());
-        } else
+        Narrator narrator = bot.getState().getNarrator(userId);
+        if (narrator != null)
         {
-
-            long startedTalking = Optional.ofNullable(userSpeakSessions.remove(id)).orElse(0L);
-            if (startedTalking == 0) return;
-            long endedTalking = Instant.now().getEpochSecond();
-
-            int talkedTimeSec = (int) (endedTalking - startedTalking);
-
-            Narrator narrator = bot.getState().getOrCreateNarrator(id);
-            narrator.addTime(talkedTimeSec);
-            LOGGER.debug("Narrator {} narrated for " + talkedTimeSec + " seconds", id);
+            LOGGER.debug("Checked narrator role of {}", narrator.getId());
         }
     }
 }
@@ -1,19 +1,21 @@
 package fanficthread.fanficthreadbot.listeners;
 
-import fanficthread.fanficthreadbot.BotSettings;
 import fanficthread.fanficthreadbot.FanficThreadBot;
 import net.dv8tion.jda.core.entities.Member;
 import net.dv8tion.jda.core.entities.Message;
 import net.dv8tion.jda.core.entities.TextChannel;
 import net.dv8tion.jda.core.entities.User;
 import net.dv8tion.jda.core.events.message.guild.GuildMessageReceivedEvent;
-import net.dv8tion.jda.webhook.WebhookClient;
 import net.dv8tion.jda.webhook.WebhookMessageBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * Reposts explicit images as spoilers.
+ * Messages are dispatched by {@link GuildMessageRouter}.
+ */
 public class SpoilerListener extends AbstractListener
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(SpoilerListener.class);
@@ -23,15 +25,13 @@ public class SpoilerListener extends AbstractListener
         super(bot);
     }
 
-    @Override
-    public void onGuildMessageReceived(GuildMessageReceivedEvent event)
+    /**
+     * Called for messages with attachments from users, in channels not in the whitelist.
+     */
+    void handleMessage(GuildMessageReceivedEvent event)
     {
-        final BotSettings settings = bot.getSettings();
-        if (!settings.isSpoilerEnabled()) return;
         final TextChannel channel = event.getChannel();
-        if (settings.isInSpoilerWhitelist(channel.getIdLong())) return;
         final User user = event.getAuthor();
-        if (user.isBot() || user.isFake()) return;
         final Message message = event.getMessage();
 
         Message.Attachment spoiledImage = null;
@@ -48,22 +48,42 @@ public class SpoilerListener extends AbstractListener
 
         final Member member = event.getGuild().getMember(user);
 
-        WebhookClient webhookClient = bot.getBotWebhookCache().getClient(channel);
         WebhookMessageBuilder builder = new WebhookMessageBuilder();
 
         builder.setUsername(member == null ? user.getName() : member.getEffectiveName());
         builder.setAvatarUrl(user.getEffectiveAvatarUrl());
         builder.setContent(message.getContentRaw());
-        try
-        {
-            builder.addFile("SPOILER_" + spoiledImage.getFileName(), spoiledImage.getInputStream());
-        } catch (IOException e)
-        {
-            LOGGER.error("Failed to download an attached image (message: {}/{})", channel.getIdLong(), message.getIdLong(), e);
-            return;
-        }
 
-        webhookClient.send(builder.build()).thenRun(() -> message.delete().queue());
-        LOGGER.debug("Reposted spoiled image. Original message: {}", message.getIdLong());
+        bot.getAttachmentRelay().fetch(spoiledImage, "SPOILER_" + spoiledImage.getFileName()).whenComplete((file, e) ->
+        {
+            if (e != null)
+            {
+                LOGGER.error("Failed to download an attached image (message: {}/{})", channel.getIdLong(), message.getIdLong(), e);
+                return;
+            }
+            final CompletableFuture<Void> sent;
+            try
+            {
+                file.addTo(builder);
+                sent = bot.getBotWebhookCache().send(channel, builder.build());
+            } catch (RuntimeException e1)
+            {
+                //Nothing was sent, so the file isn't closed by the send completion
+                file.close();
+                LOGGER.error("Failed to build spoiled image repost (message: {}/{})", channel.getIdLong(), message.getIdLong(), e1);
+                return;
+            }
+            sent.whenComplete((v, e2) ->
+            {
+                file.close();
+                if (e2 != null)
+                {
+                    LOGGER.error("Failed to repost spoiled image (message: {}/{})", channel.getIdLong(), message.getIdLong(), e2);
+                    return;
+                }
+                message.delete().queue();
+                LOGGER.debug("Reposted spoiled image. Original message: {}", message.getIdLong());
+            });
+        });
     }
 }
@@ -0,0 +1,22 @@
+package fanficthread.fanficthreadbot.listeners;
+
+import fanficthread.fanficthreadbot.FanficThreadBot;
+import net.dv8tion.jda.core.events.channel.text.TextChannelDeleteEvent;
+
+/**
+ * Drops cached bot webhooks of deleted channels.
+ */
+public class WebhookCacheListener extends AbstractListener
+{
+    public WebhookCacheListener(FanficThreadBot bot)
+    {
+        super(bot);
+    }
+
+    @Override
+    public void onTextChannelDelete(TextChannelDeleteEvent event)
+    {
+        if (!bot.isLockedGuild(event.getGuild().getIdLong())) return;
+        bot.getBotWebhookCache().invalidate(event.getChannel().getIdLong());
+    }
+}
@@ -0,0 +1,191 @@
+package fanficthread.fanficthreadbot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Journal written from state changes and replayed into a fresh state.
+ */
+public class BotStateJournalTest
+{
+    private Path dir;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("journal-test");
+        file = dir.resolve("bot_state.journal");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        try (Stream<Path> files = Files.walk(dir))
+        {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * @return state that records its changes into a new journal of the state generation
+     */
+    private BotState journaledState(BotStateJournal journal) throws IOException
+    {
+        BotState state = new BotState();
+        journal.reset(state.getJournalGeneration());
+        state.attachJournal(journal);
+        return state;
+    }
+
+    private static void appendBatch(BotState state, BotStateJournal journal) throws IOException
+    {
+        state.journalNarratorTime();
+        journal.append(journal.drainPending());
+    }
+
+    @Test
+    public void replayRestoresAllChanges() throws IOException
+    {
+        final BotStateJournal journal = new BotStateJournal(file);
+        final BotState state = journaledState(journal);
+
+        state.addNarrator(new Narrator(1, 100));
+        state.addNarratorTime(1, 20);
+        state.addNarratorTime(2, 30);
+        state.setNarratorTime(3, 50);
+        final MemberPoll poll = new MemberPoll(10, 11, 1000);
+        state.addMemberPoll(poll);
+        state.addMemberPollVote(poll, 21, true, 2000);
+        state.addMemberPollVote(poll, 22, false, 2001);
+        appendBatch(state, journal);
+
+        state.addNarratorTime(2, 5);
+        state.removeNarrator(state.getNarrator(3));
+        state.removeMemberPollVote(poll, 22, false);
+        state.addMemberPoll(new MemberPoll(12, 13, 3000));
+        state.removeMemberPoll(state.getMemberPollByMessage(12));
+        appendBatch(state, journal);
+        journal.close();
+
+        final BotState replayed = new BotState();
+        assertTrue(new BotStateJournal(file).replay(replayed) > 0);
+
+        assertEquals(120, replayed.getNarratorTime(1));
+        assertEquals(35, replayed.getNarratorTime(2));
+        assertNull(replayed.getNarrator(3));
+        final MemberPoll replayedPoll = replayed.getMemberPollByMessage(10);
+        assertNotNull(replayedPoll);
+        assertEquals(11, replayedPoll.getUserId());
+        assertEquals(1, replayedPoll.getTally().getUpvoteCount());
+        assertEquals(0, replayedPoll.getTally().getDownvoteCount());
+        assertEquals(Long.valueOf(2000), replayedPoll.getTally().getUpvoters().get(21L));
+        assertNull(replayed.getMemberPollByMessage(12));
+    }
+
+    @Test
+    public void tornTailIsSkipped() throws IOException
+    {
+        final BotStateJournal journal = new BotStateJournal(file);
+        final BotState state = journaledState(journal);
+        state.addNarratorTime(1, 10);
+        appendBatch(state, journal);
+        state.addNarratorTime(1, 20);
+        appendBatch(state, journal);
+        journal.close();
+
+        //Last batch is cut in the middle of its payload, as by a crash during the write
+        final byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+
+        final BotState replayed = new BotState();
+        assertEquals(1, new BotStateJournal(file).replay(replayed));
+        assertEquals(10, replayed.getNarratorTime(1));
+    }
+
+    @Test
+    public void tornBatchHeaderIsSkipped() throws IOException
+    {
+        final BotStateJournal journal = new BotStateJournal(file);
+        final BotState state = journaledState(journal);
+        state.addNarratorTime(1, 10);
+        appendBatch(state, journal);
+        journal.close();
+
+        //Only a part of the next batch header made it to the file
+        Files.write(file, new byte[]{0, 0, 0}, StandardOpenOption.APPEND);
+
+        final BotState replayed = new BotState();
+        assertEquals(1, new BotStateJournal(file).replay(replayed));
+        assertEquals(10, replayed.getNarratorTime(1));
+    }
+
+    @Test
+    public void corruptedBatchIsSkipped() throws IOException
+    {
+        final BotStateJournal journal = new BotStateJournal(file);
+        final BotState state = journaledState(journal);
+        state.addNarratorTime(1, 10);
+        appendBatch(state, journal);
+        state.addNarratorTime(1, 20);
+        appendBatch(state, journal);
+        journal.close();
+
+        //Last byte is the low byte of the seconds of the second batch record
+        final byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(file, bytes);
+
+        final BotState replayed = new BotState();
+        assertEquals(1, new BotStateJournal(file).replay(replayed));
+        assertEquals(10, replayed.getNarratorTime(1));
+    }
+
+    @Test
+    public void journalOfOtherGenerationIsIgnored() throws IOException
+    {
+        final BotStateJournal journal = new BotStateJournal(file);
+        final BotState state = journaledState(journal);
+        state.addNarratorTime(1, 10);
+        appendBatch(state, journal);
+        journal.reset(state.getJournalGeneration() + 1);
+        state.addNarratorTime(1, 20);
+        appendBatch(state, journal);
+        journal.close();
+
+        final BotState replayed = new BotState();
+        assertEquals(0, new BotStateJournal(file).replay(replayed));
+        assertEquals(0, replayed.getNarratorTime(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidHeaderIsRejected() throws IOException
+    {
+        final ByteBuffer header = ByteBuffer.allocate(16);
+        header.putInt(0x12345678);
+        Files.write(file, header.array());
+
+        new BotStateJournal(file).replay(new BotState());
+    }
+
+    @Test
+    public void missingJournalReplaysNothing() throws IOException
+    {
+        assertEquals(0, new BotStateJournal(file).replay(new BotState()));
+    }
+}
@@ -0,0 +1,202 @@
+package fanficthread.fanficthreadbot;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link LongConcurrentMap} checked against {@link HashMap}.
+ */
+public class LongConcurrentMapTest
+{
+    //Snowflake of 2019, low bits are sequential like ids of messages sent close in time
+    private static final long SNOWFLAKE = 550000000000000000L;
+
+    private static <V> void assertSameMappings(Map<Long, V> expected, LongConcurrentMap<V> map, long fromKey, long toKey)
+    {
+        assertEquals(expected.size(), map.size());
+        for (long key = fromKey; key < toKey; key++)
+        {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void putGetRemove()
+    {
+        final LongConcurrentMap<String> map = new LongConcurrentMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(1, "a"));
+        assertEquals("a", map.put(1, "b"));
+        assertEquals("b", map.putIfAbsent(1, "c"));
+        assertNull(map.putIfAbsent(2, "d"));
+        assertEquals("b", map.get(1));
+        assertEquals("d", map.get(2));
+        assertTrue(map.containsKey(2));
+        assertFalse(map.containsKey(3));
+        assertEquals(2, map.size());
+
+        assertFalse(map.remove(1, new String("b")));
+        assertTrue(map.remove(1, map.get(1)));
+        assertNull(map.remove(1));
+        assertEquals("d", map.remove(2));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void zeroAndNegativeKeys()
+    {
+        final LongConcurrentMap<String> map = new LongConcurrentMap<>();
+        map.put(0, "zero");
+        map.put(-1, "minus one");
+        map.put(Long.MIN_VALUE, "min");
+        assertEquals("zero", map.get(0));
+        assertEquals("minus one", map.get(-1));
+        assertEquals("min", map.get(Long.MIN_VALUE));
+        assertEquals("zero", map.remove(0));
+        assertNull(map.get(0));
+        assertEquals(2, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullValueIsRejected()
+    {
+        new LongConcurrentMap<String>().put(1, null);
+    }
+
+    @Test
+    public void computeIfAbsentCreatesOnce()
+    {
+        final LongConcurrentMap<Object> map = new LongConcurrentMap<>();
+        final Object created = map.computeIfAbsent(SNOWFLAKE, key -> new Object());
+        assertTrue(created == map.computeIfAbsent(SNOWFLAKE, key ->
+        {
+            throw new AssertionError("Value is present");
+        }));
+        assertNull(map.computeIfAbsent(SNOWFLAKE + 1, key -> null));
+        assertFalse(map.containsKey(SNOWFLAKE + 1));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void resizeKeepsAllMappings()
+    {
+        final LongConcurrentMap<Long> map = new LongConcurrentMap<>();
+        final Map<Long, Long> expected = new HashMap<>();
+        //Enough to resize every stripe several times
+        for (long key = SNOWFLAKE; key < SNOWFLAKE + 10000; key++)
+        {
+            map.put(key, key * 2);
+            expected.put(key, key * 2);
+        }
+        assertSameMappings(expected, map, SNOWFLAKE - 100, SNOWFLAKE + 10100);
+        assertEquals(10000, map.values().size());
+    }
+
+    @Test
+    public void removalKeepsClustersReachable()
+    {
+        final LongConcurrentMap<Long> map = new LongConcurrentMap<>();
+        final Map<Long, Long> expected = new HashMap<>();
+        final Random random = new Random(42);
+        //Few keys in small tables, so probe clusters wrap around and every removal shifts entries back
+        for (int i = 0; i < 200000; i++)
+        {
+            final long key = SNOWFLAKE + random.nextInt(96);
+            switch (random.nextInt(4))
+            {
+                case 0:
+                case 1:
+                    assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+                    break;
+                case 2:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+                    break;
+            }
+            if (i % 1000 == 0) assertSameMappings(expected, map, SNOWFLAKE, SNOWFLAKE + 96);
+        }
+        assertSameMappings(expected, map, SNOWFLAKE, SNOWFLAKE + 96);
+    }
+
+    @Test
+    public void emptiedMapFindsNothing()
+    {
+        final LongConcurrentMap<Long> map = new LongConcurrentMap<>();
+        for (long key = SNOWFLAKE; key < SNOWFLAKE + 1000; key++) map.put(key, key);
+        for (long key = SNOWFLAKE; key < SNOWFLAKE + 1000; key++) assertEquals(Long.valueOf(key), map.remove(key));
+        assertTrue(map.isEmpty());
+        for (long key = SNOWFLAKE; key < SNOWFLAKE + 1000; key++) assertNull(map.get(key));
+
+        for (long key = SNOWFLAKE; key < SNOWFLAKE + 1000; key++) map.put(key, key);
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(SNOWFLAKE));
+    }
+
+    @Test
+    public void putAllCopiesMappings()
+    {
+        final LongConcurrentMap<Long> from = new LongConcurrentMap<>();
+        for (long key = SNOWFLAKE; key < SNOWFLAKE + 100; key++) from.put(key, key);
+        final LongConcurrentMap<Long> to = new LongConcurrentMap<>();
+        to.put(1, 1L);
+        to.putAll(from);
+        assertEquals(101, to.size());
+        assertEquals(Long.valueOf(SNOWFLAKE + 50), to.get(SNOWFLAKE + 50));
+    }
+
+    @Test
+    public void concurrentWritersAndReaders() throws Exception
+    {
+        final int threads = 8;
+        final int keysPerThread = 20000;
+        final LongConcurrentMap<Long> map = new LongConcurrentMap<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++)
+            {
+                final long from = SNOWFLAKE + (long) t * keysPerThread;
+                futures.add(executor.submit(() ->
+                {
+                    for (long key = from; key < from + keysPerThread; key++)
+                    {
+                        map.put(key, key);
+                        //Lookups of other threads' keys race with their writes and resizes
+                        final Long other = map.get(key + keysPerThread);
+                        if (other != null) assertEquals(key + keysPerThread, (long) other);
+                        assertEquals(Long.valueOf(key), map.get(key));
+                    }
+                    for (long key = from; key < from + keysPerThread; key += 2) map.remove(key);
+                }));
+            }
+            for (Future<?> future : futures) future.get(1, TimeUnit.MINUTES);
+        } finally
+        {
+            executor.shutdownNow();
+        }
+
+        assertEquals(threads * keysPerThread / 2, map.size());
+        for (long key = SNOWFLAKE; key < SNOWFLAKE + (long) threads * keysPerThread; key++)
+        {
+            assertEquals((key - SNOWFLAKE) % 2 == 0 ? null : Long.valueOf(key), map.get(key));
+        }
+    }
+}
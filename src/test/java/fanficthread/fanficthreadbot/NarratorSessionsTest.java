@@ -0,0 +1,146 @@
+package fanficthread.fanficthreadbot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Many concurrent sessions fed with synthetic speaking events.
+ */
+public class NarratorSessionsTest
+{
+    private static final int SESSIONS = 256;
+    private static final int USERS_PER_SESSION = 8;
+    private static final int UTTERANCES = 500;
+    private static final int EVENT_THREADS = 16;
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private ScheduledExecutorService flushExecutor;
+    private ExecutorService eventExecutor;
+    private final Map<Long, LongAdder> narrated = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp()
+    {
+        flushExecutor = Executors.newSingleThreadScheduledExecutor();
+        eventExecutor = Executors.newFixedThreadPool(EVENT_THREADS);
+    }
+
+    @After
+    public void tearDown()
+    {
+        eventExecutor.shutdownNow();
+        flushExecutor.shutdownNow();
+    }
+
+    private void addNarratedTime(long userId, int seconds)
+    {
+        narrated.computeIfAbsent(userId, id -> new LongAdder()).add(seconds);
+    }
+
+    private static long userId(long channelId, int user)
+    {
+        return channelId * 1000 + user;
+    }
+
+    @Test
+    public void concurrentSessionsAccountAllSpeakingTime() throws Exception
+    {
+        final NarratorSessions sessions = new NarratorSessions(() -> 1, this::addNarratedTime, flushExecutor);
+        //Intervals are in the past, so time of close doesn't add to them
+        final long start = System.nanoTime() - TimeUnit.HOURS.toNanos(1);
+
+        final List<Future<?>> futures = new ArrayList<>();
+        for (long channel = 1; channel <= SESSIONS; channel++)
+        {
+            final long channelId = channel;
+            futures.add(eventExecutor.submit(() ->
+            {
+                assertNotNull(sessions.open(channelId, 0));
+                final NarratorSession session = sessions.get(channelId);
+                for (int user = 0; user < USERS_PER_SESSION; user++) session.audienceJoined();
+                for (int i = 0; i < UTTERANCES; i++)
+                {
+                    final long time = start + i * SECOND_NANOS;
+                    for (int user = 0; user < USERS_PER_SESSION; user++)
+                    {
+                        session.userSpeaking(userId(channelId, user), true, time);
+                        session.userSpeaking(userId(channelId, user), false, time + SECOND_NANOS / 2);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) future.get(1, TimeUnit.MINUTES);
+
+        assertEquals(SESSIONS, sessions.size());
+        for (NarratorSession session : sessions.getSessions())
+        {
+            assertEquals(USERS_PER_SESSION, session.getAudience());
+        }
+
+        futures.clear();
+        for (long channel = 1; channel <= SESSIONS; channel++)
+        {
+            final long channelId = channel;
+            futures.add(eventExecutor.submit(() -> assertNotNull(sessions.close(channelId))));
+        }
+        for (Future<?> future : futures) future.get(1, TimeUnit.MINUTES);
+
+        assertEquals(0, sessions.size());
+        assertEquals(SESSIONS * USERS_PER_SESSION, narrated.size());
+        for (long channel = 1; channel <= SESSIONS; channel++)
+        {
+            for (int user = 0; user < USERS_PER_SESSION; user++)
+            {
+                assertEquals(UTTERANCES / 2, narrated.get(userId(channel, user)).sum());
+            }
+        }
+    }
+
+    @Test
+    public void speechWithoutAudienceIsNotCounted()
+    {
+        final NarratorSessions sessions = new NarratorSessions(() -> 2, this::addNarratedTime, flushExecutor);
+        final NarratorSession session = sessions.open(1, 1);
+        final long start = System.nanoTime() - TimeUnit.HOURS.toNanos(1);
+
+        session.userSpeaking(1, true, start);
+        session.userSpeaking(1, false, start + 10 * SECOND_NANOS);
+        session.audienceJoined();
+        session.userSpeaking(2, true, start);
+        session.userSpeaking(2, false, start + 10 * SECOND_NANOS);
+        sessions.close(1);
+
+        assertNull(narrated.get(1L));
+        assertEquals(10, narrated.get(2L).sum());
+    }
+
+    @Test
+    public void channelHasOneSession()
+    {
+        final NarratorSessions sessions = new NarratorSessions(() -> 0, this::addNarratedTime, flushExecutor);
+
+        assertNotNull(sessions.open(1, 0));
+        assertNull(sessions.open(1, 0));
+        assertNotNull(sessions.open(2, 0));
+        assertEquals(2, sessions.size());
+        assertNotNull(sessions.close(1));
+        assertNull(sessions.close(1));
+        assertEquals(1, sessions.size());
+    }
+}